@@ -0,0 +1,284 @@
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.LogFileCache;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many commands in a single JVM, saving the JVM startup and warmup per command. Commands are read from a job
+ * file (or stdin), one command line per line, e.g.:
+ * <pre>
+ * # comments and empty lines are ignored, the leading 'hodor' is optional
+ * summarize -if run1.hdr -s 60 -of run1.summary
+ * hodor split -if "taggy log.hdr"
+ * </pre>
+ * Commands run concurrently, up to the configured number of threads. The stdout output of each command is buffered
+ * and printed in job order once the command is done. While the batch is running logs are read from disk once and
+ * shared between the commands reading them (see {@link LogFileCache}).
+ */
+public class BatchCommands implements Runnable
+{
+    @Option(name = "-jobFile", aliases = "-jf", usage = "a file with a command per line, (default: read commands from stdin)", required = false)
+    public String jobFile;
+
+    @Option(name = "-threads", aliases = "-t", usage = "number of commands to run concurrently, (default: available processors)", required = false)
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-cacheMb", aliases = "-cmb", usage = "capacity of the shared log file cache in MB, 0 to disable, (default: 512)", required = false)
+    public long cacheMb = 512;
+
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+
+    private int failed;
+
+    public static void main(String[] args)
+    {
+        BatchCommands batch = new BatchCommands();
+        ParseAndRunUtil.parseParamsAndRun(args, batch);
+        if (batch.failed != 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        List<String> jobs;
+        try (InputStream in = (jobFile == null || jobFile.equals("-")) ? System.in : new FileInputStream(jobFile))
+        {
+            jobs = readJobs(in);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        // validate all jobs before running any
+        List<String[]> jobArgs = new ArrayList<>();
+        for (String job : jobs)
+        {
+            String[] args = tokenize(job);
+            if (!CommandDispatcherMain.isValidCommand(args[0]) || args[0].equals("batch"))
+            {
+                throw new IllegalArgumentException("Invalid command '" + args[0] + "' in job: " + job);
+            }
+            jobArgs.add(args);
+        }
+
+        PrintStream stdout = System.out;
+        JobOutputStream jobOutput = new JobOutputStream(stdout);
+        System.setOut(new PrintStream(jobOutput, true));
+        if (cacheMb > 0)
+        {
+            LogFileCache.enable(cacheMb * 1024 * 1024);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        failed = 0;
+        try
+        {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (String[] args : jobArgs)
+            {
+                results.add(executor.submit(() -> runJob(jobOutput, args)));
+            }
+            for (int i = 0; i < results.size(); i++)
+            {
+                if (verbose)
+                {
+                    stdout.println("Job " + i + ": " + jobs.get(i));
+                }
+                try
+                {
+                    stdout.write(results.get(i).get());
+                }
+                catch (ExecutionException e)
+                {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InvocationTargetException)
+                    {
+                        cause = cause.getCause();
+                    }
+                    System.err.println("Job " + i + " failed: " + jobs.get(i));
+                    if (cause instanceof IllegalArgumentException)
+                    {
+                        System.err.println(cause.getMessage());
+                    }
+                    else
+                    {
+                        cause.printStackTrace();
+                    }
+                }
+            }
+            stdout.flush();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            LogFileCache.disable();
+            System.setOut(stdout);
+        }
+        if (failed != 0)
+        {
+            System.err.println(failed + " of " + jobs.size() + " jobs failed");
+        }
+    }
+
+    private static byte[] runJob(JobOutputStream jobOutput, String[] args) throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        jobOutput.target.set(buffer);
+        ParseAndRunUtil.failOnBadArguments(true);
+        try
+        {
+            CommandDispatcherMain.dispatch(args);
+        }
+        finally
+        {
+            ParseAndRunUtil.failOnBadArguments(false);
+            System.out.flush();
+            jobOutput.target.remove();
+        }
+        return buffer.toByteArray();
+    }
+
+    private static List<String> readJobs(InputStream in) throws IOException
+    {
+        List<String> jobs = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            jobs.add(line);
+        }
+        return jobs;
+    }
+
+    /**
+     * Split a command line on white space, single or double quotes may be used to keep white space in an argument.
+     */
+    static String[] tokenize(String line)
+    {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+                else
+                {
+                    token.append(c);
+                }
+            }
+            else if (c == '"' || c == '\'')
+            {
+                quote = c;
+                inToken = true;
+            }
+            else if (Character.isWhitespace(c))
+            {
+                if (inToken)
+                {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            }
+            else
+            {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quote != 0)
+        {
+            throw new IllegalArgumentException("Unbalanced quotes in job: " + line);
+        }
+        if (inToken)
+        {
+            tokens.add(token.toString());
+        }
+        if (!tokens.isEmpty() && tokens.get(0).equals("hodor"))
+        {
+            tokens.remove(0);
+        }
+        if (tokens.isEmpty())
+        {
+            throw new IllegalArgumentException("Missing command in job: " + line);
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Routes stdout writes to the buffer of the job running on the writing thread (threads started by a job inherit
+     * its buffer), writes from outside of a job go to the original stdout.
+     */
+    private static final class JobOutputStream extends OutputStream
+    {
+        private final OutputStream stdout;
+        private final InheritableThreadLocal<OutputStream> target = new InheritableThreadLocal<>();
+
+        JobOutputStream(OutputStream stdout)
+        {
+            this.stdout = stdout;
+        }
+
+        private OutputStream out()
+        {
+            OutputStream out = target.get();
+            return out == null ? stdout : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out().flush();
+        }
+    }
+}
@@ -37,21 +37,43 @@ public class CommandDispatcherMain
         }
         else
         {
-            // Remove the command name from `args` so that the all the remaining
-            // arguments can be passed to the underlying class.
-            String[] withoutCommand = Arrays.copyOfRange(args, 1, args.length);
-            Command.fromUserInput(args[0])
-                .mainClass
-                .getMethod("main", String[].class)
-                .invoke(null, (Object) withoutCommand);
+            dispatch(args);
         }
     }
 
+    static boolean isValidCommand(String command)
+    {
+        return Command.isValid(command);
+    }
+
+    /**
+     * @param args a command name followed by its arguments
+     */
+    static void dispatch(String[] args) throws Exception
+    {
+        // Remove the command name from `args` so that the all the remaining
+        // arguments can be passed to the underlying class.
+        String[] withoutCommand = Arrays.copyOfRange(args, 1, args.length);
+        Command.fromUserInput(args[0])
+            .mainClass
+            .getMethod("main", String[].class)
+            .invoke(null, (Object) withoutCommand);
+    }
+
     private enum Command
     {
+        BATCH(BatchCommands.class),
+        COMPACT(CompactHistogramLogs.class),
+        DIFF(DiffHistogramLogs.class),
+        HEATMAP(HeatmapHistogramLogs.class),
         TO_CSV(HdrToCsv.class),
+        MERGE_PARTIALS(MergeSummaryPartials.class),
         SPLIT(SplitHistogramLogs.class),
         SUMMARIZE(SummarizeHistogramLogs.class),
+        SERVE(ServeHistogramLogs.class),
+        SLO(SloHistogramLogs.class),
+        SORT(SortHistogramLogs.class),
+        TOP(TopHistogramLogs.class),
         UNION(UnionHistogramLogs.class);
 
         private final Class<?> mainClass;
@@ -0,0 +1,415 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.HistogramSink;
+import psy.lob.saw.LogCompactor;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.OrderedHistogramLogReader;
+import psy.lob.saw.ParallelHistogramSink;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static psy.lob.saw.HdrHistogramUtil.createLogWriter;
+
+/**
+ * Rewrites logs with fewer significant value digits and longer intervals, to shrink an archive and the cost of reading
+ * it later, optionally keeping the most recent intervals in full detail. Logs are compacted in parallel, each into a
+ * log of the same name in the output path, and the size reduction and the worst percentile error introduced are
+ * reported per log.
+ */
+public class CompactHistogramLogs implements Runnable
+{
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+    @Option(name = "-significantDigits", aliases = "-sd", usage = "number of significant value digits to rewrite intervals with, between 0 and 5, intervals with fewer are left as they are, (default: 2)", required = false)
+    public int significantDigits = 2;
+    @Option(name = "-compactThreads", aliases = "-cts", usage = "number of logs compacted in parallel, (default: number of processors)", required = false)
+    public int compactThreads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-encodeThreads", aliases = "-ets", usage = "number of threads encoding the intervals of each log, (default: 0, which encodes on the compacting thread)", required = false)
+    public int encodeThreads = 0;
+    @Option(name = "-outputFile", aliases = "-of", usage = "set the report output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private long intervalMs = 0;
+    private long keepRecentMs = 0;
+    private long asOfMs = System.currentTimeMillis();
+    private File outputPath;
+    private File inputPath = new File(".");
+    private final Set<File> inputFiles = new TreeSet<>();
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new CompactHistogramLogs());
+    }
+
+    @Option(name = "-intervalLength", aliases = "-il", usage = "merge intervals into intervals of this length, on a grid starting at the epoch, e.g. 10s or 1m, (default: none, keeps the interval lengths)", required = false)
+    public void setIntervalLength(String intervalLength)
+    {
+        intervalMs = (long) (HdrHistogramUtil.parseDurationSec(intervalLength) * 1000);
+    }
+
+    @Option(name = "-keepRecent", aliases = "-kr", usage = "keep intervals younger than this as they are, e.g. 7d, (default: none, compacts all intervals)", required = false)
+    public void setKeepRecent(String keepRecent)
+    {
+        keepRecentMs = (long) (HdrHistogramUtil.parseDurationSec(keepRecent) * 1000);
+    }
+
+    @Option(name = "-asOf", aliases = "-ao", usage = "time the age of intervals is taken from, in seconds since epoch, (default: now)", required = false)
+    public void setAsOf(double asOfSec)
+    {
+        asOfMs = (long) (asOfSec * 1000);
+    }
+
+    @Option(name = "-outputPath", aliases = "-op", usage = "folder to write the compacted logs to, under the names of the input logs", required = true)
+    public void setOutputPath(String outputFolderName)
+    {
+        outputPath = new File(outputFolderName);
+        if (!outputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("outputPath:" + outputFolderName + " must be a directory!");
+        }
+    }
+
+    @Option(name = "-inputPath", aliases = "-ip", usage = "set path to use for input files, defaults to current folder", required = false)
+    public void setInputPath(String inputFolderName)
+    {
+        inputPath = new File(inputFolderName);
+        if (!inputPath.exists())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must exist!");
+        }
+        if (!inputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must be a directory!");
+        }
+    }
+
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp", required = false)
+    public void addInputFile(String inputFile)
+    {
+        final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
+        inputFiles.addAll(Arrays.asList(inputPath.listFiles(pathname -> predicate.test(pathname.getName()))));
+    }
+
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute", required = false)
+    public void addInputFileAbs(String inputFileName)
+    {
+        File in = new File(inputFileName);
+        if (!in.exists())
+        {
+            throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
+        }
+        inputFiles.add(in);
+    }
+
+    @Override
+    public void run()
+    {
+        if (inputFiles.isEmpty())
+        {
+            throw new IllegalArgumentException("Error: please specify inputs");
+        }
+        List<File[]> inAndOut = new ArrayList<>();
+        Set<File> outputs = new TreeSet<>();
+        try
+        {
+            for (File inputFile : inputFiles)
+            {
+                File output = new File(outputPath, inputFile.getName());
+                if (output.getCanonicalFile().equals(inputFile.getCanonicalFile()))
+                {
+                    throw new IllegalArgumentException("Compacting " + inputFile + " would overwrite it, " +
+                        "use a different output path");
+                }
+                if (!outputs.add(output))
+                {
+                    throw new IllegalArgumentException("Several input logs are named " + inputFile.getName());
+                }
+                inAndOut.add(new File[]{inputFile, output});
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        long keepFromMs = (keepRecentMs == 0) ? Long.MAX_VALUE : asOfMs - keepRecentMs;
+        if (verbose)
+        {
+            System.err.println("Compacting files: " + inputFiles);
+        }
+        int failed;
+        try
+        {
+            failed = compactAndReport(inAndOut, keepFromMs);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+        if (failed != 0)
+        {
+            throw new RuntimeException(failed + " of " + inAndOut.size() + " logs failed to compact");
+        }
+    }
+
+    private static final class Result
+    {
+        final File input;
+        final File output;
+        final LogCompactor compactor;
+
+        Result(File input, File output, LogCompactor compactor)
+        {
+            this.input = input;
+            this.output = output;
+            this.compactor = compactor;
+        }
+    }
+
+    /**
+     * @return the number of logs that failed to compact, which are reported on stderr and left out of the report
+     */
+    private int compactAndReport(List<File[]> inAndOut, long keepFromMs) throws FileNotFoundException
+    {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, compactThreads));
+        List<Result> results = new ArrayList<>();
+        int failed = 0;
+        try
+        {
+            List<CompletableFuture<Result>> perFile = new ArrayList<>();
+            for (File[] files : inAndOut)
+            {
+                perFile.add(CompletableFuture.supplyAsync(() -> compact(files[0], files[1], keepFromMs, errors), pool));
+            }
+            for (int i = 0; i < perFile.size(); i++)
+            {
+                try
+                {
+                    results.add(perFile.get(i).join());
+                }
+                catch (CompletionException e)
+                {
+                    if (!(e.getCause() instanceof UncheckedIOException))
+                    {
+                        throw e;
+                    }
+                    // fail only this log, compact() leaves no truncated log behind
+                    failed++;
+                    System.err.println("Failed to compact " + inAndOut.get(i)[0] + ": " + e.getCause().getMessage());
+                }
+            }
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+        results.sort(Comparator.comparing(result -> result.input.getPath()));
+        try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+        {
+            out.println("File,InputBytes,OutputBytes,Reduction%,IntervalsIn,IntervalsOut," +
+                "MaxIntervalError%,MaxSummaryError%");
+            long inputBytes = 0;
+            long outputBytes = 0;
+            long intervalsIn = 0;
+            long intervalsOut = 0;
+            double maxIntervalError = 0.0;
+            double maxSummaryError = 0.0;
+            for (Result result : results)
+            {
+                LogCompactor compactor = result.compactor;
+                printRow(out, result.input.getPath(), result.input.length(), result.output.length(),
+                    compactor.getIntervalsIn(), compactor.getIntervalsOut(),
+                    compactor.getMaxIntervalError(), compactor.getMaxSummaryError());
+                inputBytes += result.input.length();
+                outputBytes += result.output.length();
+                intervalsIn += compactor.getIntervalsIn();
+                intervalsOut += compactor.getIntervalsOut();
+                maxIntervalError = Math.max(maxIntervalError, compactor.getMaxIntervalError());
+                maxSummaryError = Math.max(maxSummaryError, compactor.getMaxSummaryError());
+            }
+            printRow(out, "#Total", inputBytes, outputBytes, intervalsIn, intervalsOut,
+                maxIntervalError, maxSummaryError);
+        }
+        return failed;
+    }
+
+    private static void printRow(
+        PrintStream out,
+        String name,
+        long inputBytes,
+        long outputBytes,
+        long intervalsIn,
+        long intervalsOut,
+        double maxIntervalError,
+        double maxSummaryError)
+    {
+        double reduction = (inputBytes == 0) ? 0.0 : 100.0 * (inputBytes - outputBytes) / inputBytes;
+        out.printf("%s,%d,%d,%.1f,%d,%d,%.3f,%.3f%n", name, inputBytes, outputBytes, reduction,
+            intervalsIn, intervalsOut, 100 * maxIntervalError, 100 * maxSummaryError);
+    }
+
+    private Result compact(File input, File output, long keepFromMs, LogParseErrors errors)
+    {
+        // the output is only removed on failure once this run created it, not when it failed to open
+        boolean created = false;
+        boolean written = false;
+        try (OrderedHistogramLogReader reader = new OrderedHistogramLogReader(
+                 input, 0.0, Double.MAX_VALUE, tag -> false, false, errors);
+             PrintStream out = HdrHistogramUtil.openOutput(output.getPath()))
+        {
+            created = true;
+            String comment = "Compacted from:" + input.getName() +
+                " significantDigits:" + significantDigits +
+                " intervalLength:" + format(intervalMs / 1000.0) +
+                ((keepFromMs == Long.MAX_VALUE) ? "" : " keepRecentFrom:" + format(keepFromMs / 1000.0));
+            HistogramSink sink = sink(out, comment);
+            LogCompactor compactor = new LogCompactor(significantDigits, intervalMs, keepFromMs, sink);
+            boolean started = false;
+            while (reader.hasNext())
+            {
+                Histogram interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                if (!started)
+                {
+                    sink.startTime(startTimeSec(reader.getStartTimeSec()));
+                    started = true;
+                }
+                compactor.add(interval);
+            }
+            if (!started)
+            {
+                sink.startTime(reader.getStartTimeSec());
+            }
+            compactor.finish();
+            // a PrintStream swallows write errors, e.g. a full disk would leave a truncated log
+            if (out.checkError())
+            {
+                throw new IOException("Failed writing " + output);
+            }
+            if (verbose)
+            {
+                System.err.printf("Compacted %s: %d intervals to %d%n",
+                    input.getName(), compactor.getIntervalsIn(), compactor.getIntervalsOut());
+            }
+            written = true;
+            return new Result(input, output, compactor);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        finally
+        {
+            if (created && !written && output.isFile() && !output.delete())
+            {
+                System.err.println("Failed to delete " + output);
+            }
+        }
+    }
+
+    /**
+     * @return the log start time rounded down to the grid, as the first grid interval may start before the log does
+     */
+    private double startTimeSec(double logStartTimeSec)
+    {
+        if (intervalMs == 0)
+        {
+            return logStartTimeSec;
+        }
+        return Math.floorDiv((long) Math.floor(logStartTimeSec * 1000), intervalMs) * intervalMs / 1000.0;
+    }
+
+    private HistogramSink sink(PrintStream out, String comment)
+    {
+        if (encodeThreads > 0)
+        {
+            return new ParallelHistogramSink<>(new ParallelHistogramSink.EncodingSink<String>()
+            {
+                long baseTimeMs;
+
+                @Override
+                public void startTime(double st)
+                {
+                    baseTimeMs = createLogWriter(out, comment, st).getBaseTime();
+                }
+
+                @Override
+                public String encode(Histogram h)
+                {
+                    return HdrHistogramUtil.encodeIntervalLine(h, baseTimeMs);
+                }
+
+                @Override
+                public void emit(String line)
+                {
+                    out.print(line);
+                }
+            }, encodeThreads, encodeThreads * 16);
+        }
+        return new HistogramSink()
+        {
+            HistogramLogWriter writer;
+
+            @Override
+            public void startTime(double st)
+            {
+                writer = createLogWriter(out, comment, st);
+            }
+
+            @Override
+            public void accept(Histogram h)
+            {
+                writer.outputIntervalHistogram(h);
+            }
+        };
+    }
+
+    private static String format(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,348 @@
+import org.HdrHistogram.Histogram;
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.HistogramIterator;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.OrderedHistogramLogReader;
+import psy.lob.saw.PairedRatios;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compares a candidate run against a baseline run, each given as one or more logs, on a relative timeline. Both are
+ * read in lockstep, a window at a time, and for each window and tag the percentiles of both are reported along with
+ * their difference. Overall percentiles are reported at the end, along with the distribution of the ratios of paired
+ * intervals (the n-th interval of a tag in a window of the candidate over that of the baseline) and a verdict on
+ * whether the candidate differs significantly. Only the sums of the current window, the overall sums and the ratio
+ * statistics are kept, so memory does not grow with the length of the logs.
+ */
+public class DiffHistogramLogs implements Runnable
+{
+    @Option(name = "-start", aliases = "-s", usage = "relative log start time in seconds, (default: 0.0)", required = false)
+    public double start = 0.0;
+    @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
+    public double end = Double.MAX_VALUE;
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+    @Option(name = "-outputValueUnitRatio", aliases = "-ovr", usage = "output value unit ratio, (default: 1.0)", required = false)
+    public double outputValueUnitRatio = 1.0;
+    @Option(name = "-pairedPercentile", aliases = "-pp", usage = "percentile of each interval compared between paired intervals, (default: 99)", required = false)
+    public double pairedPercentile = 99.0;
+    @Option(name = "-alpha", aliases = "-a", usage = "significance level of the verdict, (default: 0.05)", required = false)
+    public double alpha = 0.05;
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private final List<File> baselineFiles = new ArrayList<>();
+    private final List<File> candidateFiles = new ArrayList<>();
+    private final Set<String> excludeTags = new HashSet<>();
+    private final Set<String> includeTags = new HashSet<>();
+    private double[] percentiles = {50, 90, 99, 99.9};
+    private double everySec = 60.0;
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new DiffHistogramLogs());
+    }
+
+    @Option(name = "-baseline", aliases = "-b", usage = "add a baseline log, by path relative to working dir or absolute, '-' reads stdin", required = true)
+    public void addBaseline(String fileName)
+    {
+        baselineFiles.add(existing(fileName));
+    }
+
+    @Option(name = "-candidate", aliases = "-c", usage = "add a candidate log, by path relative to working dir or absolute, '-' reads stdin", required = true)
+    public void addCandidate(String fileName)
+    {
+        candidateFiles.add(existing(fileName));
+    }
+
+    @Option(name = "-percentiles", aliases = "-p", usage = "comma separated percentiles to compare, (default: 50,90,99,99.9)", required = false)
+    public void setPercentiles(String percentileList)
+    {
+        String[] values = percentileList.split(",");
+        percentiles = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            percentiles[i] = Double.parseDouble(values[i].trim());
+        }
+    }
+
+    @Option(name = "-every", aliases = "-ev", usage = "window length, e.g. 60s or 5m, (default: 1m)", required = false)
+    public void setEvery(String every)
+    {
+        everySec = HdrHistogramUtil.parseDurationSec(every);
+    }
+
+    @Option(name = "-excludeTag", aliases = "-excT", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
+    public void addExcludeTag(String tag)
+    {
+        excludeTags.add(tag);
+    }
+
+    @Option(name = "-includeTag", aliases = "-incT", usage = "when include tags are used only the explicitly included will be compared, 'default' is a special tag for the null tag.", required = false)
+    public void addIncludeTag(String tag)
+    {
+        includeTags.add(tag);
+    }
+
+    private static File existing(String fileName)
+    {
+        File file = new File(fileName);
+        if (!file.exists() && !HdrHistogramUtil.isStdStream(file))
+        {
+            throw new IllegalArgumentException("file:" + fileName + " must exist!");
+        }
+        return file;
+    }
+
+    @Override
+    public void run()
+    {
+        if (baselineFiles.stream().filter(HdrHistogramUtil::isStdStream).count() +
+            candidateFiles.stream().filter(HdrHistogramUtil::isStdStream).count() > 1)
+        {
+            throw new IllegalArgumentException("Only one log can be read from stdin");
+        }
+        try
+        {
+            diff();
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The intervals of one side, from all its logs, in start time order.
+     */
+    private static final class Side
+    {
+        final PriorityQueue<HistogramIterator> ins =
+            new PriorityQueue<>(Comparator.comparingLong(HistogramIterator::nextStartTimeStamp));
+
+        void add(HistogramIterator in)
+        {
+            if (in.hasNext())
+            {
+                ins.add(in);
+            }
+        }
+
+        boolean hasNextBefore(long endMs)
+        {
+            return !ins.isEmpty() && ins.peek().nextStartTimeStamp() < endMs;
+        }
+
+        Histogram next()
+        {
+            HistogramIterator in = ins.poll();
+            Histogram next = in.next();
+            add(in);
+            return next;
+        }
+    }
+
+    private static final class TagDiff
+    {
+        final Histogram[] sum = new Histogram[2];
+        final Histogram[] windowSum = new Histogram[2];
+        // the interval percentiles of each side in the current window, to be paired up
+        final List<ArrayDeque<Double>> unpaired = new ArrayList<>();
+        final PairedRatios ratios = new PairedRatios();
+        long unpairedCount;
+
+        TagDiff(int numberOfSignificantValueDigits)
+        {
+            for (int side = 0; side < 2; side++)
+            {
+                sum[side] = new Histogram(numberOfSignificantValueDigits);
+                windowSum[side] = new Histogram(numberOfSignificantValueDigits);
+                unpaired.add(new ArrayDeque<>());
+            }
+        }
+    }
+
+    private static final int BASELINE = 0;
+    private static final int CANDIDATE = 1;
+
+    private void diff() throws FileNotFoundException
+    {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        Side[] sides = {new Side(), new Side()};
+        List<OrderedHistogramLogReader> readers = new ArrayList<>();
+        List<List<File>> files = new ArrayList<>();
+        files.add(baselineFiles);
+        files.add(candidateFiles);
+        for (int side = 0; side < 2; side++)
+        {
+            for (File file : files.get(side))
+            {
+                OrderedHistogramLogReader reader =
+                    new OrderedHistogramLogReader(file, start, end, this::shouldSkipTag, false, errors);
+                readers.add(reader);
+                sides[side].add(new HistogramIterator(reader, true));
+            }
+        }
+
+        long windowMs = Math.max(1, (long) (everySec * 1000));
+        Map<String, TagDiff> diffByTag = new TreeMap<>();
+        try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+        {
+            out.println("#Windows");
+            out.println("WindowStart,Tag,Percentile,Baseline,Candidate,Delta,Change%");
+            while (!sides[BASELINE].ins.isEmpty() || !sides[CANDIDATE].ins.isEmpty())
+            {
+                // skip to the window of the earliest interval left
+                long earliest = Long.MAX_VALUE;
+                for (Side side : sides)
+                {
+                    if (!side.ins.isEmpty())
+                    {
+                        earliest = Math.min(earliest, side.ins.peek().nextStartTimeStamp());
+                    }
+                }
+                long windowStart = Math.floorDiv(earliest, windowMs) * windowMs;
+                for (int side = 0; side < 2; side++)
+                {
+                    while (sides[side].hasNextBefore(windowStart + windowMs))
+                    {
+                        add(diffByTag, side, sides[side].next());
+                    }
+                }
+                closeWindow(out, windowStart, diffByTag);
+            }
+
+            out.println("#Overall");
+            out.println("Tag,Percentile,Baseline,Candidate,Delta,Change%");
+            for (Map.Entry<String, TagDiff> tagDiff : diffByTag.entrySet())
+            {
+                printPercentiles(out, tagDiff.getKey() + ",", tagDiff.getValue().sum);
+            }
+
+            out.printf("#Interval p%s ratios, candidate over baseline%n", format(pairedPercentile));
+            out.println("Tag,Pairs,Unpaired,Higher,Lower,Ratio.p5,Ratio.p25,Ratio.p50,Ratio.p75,Ratio.p95,GeoMeanRatio,PValue,Verdict");
+            for (Map.Entry<String, TagDiff> tagDiff : diffByTag.entrySet())
+            {
+                PairedRatios ratios = tagDiff.getValue().ratios;
+                out.printf("%s,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.4f,%s%n",
+                    tagDiff.getKey(), ratios.getPairs(), tagDiff.getValue().unpairedCount + ratios.getSkipped(),
+                    ratios.getHigher(), ratios.getLower(),
+                    ratios.getRatioAtPercentile(5), ratios.getRatioAtPercentile(25),
+                    ratios.getRatioAtPercentile(50), ratios.getRatioAtPercentile(75),
+                    ratios.getRatioAtPercentile(95), ratios.getGeometricMeanRatio(),
+                    ratios.getPValue(), ratios.getVerdict(alpha));
+            }
+        }
+        finally
+        {
+            for (OrderedHistogramLogReader reader : readers)
+            {
+                reader.close();
+            }
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+    }
+
+    private void add(Map<String, TagDiff> diffByTag, int side, Histogram interval)
+    {
+        String tag = (interval.getTag() == null) ? "default" : interval.getTag();
+        TagDiff diff = diffByTag.computeIfAbsent(tag, k -> new TagDiff(interval.getNumberOfSignificantValueDigits()));
+        diff.sum[side].add(interval);
+        diff.windowSum[side].add(interval);
+        if (interval.getTotalCount() != 0)
+        {
+            diff.unpaired.get(side).add((double) interval.getValueAtPercentile(pairedPercentile));
+        }
+        if (verbose)
+        {
+            System.err.print((side == BASELINE) ? "baseline, " : "candidate, ");
+            HdrHistogramUtil.logHistogramForVerbose(System.err, interval, 0, outputValueUnitRatio);
+        }
+    }
+
+    private void closeWindow(PrintStream out, long windowStart, Map<String, TagDiff> diffByTag)
+    {
+        String window = format(windowStart / 1000.0) + ",";
+        for (Map.Entry<String, TagDiff> tagDiff : diffByTag.entrySet())
+        {
+            TagDiff diff = tagDiff.getValue();
+            if (diff.windowSum[BASELINE].getTotalCount() == 0 && diff.windowSum[CANDIDATE].getTotalCount() == 0)
+            {
+                continue;
+            }
+            printPercentiles(out, window + tagDiff.getKey() + ",", diff.windowSum);
+            ArrayDeque<Double> baseline = diff.unpaired.get(BASELINE);
+            ArrayDeque<Double> candidate = diff.unpaired.get(CANDIDATE);
+            while (!baseline.isEmpty() && !candidate.isEmpty())
+            {
+                diff.ratios.add(baseline.poll(), candidate.poll());
+            }
+            diff.unpairedCount += baseline.size() + candidate.size();
+            baseline.clear();
+            candidate.clear();
+            diff.windowSum[BASELINE].reset();
+            diff.windowSum[CANDIDATE].reset();
+        }
+    }
+
+    private void printPercentiles(PrintStream out, String prefix, Histogram[] sums)
+    {
+        for (double percentile : percentiles)
+        {
+            out.print(prefix);
+            out.print(format(percentile));
+            out.print(',');
+            if (sums[BASELINE].getTotalCount() == 0 || sums[CANDIDATE].getTotalCount() == 0)
+            {
+                // one side has nothing to compare
+                out.print(sums[BASELINE].getTotalCount() == 0 ? "" : value(sums[BASELINE], percentile));
+                out.print(',');
+                out.print(sums[CANDIDATE].getTotalCount() == 0 ? "" : value(sums[CANDIDATE], percentile));
+                out.println(",,");
+                continue;
+            }
+            double baseline = sums[BASELINE].getValueAtPercentile(percentile) / outputValueUnitRatio;
+            double candidate = sums[CANDIDATE].getValueAtPercentile(percentile) / outputValueUnitRatio;
+            out.printf("%.3f,%.3f,%.3f,%.2f%n", baseline, candidate, candidate - baseline,
+                (baseline == 0.0) ? Double.NaN : 100.0 * (candidate - baseline) / baseline);
+        }
+    }
+
+    private String value(Histogram sum, double percentile)
+    {
+        return String.format("%.3f", sum.getValueAtPercentile(percentile) / outputValueUnitRatio);
+    }
+
+    private boolean shouldSkipTag(String tag)
+    {
+        String ntag = (tag == null) ? "default" : tag;
+        return excludeTags.contains(ntag) || (!includeTags.isEmpty() && !includeTags.contains(ntag));
+    }
+
+    private static String format(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -1,16 +1,57 @@
 import org.HdrHistogram.Histogram;
 import org.kohsuke.args4j.Option;
+import psy.lob.saw.ColumnarIntervalWriter;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogParseErrors;
 import psy.lob.saw.OrderedHistogramLogReader;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class HdrToCsv implements Runnable
 {
     private File inputFile;
 
+    @Option(name = "--max-errors",
+        aliases = "-me",
+        usage = "Number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines (default: -1)",
+        required = false)
+    public long maxErrors = -1;
+
+    @Option(name = "--quarantine-file",
+        aliases = "-qf",
+        usage = "Write corrupt input lines, with their byte offset, to this file",
+        required = false)
+    public String quarantineFile;
+
+    @Option(name = "--output-file",
+        aliases = "-o",
+        usage = "Write to this file rather than stdout, '-' goes to stdout",
+        required = false)
+    public String outputFile;
+
+    @Option(name = "--chunk-rows",
+        aliases = "-cr",
+        usage = "Number of rows per chunk of the columnar format (default: 65536)",
+        required = false)
+    public int chunkRows = 65536;
+
+    private Format format = Format.CSV;
+    private double[] percentiles = {50, 90, 95, 99, 99.9, 99.99};
+
+    enum Format
+    {
+        CSV, COLUMNAR
+    }
+
     public static void main(String[] args)
     {
         ParseAndRunUtil.parseParamsAndRun(args, new HdrToCsv());
@@ -18,12 +59,12 @@ public class HdrToCsv implements Runnable
 
     @Option(name = "--input-file",
         aliases = "-i",
-        usage = "Relative or absolute path to the input file to read",
+        usage = "Relative or absolute path to the input file to read, '-' reads stdin",
         required = true)
     public void setInputFile(String fileName)
     {
         File in = Paths.get(fileName).toFile();
-        if (!in.exists())
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
         {
             throw new IllegalArgumentException(
                 "Input file " + fileName + " does not exist");
@@ -31,37 +72,139 @@ public class HdrToCsv implements Runnable
         inputFile = in;
     }
 
+    @Option(name = "--format",
+        aliases = "-f",
+        usage = "Output format, csv or columnar [little endian column arrays, see README] (default: csv)",
+        required = false)
+    public void setFormat(String format)
+    {
+        try
+        {
+            this.format = Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown format:" + format +
+                ", expected one of " + Arrays.toString(Format.values()));
+        }
+    }
+
+    @Option(name = "--percentiles",
+        aliases = "-p",
+        usage = "Comma separated percentiles to output (default: 50,90,95,99,99.9,99.99)",
+        required = false)
+    public void setPercentiles(String percentileList)
+    {
+        percentiles = Arrays.stream(percentileList.split(","))
+            .mapToDouble(p -> Double.parseDouble(p.trim()))
+            .sorted()
+            .distinct()
+            .toArray();
+        Map<String, Double> percentileByName = new HashMap<>();
+        for (double percentile : percentiles)
+        {
+            if (percentile < 0.0 || percentile > 100.0)
+            {
+                throw new IllegalArgumentException("percentile must be between 0 and 100, was:" + percentile);
+            }
+            Double other = percentileByName.put(ColumnarIntervalWriter.percentileName(percentile), percentile);
+            if (other != null)
+            {
+                throw new IllegalArgumentException("percentiles " + other + " and " + percentile +
+                    " would both be named " + ColumnarIntervalWriter.percentileName(percentile));
+            }
+        }
+    }
+
     @Override
     public void run()
     {
         OrderedHistogramLogReader reader = null;
+        LogParseErrors errors;
+        PrintStream out;
         try
         {
-            reader = new OrderedHistogramLogReader(inputFile);
+            errors = LogParseErrors.create(maxErrors, quarantineFile);
+            reader = new OrderedHistogramLogReader(inputFile, 0.0, Double.MAX_VALUE, s -> false, false, errors);
+            out = HdrHistogramUtil.openOutput(outputFile);
         }
         catch (FileNotFoundException e)
         {
             throw new RuntimeException(e);
         }
+        if (format == Format.CSV)
+        {
+            writeCsv(reader, out);
+        }
+        else
+        {
+            writeColumnar(reader, out);
+        }
+        // a PrintStream swallows write errors, e.g. a full disk would leave a truncated file, and the columnar footer
+        // is only written on close
+        if (out.checkError())
+        {
+            throw new UncheckedIOException(new IOException("Failed writing the output"));
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+    }
 
-        System.out.println(
-            "#Absolute timestamp,Relative timestamp,Throughput,Min,Avg,p50,p90,p95,p99,p999,p9999,Max");
+    private void writeCsv(OrderedHistogramLogReader reader, PrintStream out)
+    {
+        out.print("#Absolute timestamp,Relative timestamp,Throughput,Min,Avg");
+        for (double percentile : percentiles)
+        {
+            out.print(",");
+            out.print(ColumnarIntervalWriter.percentileName(percentile));
+        }
+        out.println(",Max");
+        long[] values = new long[percentiles.length];
         while (reader.hasNext())
         {
             Histogram interval = (Histogram) reader.nextIntervalHistogram();
-            System.out.printf(Locale.US,
-                "%.3f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d%n",
+            if (interval == null)
+            {
+                continue;
+            }
+            out.printf(Locale.US,
+                "%.3f,%d,%d,%d,%d",
                 interval.getStartTimeStamp() / 1000.0,
                 interval.getStartTimeStamp() / 1000 - (long) reader.getStartTimeSec(),
                 interval.getTotalCount(), interval.getMinValue(),
-                (long) interval.getMean(),
-                interval.getValueAtPercentile(50),
-                interval.getValueAtPercentile(90),
-                interval.getValueAtPercentile(95),
-                interval.getValueAtPercentile(99),
-                interval.getValueAtPercentile(99.9),
-                interval.getValueAtPercentile(99.99),
-                interval.getMaxValue());
+                (long) interval.getMean());
+            HdrHistogramUtil.valuesAtPercentiles(interval, percentiles, values);
+            for (long value : values)
+            {
+                out.print(",");
+                out.print(value);
+            }
+            out.print(",");
+            out.println(interval.getMaxValue());
+        }
+        out.close();
+    }
+
+    private void writeColumnar(OrderedHistogramLogReader reader, PrintStream out)
+    {
+        try (ColumnarIntervalWriter writer = new ColumnarIntervalWriter(out, percentiles, chunkRows))
+        {
+            while (reader.hasNext())
+            {
+                Histogram interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                writer.write(interval);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.ExponentialBuckets;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.Heatmap;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.LogQuery;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Exports a latency heatmap per tag, the count of values in each exponential value bucket (as the csve summary) for
+ * each period of time, as csv or as a compact binary matrix for plotting. The counts are taken as the logs are read,
+ * files are read in parallel, and the columns are widened as needed to keep their number within a maximum, so memory
+ * does not grow with the length of the logs.
+ * <p>
+ * The binary format is big endian:
+ * <pre>
+ * "HDRHEAT1" (8 bytes)
+ * column width in seconds (double)
+ * bucket count B (int), B bucket starts in output units (long)
+ * tag count (int), then per tag:
+ *   tag (modified UTF-8, as DataOutput.writeUTF)
+ *   first column index (long), column i starts at i * column width seconds
+ *   column count C (int)
+ *   C * B counts, column by column, each an unsigned LEB128 varint
+ * </pre>
+ */
+public class HeatmapHistogramLogs implements Runnable
+{
+    private static final byte[] MAGIC = "HDRHEAT1".getBytes(StandardCharsets.US_ASCII);
+
+    enum Format
+    {
+        CSV, BIN
+    }
+
+    @Option(name = "-start", aliases = "-s", usage = "relative log start time in seconds, (default: 0.0)", required = false)
+    public double start = 0.0;
+    @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
+    public double end = Double.MAX_VALUE;
+    @Option(name = "-absoluteRange", aliases = "-ar", usage = "start and end are absolute times in seconds since epoch rather than relative to each log start, columns start on the epoch rather than each log start, (default: false)", required = false)
+    public boolean absoluteRange = false;
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+    @Option(name = "-outputValueUnitRatio", aliases = "-ovr", usage = "output value unit ratio, (default: 1.0)", required = false)
+    public double outputValueUnitRatio = 1.0;
+    @Option(name = "-outputBucketSize", aliases = "-obs", usage = "first value bucket size, in output units, buckets after it double in size, (default: 100)", required = false)
+    public long outputBucketSize = 100;
+    @Option(name = "-maxColumns", aliases = "-mc", usage = "maximum number of time columns, columns are widened by powers of 2 to stay within it, (default: 1000)", required = false)
+    public int maxColumns = 1000;
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+    @Option(name = "-readThreads", aliases = "-rts", usage = "number of files read in parallel, (default: number of processors)", required = false)
+    public int readThreads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private final Set<String> excludeTags = new HashSet<>();
+    private final Set<String> includeTags = new HashSet<>();
+    private Format format = Format.CSV;
+    private double resolutionSec = 1.0;
+    private File inputPath = new File(".");
+    private final Set<File> inputFiles = new HashSet<>();
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new HeatmapHistogramLogs());
+    }
+
+    @Option(name = "-resolution", aliases = "-res", usage = "narrowest time column width, e.g. 1s or 1m, (default: 1s)", required = false)
+    public void setResolution(String resolution)
+    {
+        resolutionSec = HdrHistogramUtil.parseDurationSec(resolution);
+    }
+
+    @Option(name = "-format", aliases = "-fmt", usage = "output format, csv or bin [compact binary matrix], (default: csv)", required = false)
+    public void setFormat(String format)
+    {
+        try
+        {
+            this.format = Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown format:" + format +
+                ", expected one of " + Arrays.toString(Format.values()));
+        }
+    }
+
+    @Option(name = "-excludeTag", aliases = "-excT", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
+    public void addExcludeTag(String tag)
+    {
+        excludeTags.add(tag);
+    }
+
+    @Option(name = "-includeTag", aliases = "-incT", usage = "when include tags are used only the explicitly included will be exported, 'default' is a special tag for the null tag.", required = false)
+    public void addIncludeTag(String tag)
+    {
+        includeTags.add(tag);
+    }
+
+    @Option(name = "-inputPath", aliases = "-ip", usage = "set path to use for input files, defaults to current folder", required = false)
+    public void setInputPath(String inputFolderName)
+    {
+        inputPath = new File(inputFolderName);
+        if (!inputPath.exists())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must exist!");
+        }
+        if (!inputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must be a directory!");
+        }
+    }
+
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp, '-' reads stdin", required = false)
+    public void addInputFile(String inputFile)
+    {
+        if (HdrHistogramUtil.STD_STREAM.equals(inputFile))
+        {
+            inputFiles.add(new File(inputFile));
+            return;
+        }
+        final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
+        inputFiles.addAll(Arrays.asList(inputPath.listFiles(pathname -> predicate.test(pathname.getName()))));
+    }
+
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute, '-' reads stdin", required = false)
+    public void addInputFileAbs(String inputFileName)
+    {
+        File in = new File(inputFileName);
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
+        {
+            throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
+        }
+        inputFiles.add(in);
+    }
+
+    @Override
+    public void run()
+    {
+        if (inputFiles.isEmpty())
+        {
+            throw new IllegalArgumentException("Error: please specify inputs");
+        }
+        if (maxColumns < 2)
+        {
+            throw new IllegalArgumentException("maxColumns must be at least 2, was:" + maxColumns);
+        }
+        if (verbose)
+        {
+            System.err.println("Reading files: " + inputFiles);
+        }
+        try
+        {
+            exportHeatmaps();
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void exportHeatmaps() throws FileNotFoundException
+    {
+        ExponentialBuckets buckets = new ExponentialBuckets(outputBucketSize, outputValueUnitRatio);
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        LogQuery query = LogQuery.from(inputFiles)
+            .groupBy(LogQuery.GroupBy.TAG)
+            .excludeTags(excludeTags.toArray(new String[0]))
+            .errors(errors);
+        if (!includeTags.isEmpty())
+        {
+            query.tags(includeTags.toArray(new String[0]));
+        }
+        if (absoluteRange)
+        {
+            query.absoluteRange(start, end);
+        }
+        else
+        {
+            query.range(start, end);
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, readThreads));
+        Map<String, Heatmap> heatmapByTag;
+        try
+        {
+            heatmapByTag = query.executor(pool).collect(
+                first -> new Heatmap(buckets, resolutionSec, maxColumns),
+                (heatmap, interval, offsetSec) -> heatmap.add(interval, offsetSec),
+                Heatmap::add);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+
+        // line all tags up on the same columns and buckets
+        double columnWidthSec = resolutionSec;
+        int bucketCount = 0;
+        for (Heatmap heatmap : heatmapByTag.values())
+        {
+            columnWidthSec = Math.max(columnWidthSec, heatmap.getColumnWidthSec());
+            bucketCount = Math.max(bucketCount, heatmap.getBucketCount());
+        }
+        for (Heatmap heatmap : heatmapByTag.values())
+        {
+            heatmap.widenTo(columnWidthSec);
+        }
+        if (verbose)
+        {
+            System.err.printf("Columns of %ss, %d buckets, %d tags%n",
+                format(columnWidthSec), bucketCount, heatmapByTag.size());
+        }
+        try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+        {
+            if (format == Format.CSV)
+            {
+                printCsv(out, heatmapByTag, buckets, columnWidthSec, bucketCount);
+            }
+            else
+            {
+                writeBinary(out, heatmapByTag, buckets, columnWidthSec, bucketCount);
+            }
+            // a PrintStream swallows write errors, e.g. a full disk would leave a truncated heatmap
+            if (out.checkError())
+            {
+                throw new UncheckedIOException(new IOException("Failed writing the heatmap"));
+            }
+        }
+    }
+
+    private static void printCsv(
+        PrintStream out,
+        Map<String, Heatmap> heatmapByTag,
+        ExponentialBuckets buckets,
+        double columnWidthSec,
+        int bucketCount)
+    {
+        out.printf("#Heatmap: columns of %ss, counts per value bucket start%n", format(columnWidthSec));
+        out.print("Tag,ColumnStart");
+        for (int b = 0; b < bucketCount; b++)
+        {
+            out.print(",");
+            out.print(buckets.start(b));
+        }
+        out.println();
+        for (Map.Entry<String, Heatmap> tagHeatmap : heatmapByTag.entrySet())
+        {
+            Heatmap heatmap = tagHeatmap.getValue();
+            long first = heatmap.getFirstColumn();
+            for (long column = first; column < first + heatmap.getColumnCount(); column++)
+            {
+                long[] counts = heatmap.getCounts(column);
+                out.print(tagHeatmap.getKey());
+                out.print(",");
+                out.print(format(column * columnWidthSec));
+                for (int b = 0; b < bucketCount; b++)
+                {
+                    out.print(",");
+                    out.print(counts[b]);
+                }
+                out.println();
+            }
+        }
+    }
+
+    private static void writeBinary(
+        PrintStream stream,
+        Map<String, Heatmap> heatmapByTag,
+        ExponentialBuckets buckets,
+        double columnWidthSec,
+        int bucketCount)
+    {
+        try
+        {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.write(MAGIC);
+            out.writeDouble(columnWidthSec);
+            out.writeInt(bucketCount);
+            for (int b = 0; b < bucketCount; b++)
+            {
+                out.writeLong(buckets.start(b));
+            }
+            out.writeInt(heatmapByTag.size());
+            for (Map.Entry<String, Heatmap> tagHeatmap : heatmapByTag.entrySet())
+            {
+                Heatmap heatmap = tagHeatmap.getValue();
+                out.writeUTF(tagHeatmap.getKey());
+                out.writeLong(heatmap.getFirstColumn());
+                out.writeInt(heatmap.getColumnCount());
+                long first = heatmap.getFirstColumn();
+                for (long column = first; column < first + heatmap.getColumnCount(); column++)
+                {
+                    long[] counts = heatmap.getCounts(column);
+                    for (int b = 0; b < bucketCount; b++)
+                    {
+                        writeVarLong(out, counts[b]);
+                    }
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static String format(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
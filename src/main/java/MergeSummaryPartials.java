@@ -0,0 +1,56 @@
+import psy.lob.saw.PartialSummary;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Merges partial summaries, written by {@code summarize -emitPartial}, into the same output a single summarize over
+ * all the original logs would produce. The input options select partial files rather than logs, the time range,
+ * window, sample and steady state options are rejected as the intervals were selected when the partials were
+ * summarized.
+ */
+public class MergeSummaryPartials extends SummarizeHistogramLogs
+{
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new MergeSummaryPartials());
+    }
+
+    @Override
+    public void run()
+    {
+        // options selecting or sampling intervals were applied when the partials were summarized
+        if (steadyState)
+        {
+            throw new IllegalArgumentException("The steady state is found when summarizing the partials, it does not apply to merging them");
+        }
+        if (start != 0.0 || end != Double.MAX_VALUE || absoluteRange || latenessSec != 0.0)
+        {
+            throw new IllegalArgumentException("The time range is selected when summarizing the partials, it does not apply to merging them");
+        }
+        if (sample != 1.0)
+        {
+            throw new IllegalArgumentException("Partials can not be sampled, they are merged in full");
+        }
+        if (hasWindows())
+        {
+            throw new IllegalArgumentException("Windows are selected when summarizing the partials, they do not apply to merging them");
+        }
+        super.run();
+    }
+
+    @Override
+    PartialSummary summarize() throws FileNotFoundException
+    {
+        PartialSummary summary = new PartialSummary();
+        for (File inputFile : inputFiles)
+        {
+            if (verbose)
+            {
+                System.out.println("Merging partial: " + inputFile.getName());
+            }
+            summary.add(PartialSummary.read(inputFile, ignoreTag, tag -> shouldSkipTag(tag)));
+        }
+        return summary;
+    }
+}
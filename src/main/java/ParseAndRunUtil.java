@@ -3,6 +3,9 @@ import org.kohsuke.args4j.CmdLineParser;
 
 class ParseAndRunUtil
 {
+    // set on the threads running batch jobs, so that a job with bad arguments fails rather than prints the usage
+    private static final ThreadLocal<Boolean> FAIL_ON_BAD_ARGUMENTS = ThreadLocal.withInitial(() -> false);
+
     static void parseParamsAndRun(String[] args, Runnable app)
     {
         CmdLineParser parser = new CmdLineParser(app);
@@ -13,8 +16,22 @@ class ParseAndRunUtil
         }
         catch (CmdLineException | IllegalArgumentException e)
         {
+            if (FAIL_ON_BAD_ARGUMENTS.get())
+            {
+                throw (e instanceof IllegalArgumentException) ?
+                    (IllegalArgumentException) e : new IllegalArgumentException(e.getMessage(), e);
+            }
             System.out.println(e.getMessage());
             parser.printUsage(System.out);
         }
     }
+
+    /**
+     * @param fail true to throw an IllegalArgumentException for bad arguments on this thread, rather than print the
+     *             usage
+     */
+    static void failOnBadArguments(boolean fail)
+    {
+        FAIL_ON_BAD_ARGUMENTS.set(fail);
+    }
 }
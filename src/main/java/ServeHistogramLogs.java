@@ -0,0 +1,245 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogIndex;
+import psy.lob.saw.PartialSummary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the logs in a directory into a {@link LogIndex} once, keeps it up to date as logs are appended to or added,
+ * and answers summary queries over HTTP on the loopback interface. E.g.:
+ * <pre>
+ * curl 'http://localhost:8080/summary?start=200&amp;end=300&amp;tag=READ&amp;percentiles=50,99,99.9'
+ * </pre>
+ */
+public class ServeHistogramLogs implements Runnable
+{
+    @Option(name = "-inputFile", aliases = "-if", usage = "serve the input hdr logs in input path matching this regexp, (default: all files)", required = false)
+    public String inputFile = ".*";
+
+    @Option(name = "-port", aliases = "-p", usage = "port to listen on, (default: 8080)", required = false)
+    public int port = 8080;
+
+    @Option(name = "-pollMs", aliases = "-pms", usage = "how often to check for new and appended logs in milliseconds, (default: 1000)", required = false)
+    public long pollMs = 1000;
+
+    @Option(name = "-threads", aliases = "-t", usage = "number of threads serving queries, (default: available processors)", required = false)
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+
+    private File inputPath = new File(".");
+    private Map<String, String> reportedFailures = new HashMap<>();
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new ServeHistogramLogs());
+    }
+
+    @Option(name = "-inputPath", aliases = "-ip", usage = "set path to use for input files, defaults to current folder", required = false)
+    public void setInputPath(String inputFolderName)
+    {
+        inputPath = new File(inputFolderName);
+        if (!inputPath.exists())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must exist!");
+        }
+        if (!inputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must be a directory!");
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        LogIndex index = new LogIndex(inputPath, Pattern.compile(inputFile).asPredicate());
+        try
+        {
+            long start = System.nanoTime();
+            int intervals = index.refresh();
+            reportFailures(index);
+            System.out.printf("Indexed %d intervals from %d files in %d ms%n",
+                intervals, index.fileNames().size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/summary", new QueryHandler(exchange -> summary(index, exchange)));
+            server.createContext("/tags", new QueryHandler(exchange -> String.join("\n", index.tags()) + "\n"));
+            server.createContext("/files", new QueryHandler(exchange -> String.join("\n", index.fileNames()) + "\n"));
+            server.setExecutor(Executors.newFixedThreadPool(threads));
+            server.start();
+            System.out.printf("Serving %s on http://%s:%d/summary%n",
+                inputPath.getAbsolutePath(), server.getAddress().getHostString(), server.getAddress().getPort());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor();
+        watcher.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                int added = index.refresh();
+                reportFailures(index);
+                if (verbose && added != 0)
+                {
+                    System.out.println("Indexed " + added + " new intervals");
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Report the files failing to read, once until they read again or fail differently.
+     */
+    private void reportFailures(LogIndex index)
+    {
+        for (Map.Entry<String, String> failure : index.failures().entrySet())
+        {
+            if (!failure.getValue().equals(reportedFailures.get(failure.getKey())))
+            {
+                System.err.println("Failed to index " + failure.getKey() + ", skipping it: " + failure.getValue());
+            }
+        }
+        reportedFailures = new HashMap<>(index.failures());
+    }
+
+    /**
+     * Query parameters: start, end (seconds, relative to each log start unless absolute=true), tag (include, may be
+     * repeated), excludeTag (may be repeated), ignoreTag, ignoreTimeStamps, outputValueUnitRatio and percentiles
+     * (comma separated).
+     */
+    private static String summary(LogIndex index, HttpExchange exchange) throws UnsupportedEncodingException
+    {
+        Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        double start = Double.parseDouble(param(params, "start", "0"));
+        double end = Double.parseDouble(param(params, "end", String.valueOf(Double.MAX_VALUE)));
+        boolean absolute = Boolean.parseBoolean(param(params, "absolute", "false"));
+        boolean ignoreTag = Boolean.parseBoolean(param(params, "ignoreTag", "false"));
+        boolean ignoreTimeStamps = Boolean.parseBoolean(param(params, "ignoreTimeStamps", "false"));
+        double outputValueUnitRatio = Double.parseDouble(param(params, "outputValueUnitRatio", "1.0"));
+        double[] percentiles = HdrHistogramUtil.SUMMARY_PERCENTILES;
+        if (params.containsKey("percentiles"))
+        {
+            percentiles = params.get("percentiles").stream()
+                .flatMap(p -> Pattern.compile(",").splitAsStream(p))
+                .mapToDouble(Double::parseDouble)
+                .toArray();
+        }
+        Set<String> includeTags = new HashSet<>(params.getOrDefault("tag", new ArrayList<>()));
+        Set<String> excludeTags = new HashSet<>(params.getOrDefault("excludeTag", new ArrayList<>()));
+        Predicate<String> shouldSkipTag = tag ->
+        {
+            tag = (tag == null) ? "default" : tag;
+            return excludeTags.contains(tag) || (!includeTags.isEmpty() && !includeTags.contains(tag));
+        };
+
+        PartialSummary summary = index.query(start, end, absolute, shouldSkipTag, ignoreTag);
+        long period = ignoreTimeStamps ? summary.getIntervalLengthSum() : summary.getPeriod();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        for (Histogram sum : summary.sumByTag().values())
+        {
+            HdrHistogramUtil.printPercentiles(out, sum, period, percentiles, outputValueUnitRatio);
+        }
+        out.flush();
+        return bytes.toString();
+    }
+
+    private static String param(Map<String, List<String>> params, String name, String defaultValue)
+    {
+        List<String> values = params.get(name);
+        return (values == null || values.isEmpty()) ? defaultValue : values.get(values.size() - 1);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException
+    {
+        Map<String, List<String>> params = new HashMap<>();
+        if (query == null || query.isEmpty())
+        {
+            return params;
+        }
+        for (String pair : query.split("&"))
+        {
+            int split = pair.indexOf('=');
+            String name = URLDecoder.decode(split < 0 ? pair : pair.substring(0, split), "UTF-8");
+            String value = URLDecoder.decode(split < 0 ? "" : pair.substring(split + 1), "UTF-8");
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private interface Query
+    {
+        String answer(HttpExchange exchange) throws Exception;
+    }
+
+    private static class QueryHandler implements HttpHandler
+    {
+        private final Query query;
+
+        QueryHandler(Query query)
+        {
+            this.query = query;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            int status = 200;
+            String response;
+            try
+            {
+                response = query.answer(exchange);
+            }
+            catch (IllegalArgumentException e)
+            {
+                status = 400;
+                response = "Bad query: " + e.getMessage() + "\n";
+            }
+            catch (Exception e)
+            {
+                status = 500;
+                response = "Failed: " + e + "\n";
+            }
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody())
+            {
+                os.write(body);
+            }
+        }
+    }
+}
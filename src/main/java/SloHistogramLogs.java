@@ -0,0 +1,330 @@
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.LogQuery;
+import psy.lob.saw.ThresholdCounts;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Checks logs against a service level objective, e.g. 99% of requests within 50ms, per tag. For each threshold the
+ * values above it are counted per window and overall, and reported as the compliance (the fraction of values within
+ * the threshold) and the burn rate (the fraction above it over the fraction the objective allows), along with the
+ * worst windows. The intervals are counted as they are read, files are read in parallel, and only the counts per window
+ * are kept.
+ */
+public class SloHistogramLogs implements Runnable
+{
+    @Option(name = "-start", aliases = "-s", usage = "relative log start time in seconds, (default: 0.0)", required = false)
+    public double start = 0.0;
+    @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
+    public double end = Double.MAX_VALUE;
+    @Option(name = "-absoluteRange", aliases = "-ar", usage = "start and end are absolute times in seconds since epoch rather than relative to each log start, windows start on the epoch rather than each log start, (default: false)", required = false)
+    public boolean absoluteRange = false;
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+    @Option(name = "-objective", aliases = "-obj", usage = "the fraction of values to be within each threshold, (default: 0.99)", required = false)
+    public double objective = 0.99;
+    @Option(name = "-outputValueUnitRatio", aliases = "-ovr", usage = "output value unit ratio, thresholds are given in output units, e.g. 1000000 for thresholds in ms when values are logged in ns, (default: 1.0)", required = false)
+    public double outputValueUnitRatio = 1.0;
+    @Option(name = "-worstWindows", aliases = "-ww", usage = "number of worst windows to report per tag and threshold, (default: 5)", required = false)
+    public int worstWindows = 5;
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+    @Option(name = "-windowsFile", aliases = "-wf", usage = "write the compliance of every window, and the cumulative compliance up to it, as csv to this file, '-' goes to sysout, (default: none)", required = false)
+    public String windowsFile;
+    @Option(name = "-readThreads", aliases = "-rts", usage = "number of files read in parallel, (default: number of processors)", required = false)
+    public int readThreads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private final Set<String> excludeTags = new HashSet<>();
+    private final Set<String> includeTags = new HashSet<>();
+    private final TreeSet<Double> thresholds = new TreeSet<>();
+    private double everySec = 60.0;
+    private File inputPath = new File(".");
+    private final Set<File> inputFiles = new HashSet<>();
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new SloHistogramLogs());
+    }
+
+    @Option(name = "-threshold", aliases = "-t", usage = "add a threshold, in output units, to count the values above, takes a comma separated list, e.g. 10,50", required = true)
+    public void addThreshold(String thresholdList)
+    {
+        for (String threshold : thresholdList.split(","))
+        {
+            double value = Double.parseDouble(threshold.trim());
+            if (!(value >= 0.0))
+            {
+                throw new IllegalArgumentException("threshold must not be negative, was:" + threshold);
+            }
+            thresholds.add(value);
+        }
+    }
+
+    @Option(name = "-every", aliases = "-ev", usage = "window length, e.g. 60s or 5m, (default: 1m)", required = false)
+    public void setEvery(String every)
+    {
+        everySec = HdrHistogramUtil.parseDurationSec(every);
+    }
+
+    @Option(name = "-excludeTag", aliases = "-excT", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
+    public void addExcludeTag(String tag)
+    {
+        excludeTags.add(tag);
+    }
+
+    @Option(name = "-includeTag", aliases = "-incT", usage = "when include tags are used only the explicitly included will be checked, 'default' is a special tag for the null tag.", required = false)
+    public void addIncludeTag(String tag)
+    {
+        includeTags.add(tag);
+    }
+
+    @Option(name = "-inputPath", aliases = "-ip", usage = "set path to use for input files, defaults to current folder", required = false)
+    public void setInputPath(String inputFolderName)
+    {
+        inputPath = new File(inputFolderName);
+        if (!inputPath.exists())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must exist!");
+        }
+        if (!inputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must be a directory!");
+        }
+    }
+
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp, '-' reads stdin", required = false)
+    public void addInputFile(String inputFile)
+    {
+        if (HdrHistogramUtil.STD_STREAM.equals(inputFile))
+        {
+            inputFiles.add(new File(inputFile));
+            return;
+        }
+        final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
+        inputFiles.addAll(Arrays.asList(inputPath.listFiles(pathname -> predicate.test(pathname.getName()))));
+    }
+
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute, '-' reads stdin", required = false)
+    public void addInputFileAbs(String inputFileName)
+    {
+        File in = new File(inputFileName);
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
+        {
+            throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
+        }
+        inputFiles.add(in);
+    }
+
+    @Override
+    public void run()
+    {
+        if (inputFiles.isEmpty())
+        {
+            throw new IllegalArgumentException("Error: please specify inputs");
+        }
+        if (!(objective > 0.0 && objective < 1.0))
+        {
+            throw new IllegalArgumentException("objective must be between 0 and 1, was:" + objective);
+        }
+        // thresholds in recorded units, values equivalent to a threshold count as within it
+        long[] recordedThresholds = new long[thresholds.size()];
+        int i = 0;
+        for (double threshold : thresholds)
+        {
+            recordedThresholds[i++] = (long) (threshold * outputValueUnitRatio);
+        }
+        if (verbose)
+        {
+            System.err.println("Reading files: " + inputFiles);
+        }
+        try
+        {
+            checkAndPrint(recordedThresholds);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkAndPrint(long[] recordedThresholds) throws FileNotFoundException
+    {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        LogQuery query = LogQuery.from(inputFiles)
+            .groupBy(LogQuery.GroupBy.TAG, LogQuery.GroupBy.window(everySec))
+            .excludeTags(excludeTags.toArray(new String[0]))
+            .errors(errors);
+        if (!includeTags.isEmpty())
+        {
+            query.tags(includeTags.toArray(new String[0]));
+        }
+        if (absoluteRange)
+        {
+            query.absoluteRange(start, end);
+        }
+        else
+        {
+            query.range(start, end);
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, readThreads));
+        Map<String, ThresholdCounts> countsByKey;
+        try
+        {
+            countsByKey = query.executor(pool).collect(
+                first -> new ThresholdCounts(recordedThresholds),
+                ThresholdCounts::add,
+                ThresholdCounts::add);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+
+        // keys are ordered by tag then window start
+        Map<String, List<Window>> windowsByTag = new LinkedHashMap<>();
+        for (Map.Entry<String, ThresholdCounts> counts : countsByKey.entrySet())
+        {
+            String key = counts.getKey();
+            int split = key.lastIndexOf(',');
+            windowsByTag.computeIfAbsent(key.substring(0, split), tag -> new ArrayList<>())
+                .add(new Window(key.substring(split + 1), counts.getValue()));
+        }
+        try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+        {
+            printReport(out, windowsByTag);
+        }
+        if (windowsFile != null)
+        {
+            try (PrintStream out = HdrHistogramUtil.openOutput(windowsFile))
+            {
+                printWindows(out, windowsByTag);
+            }
+        }
+    }
+
+    private static final class Window
+    {
+        final String start;
+        final ThresholdCounts counts;
+
+        Window(String start, ThresholdCounts counts)
+        {
+            this.start = start;
+            this.counts = counts;
+        }
+    }
+
+    private void printReport(PrintStream out, Map<String, List<Window>> windowsByTag)
+    {
+        out.printf("#Objective: %s of values within each threshold, windows of %ss%n",
+            format(objective), format(everySec));
+        out.println("Tag,Threshold,Count,Above,Compliance,BurnRate,Windows,BreachedWindows");
+        for (Map.Entry<String, List<Window>> tagWindows : windowsByTag.entrySet())
+        {
+            ThresholdCounts overall = null;
+            for (Window window : tagWindows.getValue())
+            {
+                overall = (overall == null) ? window.counts.copy() : overall.add(window.counts);
+            }
+            int t = 0;
+            for (double threshold : thresholds)
+            {
+                int breached = 0;
+                for (Window window : tagWindows.getValue())
+                {
+                    if (window.counts.getCompliance(t) < objective)
+                    {
+                        breached++;
+                    }
+                }
+                out.printf("%s,%s,%d,%d,%.6f,%.3f,%d,%d%n",
+                    tagWindows.getKey(), format(threshold), overall.getTotal(), overall.getAbove(t),
+                    overall.getCompliance(t), overall.getBurnRate(t, objective),
+                    tagWindows.getValue().size(), breached);
+                t++;
+            }
+        }
+        if (worstWindows <= 0)
+        {
+            return;
+        }
+        out.println("#Worst windows");
+        out.println("Tag,Threshold,WindowStart,Count,Above,Compliance,BurnRate");
+        for (Map.Entry<String, List<Window>> tagWindows : windowsByTag.entrySet())
+        {
+            int t = 0;
+            for (double threshold : thresholds)
+            {
+                final int index = t++;
+                tagWindows.getValue().stream()
+                    .filter(window -> window.counts.getAbove(index) != 0)
+                    .sorted(Comparator.comparingDouble(window -> window.counts.getCompliance(index)))
+                    .limit(worstWindows)
+                    .forEach(window -> out.printf("%s,%s,%s,%d,%d,%.6f,%.3f%n",
+                        tagWindows.getKey(), format(threshold), window.start, window.counts.getTotal(),
+                        window.counts.getAbove(index), window.counts.getCompliance(index),
+                        window.counts.getBurnRate(index, objective)));
+            }
+        }
+    }
+
+    private void printWindows(PrintStream out, Map<String, List<Window>> windowsByTag)
+    {
+        out.println("Tag,Threshold,WindowStart,Count,Above,Compliance,BurnRate,CumulativeCompliance,CumulativeBurnRate");
+        for (Map.Entry<String, List<Window>> tagWindows : windowsByTag.entrySet())
+        {
+            int t = 0;
+            for (double threshold : thresholds)
+            {
+                ThresholdCounts cumulative = null;
+                for (Window window : tagWindows.getValue())
+                {
+                    cumulative = (cumulative == null) ? window.counts.copy() : cumulative.add(window.counts);
+                    out.printf("%s,%s,%s,%d,%d,%.6f,%.3f,%.6f,%.3f%n",
+                        tagWindows.getKey(), format(threshold), window.start, window.counts.getTotal(),
+                        window.counts.getAbove(t), window.counts.getCompliance(t),
+                        window.counts.getBurnRate(t, objective), cumulative.getCompliance(t),
+                        cumulative.getBurnRate(t, objective));
+                }
+                t++;
+            }
+        }
+    }
+
+    private static String format(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
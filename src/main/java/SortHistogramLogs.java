@@ -0,0 +1,93 @@
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.LogSorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Sorts the intervals of a log by start time, for logs written out of order. The other tools expect logs to be in
+ * order, a log is sorted once and then processed as usual.
+ */
+public class SortHistogramLogs implements Runnable
+{
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+
+    @Option(name = "-maxMemoryMb", aliases = "-mem", usage = "cap on the memory used to hold log lines in MB, larger logs are sorted in runs spilled to temporary files, (default: 256)", required = false)
+    public long maxMemoryMb = 256;
+
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private File inputFile;
+    private File tmpDir;
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new SortHistogramLogs());
+    }
+
+    @Option(name = "-inputFile", aliases = "-if", usage = "set the input hdr log, by path relative to working dir or absolute, '-' reads stdin", required = true)
+    public void setInputFile(String inputFileName)
+    {
+        inputFile = new File(inputFileName);
+        if (!inputFile.exists() && !HdrHistogramUtil.isStdStream(inputFile))
+        {
+            throw new IllegalArgumentException("inputFile:" + inputFileName + " must exist!");
+        }
+    }
+
+    @Option(name = "-tmpDir", aliases = "-tmp", usage = "set the folder runs are spilled to, (default: the system temporary folder)", required = false)
+    public void setTmpDir(String tmpDirName)
+    {
+        tmpDir = new File(tmpDirName);
+        if (!tmpDir.isDirectory())
+        {
+            throw new IllegalArgumentException("tmpDir:" + tmpDirName + " must be a directory!");
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+            LogSorter sorter = new LogSorter(maxMemoryMb * 1024 * 1024, tmpDir, errors);
+            String source = HdrHistogramUtil.isStdStream(inputFile) ? "stdin" : inputFile.getName();
+            try (InputStream in = HdrHistogramUtil.openInput(inputFile);
+                 PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+            {
+                sorter.sort(in, source, out);
+                if (out.checkError())
+                {
+                    throw new IOException("Failed writing the sorted log");
+                }
+            }
+            if (verbose)
+            {
+                System.err.println("Sorted " + source + ((sorter.getSpilledRuns() == 0) ?
+                    " in memory" : " in " + sorter.getSpilledRuns() + " spilled runs"));
+            }
+            errors.close();
+            if (errors.getTotal() != 0)
+            {
+                errors.printCounts(System.err);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
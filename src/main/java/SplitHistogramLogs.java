@@ -2,13 +2,17 @@ import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramLogWriter;
 import org.kohsuke.args4j.Option;
 import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.LogWriterPool;
 import psy.lob.saw.OrderedHistogramLogReader;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import static psy.lob.saw.HdrHistogramUtil.logHistogramForVerbose;
@@ -23,6 +27,28 @@ public class SplitHistogramLogs implements Runnable
 
     @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
     public boolean verbose = false;
+
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    @Option(name = "-threads", aliases = "-t", usage = "number of threads encoding the output logs, (default: available processors)", required = false)
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-maxOpenFiles", aliases = "-mof", usage = "cap on the number of output logs open at any time, logs are closed and reopened as needed, at least one per thread, (default: 256)", required = false)
+    public int maxOpenFiles = 256;
+
+    @Option(name = "-splitBy", aliases = "-by", usage = "split into a log per: tag, time chunk, or tag and time chunk, (default: tag)", required = false)
+    public SplitBy splitBy = SplitBy.TAG;
+
+    private static final DateTimeFormatter CHUNK_FORMAT =
+        DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    @Option(name = "-outputFile", aliases = "-of", usage = "write the selected intervals, keeping their tags, to this single log rather than a log per tag or time chunk, '-' for sysout, (default: none)", required = false)
+    public String outputFile;
+
+    private double chunkSec = 3600.0;
     private File inputPath = new File(".");
     private File inputFile;
     private Set<String> excludeTags = new HashSet<>();
@@ -47,9 +73,14 @@ public class SplitHistogramLogs implements Runnable
         }
     }
 
-    @Option(name = "-inputFile", aliases = "-if", usage = "set the input hdr log from input path", required = true)
+    @Option(name = "-inputFile", aliases = "-if", usage = "set the input hdr log from input path, '-' reads stdin", required = true)
     public void setInputFile(String inputFileName)
     {
+        if (HdrHistogramUtil.STD_STREAM.equals(inputFileName))
+        {
+            inputFile = new File(inputFileName);
+            return;
+        }
         inputFile = new File(inputPath, inputFileName);
         if (!inputFile.exists())
         {
@@ -63,6 +94,16 @@ public class SplitHistogramLogs implements Runnable
 
     }
 
+    @Option(name = "-chunk", aliases = "-c", usage = "time chunk length when splitting by time, e.g. 15m, 1h or 1d, chunks are aligned to whole multiples of the length since epoch, (default: 1h)", required = false)
+    public void setChunk(String chunk)
+    {
+        chunkSec = HdrHistogramUtil.parseDurationSec(chunk);
+        if (chunkSec < 1.0)
+        {
+            throw new IllegalArgumentException("chunk must be at least 1 second, was:" + chunk);
+        }
+    }
+
     @Option(name = "-excludeTag", aliases = "-et", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
     public void addExcludeTag(String tag)
     {
@@ -78,22 +119,31 @@ public class SplitHistogramLogs implements Runnable
     @Override
     public void run()
     {
+        // keep stdout for the log when it's written there
+        PrintStream log = HdrHistogramUtil.STD_STREAM.equals(outputFile) ? System.err : System.out;
         if (verbose)
         {
             String absolutePath = inputPath.getAbsolutePath();
-            String name = inputFile.getName();
+            String name = inputName();
             if (end != Double.MAX_VALUE)
             {
-                System.out.printf("start:%.2f end:%.2f path:%s file:%s \n", start, end, absolutePath, name);
+                log.printf("start:%.2f end:%.2f path:%s file:%s \n", start, end, absolutePath, name);
             }
             else
             {
-                System.out.printf("start:%.2f end: MAX path:%s file:%s \n", start, absolutePath, name);
+                log.printf("start:%.2f end: MAX path:%s file:%s \n", start, absolutePath, name);
             }
         }
         try
         {
-            split();
+            if (outputFile != null)
+            {
+                filter(log);
+            }
+            else
+            {
+                split();
+            }
         }
         catch (Exception e)
         {
@@ -103,34 +153,104 @@ public class SplitHistogramLogs implements Runnable
 
     private void split() throws FileNotFoundException
     {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
         OrderedHistogramLogReader reader = new OrderedHistogramLogReader(
             inputFile,
             start,
             end,
-            tag -> shouldSkipTag(tag));
-        Map<String, HistogramLogWriter> writerByTag = new HashMap<>();
-        Histogram interval;
-        int i = 0;
-        while (reader.hasNext())
+            tag -> shouldSkipTag(tag),
+            false,
+            errors);
+        LogWriterPool writers = new LogWriterPool(threads, Math.max(threads, maxOpenFiles));
+        String comment = "Splitting of:" + inputName() + " start:" + start + " end:" + end +
+            (splitBy == SplitBy.TAG ? "" : " chunk:" + chunkSec);
+        try
         {
-            interval = (Histogram) reader.nextIntervalHistogram();
-            if (interval == null)
-            {
-                continue;
-            }
-            String ntag = interval.getTag();
-            if (shouldSkipTag(ntag))
+            Histogram interval;
+            int i = 0;
+            while (reader.hasNext())
             {
-                throw new IllegalStateException("Should be filtered upfront by the reader");
+                interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                String ntag = interval.getTag();
+                if (verbose)
+                {
+                    logHistogramForVerbose(System.out, interval, i++);
+                }
+                if (splitBy == SplitBy.TAG)
+                {
+                    interval.setTag(null);
+                    writers.write(outputFileForTag(ntag), comment, reader.getStartTimeSec(), interval);
+                    continue;
+                }
+                // chunks are aligned to the epoch, so that chunks of different logs line up
+                double chunkStartSec = Math.floor(interval.getStartTimeStamp() / 1000.0 / chunkSec) * chunkSec;
+                String prefix = CHUNK_FORMAT.format(Instant.ofEpochMilli((long) (chunkStartSec * 1000)));
+                if (splitBy == SplitBy.TAG_TIME)
+                {
+                    interval.setTag(null);
+                    prefix = ((ntag == null) ? "default" : ntag) + "." + prefix;
+                }
+                writers.write(new File(prefix + "." + inputName()), comment, chunkStartSec, interval);
+
             }
-            if (verbose)
+        }
+        finally
+        {
+            writers.close();
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+    }
+
+    /**
+     * Write the selected intervals to a single log, as a filter in a pipeline of commands.
+     */
+    private void filter(PrintStream log) throws FileNotFoundException
+    {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        OrderedHistogramLogReader reader = new OrderedHistogramLogReader(
+            inputFile,
+            start,
+            end,
+            tag -> shouldSkipTag(tag),
+            false,
+            errors);
+        String comment = "Selected from:" + inputName() + " start:" + start + " end:" + end;
+        try (PrintStream output = HdrHistogramUtil.openOutput(outputFile))
+        {
+            HistogramLogWriter writer = null;
+            Histogram interval;
+            int i = 0;
+            while (reader.hasNext())
             {
-                logHistogramForVerbose(System.out, interval, i++);
+                interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                if (verbose)
+                {
+                    logHistogramForVerbose(log, interval, i++);
+                }
+                if (writer == null)
+                {
+                    // start time is known once the header was read
+                    writer = HdrHistogramUtil.createLogWriter(output, comment, reader.getStartTimeSec());
+                }
+                writer.outputIntervalHistogram(interval);
             }
-            interval.setTag(null);
-            HistogramLogWriter writer = writerByTag.computeIfAbsent(ntag, k -> createWriterForTag(reader, k));
-            writer.outputIntervalHistogram(interval);
-
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
         }
     }
 
@@ -140,12 +260,19 @@ public class SplitHistogramLogs implements Runnable
         return excludeTags.contains(ntag) || (!includeTags.isEmpty() && !includeTags.contains(ntag));
     }
 
-    private HistogramLogWriter createWriterForTag(OrderedHistogramLogReader reader, String tag)
+    private File outputFileForTag(String tag)
     {
         tag = (tag == null) ? "default" : tag;
-        File outputFile = new File(tag + "." + inputFile.getName());
-        String comment = "Splitting of:" + inputFile.getName() + " start:" + start + " end:" + end;
-        HistogramLogWriter writer = HdrHistogramUtil.createLogWriter(outputFile, comment, reader.getStartTimeSec());
-        return writer;
+        return new File(tag + "." + inputName());
+    }
+
+    private String inputName()
+    {
+        return HdrHistogramUtil.isStdStream(inputFile) ? "stdin.hdr" : inputFile.getName();
+    }
+
+    enum SplitBy
+    {
+        TAG, TIME, TAG_TIME
     }
 }
@@ -1,15 +1,26 @@
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramIterationValue;
 import org.kohsuke.args4j.Option;
+import psy.lob.saw.ExponentialBuckets;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.IntervalSampler;
+import psy.lob.saw.LogFileProbe;
+import psy.lob.saw.LogParseErrors;
 import psy.lob.saw.OrderedHistogramLogReader;
+import psy.lob.saw.PartialSummary;
+import psy.lob.saw.SampledEstimate;
+import psy.lob.saw.SteadyStateDetector;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.math.BigDecimal;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static psy.lob.saw.HdrHistogramUtil.logHistogramForVerbose;
 
@@ -24,18 +35,28 @@ public class SummarizeHistogramLogs implements Runnable
     public double start = 0.0;
     @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
     public double end = Double.MAX_VALUE;
+    @Option(name = "-absoluteRange", aliases = "-ar", usage = "start and end are absolute times in seconds since epoch rather than relative to each log start, (default: false)", required = false)
+    public boolean absoluteRange = false;
     @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
     public boolean verbose = false;
-    @Option(name = "-summaryType", aliases = "-st", usage = "summary type: percentiles, csv [linear buckets], csve [exponential buckets],  csvr [raw hdr buckets],  hgrm (default: percentiles)", required = false)
-    public SummaryType summaryType = SummaryType.PERCENTILES;
     @Option(name = "-percentilesOutputTicksPerHalf", aliases = "-tph", usage = "ticks per half percentile, used for hgrm output, (default: 5)", required = false)
     public int percentilesOutputTicksPerHalf = 5;
     @Option(name = "-outputValueUnitRatio", aliases = "-ovr", usage = "output value unit ratio, (default: 1.0)", required = false)
     public double outputValueUnitRatio = 1.0;
     @Option(name = "-outputBucketSize", aliases = "-obs", usage = "csv output bucket size, (default: 100)", required = false)
     public long outputBucketSize = 100;
-    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, default goes to sysout", required = false)
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
     public String outputFile;
+    @Option(name = "-steadyState", aliases = "-ss", usage = "summarize only the steady state of each log, between warmup and cooldown, found from the throughput and p99 of its intervals settling, in the same pass. The steady state found is reported to stderr, (default: false)", required = false)
+    public boolean steadyState = false;
+    @Option(name = "-sample", aliases = "-smp", usage = "summarize a deterministic sample of this fraction of the intervals of each tag, e.g. 0.01 for 1 in 100, skipping the rest without decoding them. Counts are scaled up to stand for all intervals, and the percentiles summary reports 95% confidence intervals, (default: 1.0)", required = false)
+    public double sample = 1.0;
+    @Option(name = "-emitPartial", aliases = "-ep", usage = "emit a partial summary to be combined later with merge-partials, (default: false)", required = false)
+    public boolean emitPartial = false;
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
     @Option(name = "-excludeTag", aliases = "-excT", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
     public void addExcludeTag(String tag)
     {
@@ -50,9 +71,71 @@ public class SummarizeHistogramLogs implements Runnable
     private Set<String> excludeTags = new HashSet<>();
     private Set<String> includeTags = new HashSet<>();
 
+    @Option(name = "-window", aliases = "-w", usage = "add a window to summarize separately, <start>:<end> in seconds relative to log start, or absolute with -ar, e.g. 0:60 or 5m:1h, an empty end is open. Intervals are in the windows they start in, bounds included as with -s/-e. All windows are summarized in a single pass over the logs", required = false)
+    public void addWindow(String window)
+    {
+        String[] bounds = window.split(":", -1);
+        if (bounds.length != 2)
+        {
+            throw new IllegalArgumentException("window:" + window + " should be a <start>:<end>, e.g. 0:60 or 5m:1h");
+        }
+        double windowStart = parseWindowBound(bounds[0], 0.0);
+        double windowEnd = parseWindowBound(bounds[1], Double.MAX_VALUE);
+        if (windowEnd <= windowStart)
+        {
+            throw new IllegalArgumentException("window:" + window + " must end after it starts");
+        }
+        windows.add(new Window(windowStart, windowEnd));
+    }
+
+    @Option(name = "-every", aliases = "-ev", usage = "summarize consecutive windows of this length separately, e.g. 60s or 5m, starting from the start time, (default: none)", required = false)
+    public void setEvery(String every)
+    {
+        everySec = HdrHistogramUtil.parseDurationSec(every);
+    }
+
+    private final Map<String, SampledEstimate> sampleEstimates = new HashMap<>();
+    private List<Window> windows = new ArrayList<>();
+    private double everySec = 0.0;
+
+    boolean hasWindows()
+    {
+        return !windows.isEmpty() || everySec != 0.0;
+    }
+
+    @Option(name = "-summaryType", aliases = "-st", usage = "summary type: percentiles, csv [linear buckets], csve [exponential buckets],  csvr [raw hdr buckets],  hgrm (default: percentiles). Takes a comma separated list, or repeat the option, to output several types from one read, each may be given its own output file instead of -of, e.g. percentiles,hgrm=plot", required = false)
+    public void addSummaryType(String types)
+    {
+        for (String type : types.split(","))
+        {
+            String[] typeAndOutput = type.split("=", 2);
+            SummaryType summaryType;
+            try
+            {
+                summaryType = SummaryType.valueOf(typeAndOutput[0].trim().toUpperCase(Locale.ROOT));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("Unknown summary type:" + typeAndOutput[0] +
+                    ", expected one of " + Arrays.toString(SummaryType.values()));
+            }
+            summaryOutputs.add(new SummaryOutput(summaryType, (typeAndOutput.length == 2) ? typeAndOutput[1] : null));
+        }
+    }
+
+    private List<SummaryOutput> summaryOutputs = new ArrayList<>();
+
+    @Option(name = "-lateness", aliases = "-l", usage = "how late intervals may be logged, e.g. 5s, so that intervals logged out of order are not missed at the range end, (default: 0, logs are in order)", required = false)
+    public void setLateness(String lateness)
+    {
+        latenessSec = HdrHistogramUtil.parseDurationSec(lateness);
+    }
+
+    double latenessSec = 0.0;
+
 
     private File inputPath = new File(".");
-    private Set<File> inputFiles = new HashSet<>();
+    Set<File> inputFiles = new HashSet<>();
 
     public static void main(String[] args)
     {
@@ -73,9 +156,14 @@ public class SummarizeHistogramLogs implements Runnable
         }
     }
 
-    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp", required = false)
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp, '-' reads stdin", required = false)
     public void addInputFile(String inputFile)
     {
+        if (HdrHistogramUtil.STD_STREAM.equals(inputFile))
+        {
+            inputFiles.add(new File(inputFile));
+            return;
+        }
         final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
         inputFiles.addAll(
             Arrays.asList(
@@ -87,11 +175,17 @@ public class SummarizeHistogramLogs implements Runnable
         );
     }
 
-    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute", required = false)
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute, '-' reads stdin", required = false)
     public void addInputFileAbs(String inputFileName)
     {
         File in = new File(inputFileName);
-        if (!in.exists())
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
         {
             throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
         }
@@ -115,6 +209,16 @@ public class SummarizeHistogramLogs implements Runnable
         {
             throw new IllegalArgumentException("Error: please specify inputs");
         }
+        if (start != 0.0 || end != Double.MAX_VALUE || absoluteRange)
+        {
+            int found = inputFiles.size();
+            inputFiles = new HashSet<>(
+                LogFileProbe.prune(inputFiles, start - latenessSec, end + latenessSec, absoluteRange));
+            if (verbose)
+            {
+                System.out.printf("Skipping %d of %d files outside of range%n", found - inputFiles.size(), found);
+            }
+        }
 
         try
         {
@@ -128,10 +232,48 @@ public class SummarizeHistogramLogs implements Runnable
 
     private void summarizeAndPrint() throws FileNotFoundException
     {
-        Map<String, Histogram> sumByTag = new HashMap<>();
+        if (!(sample > 0.0 && sample <= 1.0))
+        {
+            throw new IllegalArgumentException("sample must be above 0 and at most 1, was:" + sample);
+        }
+        if (hasWindows())
+        {
+            if (emitPartial)
+            {
+                throw new IllegalArgumentException("Partial summaries can not be emitted per window");
+            }
+            if (steadyState)
+            {
+                throw new IllegalArgumentException("The steady state is found per log, not per window");
+            }
+            if (sample != 1.0)
+            {
+                throw new IllegalArgumentException("Windows can not be sampled");
+            }
+            printWindows(summarizeWindows());
+            return;
+        }
+        if (sample != 1.0 && (steadyState || emitPartial))
+        {
+            throw new IllegalArgumentException("A sample can not be taken with -steadyState or -emitPartial");
+        }
+        PartialSummary summary = summarize();
+        if (emitPartial)
+        {
+            try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+            {
+                summary.write(out);
+            }
+            return;
+        }
+        print(summary);
+    }
 
-        long period = 0;
-        long intervalLengthSum = 0;
+    PartialSummary summarize() throws FileNotFoundException
+    {
+        PartialSummary summary = new PartialSummary();
+        Map<String, Histogram> sumByTag = summary.sumByTag();
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
         for (File inputFile : inputFiles)
         {
             if (verbose)
@@ -142,11 +284,17 @@ public class SummarizeHistogramLogs implements Runnable
                 inputFile,
                 start,
                 end,
-                tag -> shouldSkipTag(tag));
+                tag -> shouldSkipTag(tag),
+                absoluteRange,
+                errors,
+                latenessSec);
+            IntervalSampler sampler = (sample == 1.0) ? null : new IntervalSampler(sample);
+            reader.sample(sampler);
             Histogram interval;
             int i = 0;
             boolean first = true;
             long startTime = 0;
+            SteadyStateDetector detector = steadyState ? new SteadyStateDetector() : null;
 
             while (reader.hasNext())
             {
@@ -166,21 +314,49 @@ public class SummarizeHistogramLogs implements Runnable
 
                 }
                 String ntag = ignoreTag ? null : interval.getTag();
-                final int numberOfSignificantValueDigits = interval.getNumberOfSignificantValueDigits();
-                Histogram sum = sumByTag.computeIfAbsent(ntag, k ->
+                if (detector != null)
+                {
+                    detector.add(ntag, interval);
+                }
+                else if (sampler != null)
+                {
+                    sampleEstimates.computeIfAbsent(ntag, k -> new SampledEstimate()).add(interval);
+                }
+                else
                 {
-                    Histogram h = new Histogram(numberOfSignificantValueDigits);
-                    h.setTag(k);
-                    return h;
-                });
-                final long intervalLength = interval.getEndTimeStamp() - interval.getStartTimeStamp();
-                intervalLengthSum += intervalLength;
-                sum.add(interval);
+                    Histogram sum = summary.sumForTag(ntag, interval.getNumberOfSignificantValueDigits());
+                    final long intervalLength = interval.getEndTimeStamp() - interval.getStartTimeStamp();
+                    summary.addIntervalLength(intervalLength);
+                    sum.add(interval);
+                }
                 if (verbose)
                 {
                     logHistogramForVerbose(System.out, interval, i++, outputValueUnitRatio);
                 }
             }
+            if (detector != null)
+            {
+                PartialSummary steady = detector.steadyState();
+                if (detector.isFound())
+                {
+                    System.err.printf("Steady state of %s: %.3f to %.3f%n", inputFile.getName(),
+                        detector.getSteadyStartMs() / 1000.0 - reader.getStartTimeSec(),
+                        detector.getSteadyEndMs() / 1000.0 - reader.getStartTimeSec());
+                }
+                else
+                {
+                    System.err.printf("Steady state of %s: no warmup or cooldown found, summarizing all of it%n",
+                        inputFile.getName());
+                }
+                summary.add(steady);
+                continue;
+            }
+            if (sampler != null)
+            {
+                summary.addIntervalLength(sampler.getIntervalLengthSum());
+                summary.addPeriod(sampledPeriod(sampler));
+                continue;
+            }
             // calculate period
             long maxPeriod = 0;
             for (Histogram sum : sumByTag.values())
@@ -196,53 +372,278 @@ public class SummarizeHistogramLogs implements Runnable
                 sum.setStartTimeStamp(Long.MAX_VALUE);
                 maxPeriod = Math.max(maxPeriod, sumPeriod);
             }
-            period += maxPeriod;
+            summary.addPeriod(maxPeriod);
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
         }
-        if (ignoreTimeStamps)
+        for (Map.Entry<String, SampledEstimate> estimate : sampleEstimates.entrySet())
         {
-            period = intervalLengthSum;
+            Histogram scaled = estimate.getValue().scaled();
+            scaled.setTag(estimate.getKey());
+            sumByTag.put(estimate.getKey(), scaled);
         }
-        for (Histogram sum : sumByTag.values())
+        return summary;
+    }
+
+    /**
+     * Count the intervals of each summary tag the sample stands for.
+     *
+     * @return the longest period of the summary tags, over all intervals in range, sampled or not
+     */
+    private long sampledPeriod(IntervalSampler sampler)
+    {
+        Map<String, long[]> spanByTag = new HashMap<>();
+        for (String tag : sampler.getTags())
         {
-            String tag = (sum.getTag() == null) ? "" : "." + sum.getTag();
-            PrintStream out = getOut(tag);
-            switch (summaryType)
+            String ntag = ignoreTag ? null : tag;
+            sampleEstimates.computeIfAbsent(ntag, k -> new SampledEstimate()).addSeen(sampler.getSeen(tag));
+            long[] span = spanByTag.computeIfAbsent(ntag, k -> new long[]{Long.MAX_VALUE, 0});
+            span[0] = Math.min(span[0], sampler.getStartTimeStamp(tag));
+            span[1] = Math.max(span[1], sampler.getEndTimeStamp(tag));
+        }
+        long maxPeriod = 0;
+        for (long[] span : spanByTag.values())
+        {
+            maxPeriod = Math.max(maxPeriod, span[1] - span[0]);
+        }
+        return maxPeriod;
+    }
+
+    /**
+     * Summarize all the windows in a single pass. An interval is added to every window it starts in, bounds included,
+     * as -s/-e select intervals, so that each window summarizes what a run over its range would.
+     *
+     * @return the windows, in start time order
+     */
+    List<Window> summarizeWindows() throws FileNotFoundException
+    {
+        TreeMap<Long, Window> everyWindows = new TreeMap<>();
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        for (File inputFile : inputFiles)
+        {
+            if (verbose)
             {
-                case PERCENTILES:
-                    printPercentiles(out, sum, period);
-                    break;
-                case CSV:
-                    printCsv(out, sum);
-                    break;
-                case CSVE:
-                    printCsvE(out, sum);
-                    break;
-                case CSVR:
-                    printCsvR(out, sum);
-                    break;
-                case HGRM:
-                    printHgrm(out, sum);
-                    break;
-                default:
-                    throw new IllegalStateException();
+                System.out.println("Summarizing file: " + inputFile.getName());
             }
+            OrderedHistogramLogReader reader = new OrderedHistogramLogReader(
+                inputFile,
+                start,
+                end,
+                tag -> shouldSkipTag(tag),
+                absoluteRange,
+                errors,
+                latenessSec);
+            Histogram interval;
+            int i = 0;
+            while (reader.hasNext())
+            {
+                interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                double offsetSec = absoluteRange ? 0.0 : reader.getStartTimeSec();
+                double intervalStart = interval.getStartTimeStamp() / 1000.0 - offsetSec;
+                for (Window window : windows)
+                {
+                    if (window.contains(intervalStart))
+                    {
+                        window.add(interval, ignoreTag);
+                    }
+                }
+                if (everySec != 0.0)
+                {
+                    // an interval starting on a boundary is in the windows on both sides of it
+                    long nearest = (long) Math.floor((intervalStart - start) / everySec);
+                    for (long k = Math.max(0, nearest - 1); k <= nearest + 1; k++)
+                    {
+                        final double windowStart = start + k * everySec;
+                        final double windowEnd = Math.min(windowStart + everySec, end);
+                        // the end is in the last window, not a window of its own
+                        boolean pastEnd = (k == 0) ? windowStart > end : windowStart >= end;
+                        if (pastEnd || intervalStart < windowStart || intervalStart > windowEnd)
+                        {
+                            continue;
+                        }
+                        everyWindows.computeIfAbsent(k, key -> new Window(windowStart, windowEnd))
+                            .add(interval, ignoreTag);
+                    }
+                }
+                if (verbose)
+                {
+                    logHistogramForVerbose(System.out, interval, i++, outputValueUnitRatio);
+                }
+            }
+            for (Window window : windows)
+            {
+                window.addFilePeriod();
+            }
+            for (Window window : everyWindows.values())
+            {
+                window.addFilePeriod();
+            }
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
         }
+        List<Window> all = new ArrayList<>(windows);
+        all.addAll(everyWindows.values());
+        all.sort(Comparator.comparingDouble((Window w) -> w.start).thenComparingDouble(w -> w.end));
+        return all;
+    }
+
+    /**
+     * Print a block per window and tag, or a file per window and tag when there's an output file.
+     */
+    private void printWindows(List<Window> summarized) throws FileNotFoundException
+    {
+        boolean toStdout = false;
+        for (SummaryOutput output : summaryOutputs())
+        {
+            toStdout |= output.outputFile(outputFile) == null;
+        }
+        for (Window window : summarized)
+        {
+            if (toStdout)
+            {
+                System.out.println("#Window: " + window.label());
+            }
+            print(window.summary, window.label());
+        }
+    }
+
+    void print(PartialSummary summary) throws FileNotFoundException
+    {
+        print(summary, null);
+    }
+
+    /**
+     * Render every summary type of every tag, the tags in parallel, then write them out in order. Summaries going to
+     * the same output are written one after the other.
+     *
+     * @param windowLabel added to output file names if not null
+     */
+    private void print(PartialSummary summary, String windowLabel) throws FileNotFoundException
+    {
+        long period = ignoreTimeStamps ? summary.getIntervalLengthSum() : summary.getPeriod();
+        List<SummaryOutput> types = summaryOutputs();
+        List<Histogram> tagSums = new ArrayList<>(summary.sumByTag().values());
+        // the types of a tag are rendered one after the other, as iterating a histogram (e.g. for its mean) is not
+        // thread safe
+        List<byte[][]> renderedByTag = IntStream.range(0, tagSums.size())
+            .parallel()
+            .mapToObj(t ->
+            {
+                byte[][] renderedTypes = new byte[types.size()][];
+                for (int o = 0; o < types.size(); o++)
+                {
+                    renderedTypes[o] = render(types.get(o).type, tagSums.get(t), period);
+                }
+                return renderedTypes;
+            })
+            .collect(Collectors.toList());
+        List<SummaryOutput> outputs = new ArrayList<>();
+        List<Histogram> sums = new ArrayList<>();
+        List<byte[]> rendered = new ArrayList<>();
+        for (int o = 0; o < types.size(); o++)
+        {
+            for (int t = 0; t < tagSums.size(); t++)
+            {
+                outputs.add(types.get(o));
+                sums.add(tagSums.get(t));
+                rendered.add(renderedByTag.get(t)[o]);
+            }
+        }
+
+        Map<String, PrintStream> outs = new LinkedHashMap<>();
+        try
+        {
+            for (int i = 0; i < rendered.size(); i++)
+            {
+                String outputFileName = outputs.get(i).outputFile(outputFile);
+                if (outputFileName != null)
+                {
+                    String tag = (sums.get(i).getTag() == null) ? "" : "." + sums.get(i).getTag();
+                    outputFileName += ((windowLabel == null) ? "" : "." + windowLabel) + tag + ".hgrm";
+                }
+                PrintStream out = outs.get(outputFileName);
+                if (out == null)
+                {
+                    out = HdrHistogramUtil.openOutput(outputFileName);
+                    outs.put(outputFileName, out);
+                }
+                out.write(rendered.get(i), 0, rendered.get(i).length);
+            }
+        }
+        finally
+        {
+            for (PrintStream out : outs.values())
+            {
+                out.close();
+            }
+        }
+    }
+
+    private List<SummaryOutput> summaryOutputs()
+    {
+        return summaryOutputs.isEmpty() ?
+            Collections.singletonList(new SummaryOutput(SummaryType.PERCENTILES, null)) : summaryOutputs;
+    }
+
+    private byte[] render(SummaryType summaryType, Histogram sum, long period)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        switch (summaryType)
+        {
+            case PERCENTILES:
+                printPercentiles(out, sum, period);
+                break;
+            case CSV:
+                printCsv(out, sum);
+                break;
+            case CSVE:
+                printCsvE(out, sum);
+                break;
+            case CSVR:
+                printCsvR(out, sum);
+                break;
+            case HGRM:
+                printHgrm(out, sum);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        out.flush();
+        return bytes.toByteArray();
     }
     
-    private boolean shouldSkipTag(String ntag)
+    boolean shouldSkipTag(String ntag)
     {
         ntag = (ntag == null) ? "default" : ntag;
         return excludeTags.contains(ntag) || (!includeTags.isEmpty() && !includeTags.contains(ntag));
     }
     
-    private PrintStream getOut(String tag) throws FileNotFoundException
+    private static double parseWindowBound(String bound, double defaultSec)
     {
-        PrintStream report = System.out;
-        if (outputFile != null)
+        String value = bound.trim();
+        if (value.isEmpty())
+        {
+            return defaultSec;
+        }
+        try
         {
-            report = new PrintStream(new FileOutputStream(outputFile + tag + ".hgrm"));
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return HdrHistogramUtil.parseDurationSec(value);
         }
-        return report;
     }
 
     private void printHgrm(PrintStream out, Histogram sum)
@@ -252,21 +653,33 @@ public class SummarizeHistogramLogs implements Runnable
 
     private void printPercentiles(PrintStream out, Histogram sum, long period)
     {
-        double avgThpt = (sum.getTotalCount() * 1000.0) / period;
-        String tag = (sum.getTag() == null) ? "" : sum.getTag() + ".";
-        out.printf("%sTotalCount=%d%n", tag, sum.getTotalCount());
-        out.printf("%sPeriod(ms)=%d%n", tag, period);
-        out.printf("%sThroughput(ops/sec)=%.2f%n", tag, avgThpt);
-        out.printf("%sMin=%d%n", tag, (long) (sum.getMinValue() / outputValueUnitRatio));
-        out.printf("%sMean=%.2f%n", tag, sum.getMean() / outputValueUnitRatio);
-        out.printf("%sStdDev=%.2f%n", tag, sum.getStdDeviation() / outputValueUnitRatio);
-        out.printf("%s50.000ptile=%d%n", tag, (long) (sum.getValueAtPercentile(50) / outputValueUnitRatio));
-        out.printf("%s90.000ptile=%d%n", tag, (long) (sum.getValueAtPercentile(90) / outputValueUnitRatio));
-        out.printf("%s99.000ptile=%d%n", tag, (long) (sum.getValueAtPercentile(99) / outputValueUnitRatio));
-        out.printf("%s99.900ptile=%d%n", tag, (long) (sum.getValueAtPercentile(99.9) / outputValueUnitRatio));
-        out.printf("%s99.990ptile=%d%n", tag, (long) (sum.getValueAtPercentile(99.99) / outputValueUnitRatio));
-        out.printf("%s99.999ptile=%d%n", tag, (long) (sum.getValueAtPercentile(99.999) / outputValueUnitRatio));
-        out.printf("%sMax=%d%n", tag, (long) (sum.getMaxValue() / outputValueUnitRatio));
+        HdrHistogramUtil.printPercentiles(out, sum, period, HdrHistogramUtil.SUMMARY_PERCENTILES, outputValueUnitRatio);
+        SampledEstimate estimate = sampleEstimates.get(sum.getTag());
+        if (estimate != null)
+        {
+            String tag = (sum.getTag() == null) ? "" : sum.getTag() + ".";
+            printConfidenceIntervals(out, estimate, tag, period);
+        }
+    }
+
+    /**
+     * Print the 95% confidence interval, low and high, of each estimate of a sampled summary.
+     */
+    private void printConfidenceIntervals(PrintStream out, SampledEstimate estimate, String tag, long period)
+    {
+        out.printf("%sSampledIntervals=%d/%d%n", tag, estimate.getSampled(), estimate.getSeen());
+        double[] totalCount = estimate.getTotalCountInterval();
+        out.printf("%sTotalCount.ci95=%.0f,%.0f%n", tag, totalCount[0], totalCount[1]);
+        out.printf("%sThroughput(ops/sec).ci95=%.2f,%.2f%n", tag,
+            totalCount[0] * 1000.0 / period, totalCount[1] * 1000.0 / period);
+        double[] mean = estimate.getMeanInterval();
+        out.printf("%sMean.ci95=%.2f,%.2f%n", tag, mean[0] / outputValueUnitRatio, mean[1] / outputValueUnitRatio);
+        for (double percentile : HdrHistogramUtil.SUMMARY_PERCENTILES)
+        {
+            double[] value = estimate.getPercentileInterval(percentile);
+            out.printf("%s%.3fptile.ci95=%d,%d%n", tag, percentile,
+                (long) (value[0] / outputValueUnitRatio), (long) (value[1] / outputValueUnitRatio));
+        }
     }
 
     private void printCsv(PrintStream out, Histogram sum)
@@ -289,18 +702,18 @@ public class SummarizeHistogramLogs implements Runnable
     private void printCsvE(PrintStream out, Histogram sum)
     {
         long max = (long) (sum.getMaxValue() / outputValueUnitRatio);
-        long bucketStart = 0;
+        ExponentialBuckets buckets = new ExponentialBuckets(outputBucketSize, outputValueUnitRatio);
+        // buckets are half open, so a value on a bucket edge is only counted in the bucket it starts
+        long[] counts = new long[ExponentialBuckets.MAX_BUCKETS];
+        buckets.addCounts(sum, counts);
         out.println("BucketStart, Count");
-        while (bucketStart < max)
+        for (int bucket = 0;
+             bucket < ExponentialBuckets.MAX_BUCKETS && (buckets.start(bucket) < max || counts[bucket] != 0);
+             bucket++)
         {
-            long nextBucketStart = (bucketStart == 0) ? outputBucketSize : bucketStart * 2;
-            long s = (long) (bucketStart * outputValueUnitRatio);
-            long e = (long) (nextBucketStart * outputValueUnitRatio);
-            long count = sum.getCountBetweenValues(s, e);
-            out.print(bucketStart);
+            out.print(buckets.start(bucket));
             out.print(",");
-            out.println(count);
-            bucketStart = nextBucketStart;
+            out.println(counts[bucket]);
         }
     }
 
@@ -334,6 +747,89 @@ public class SummarizeHistogramLogs implements Runnable
         }
     }
 
+    /**
+     * A time window, in seconds relative to the log start unless the range is absolute, and its summary.
+     */
+    static final class Window
+    {
+        final double start;
+        final double end;
+        final PartialSummary summary = new PartialSummary();
+
+        Window(double start, double end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return true if an interval starting at this time is in the window, bounds included as with -s/-e
+         */
+        boolean contains(double intervalStart)
+        {
+            return intervalStart >= start && intervalStart <= end;
+        }
+
+        void add(Histogram interval, boolean ignoreTag)
+        {
+            String ntag = ignoreTag ? null : interval.getTag();
+            summary.sumForTag(ntag, interval.getNumberOfSignificantValueDigits()).add(interval);
+            summary.addIntervalLength(interval.getEndTimeStamp() - interval.getStartTimeStamp());
+        }
+
+        /**
+         * Add the period covered by the file just summarized, and reset the sums time stamps for the next file.
+         */
+        void addFilePeriod()
+        {
+            long maxPeriod = 0;
+            for (Histogram sum : summary.sumByTag().values())
+            {
+                maxPeriod = Math.max(maxPeriod, sum.getEndTimeStamp() - sum.getStartTimeStamp());
+                sum.setEndTimeStamp(0);
+                sum.setStartTimeStamp(Long.MAX_VALUE);
+            }
+            summary.addPeriod(maxPeriod);
+        }
+
+        /**
+         * @return the window bounds in seconds, e.g. "0-60" or "60-max"
+         */
+        String label()
+        {
+            return format(start) + "-" + ((end == Double.MAX_VALUE) ? "max" : format(end));
+        }
+
+        private static String format(double sec)
+        {
+            return BigDecimal.valueOf(sec).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * A summary type and where it goes.
+     */
+    static final class SummaryOutput
+    {
+        final SummaryType type;
+        final String outputFile;
+
+        SummaryOutput(SummaryType type, String outputFile)
+        {
+            this.type = type;
+            this.outputFile = outputFile;
+        }
+
+        /**
+         * @return the base name of the output files, or null for stdout
+         */
+        String outputFile(String defaultOutputFile)
+        {
+            String name = (outputFile == null) ? defaultOutputFile : outputFile;
+            return (name == null || HdrHistogramUtil.STD_STREAM.equals(name)) ? null : name;
+        }
+    }
+
     enum SummaryType
     {
         CSV, CSVE, CSVR, PERCENTILES, HGRM
@@ -0,0 +1,358 @@
+import org.HdrHistogram.Histogram;
+import org.kohsuke.args4j.Option;
+import psy.lob.saw.HdrHistogramUtil;
+import psy.lob.saw.LogParseErrors;
+import psy.lob.saw.LogQuery;
+import psy.lob.saw.TagSummary;
+import psy.lob.saw.TopTags;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the tags with the highest percentile, max or throughput, e.g. the 20 endpoints with the worst p99.9 out of tens
+ * of thousands, without holding the sums of all the tags at once.
+ * <p>
+ * For a percentile or the max, the logs are first scanned without decoding them for the largest max logged by each
+ * tag, which bounds every percentile of the tag. Tags are then summed in batches of at most '-candidates' tags, in
+ * order of their bounds, each batch in one pass over the logs decoding only its tags, and the top tags so far kept.
+ * Once the lowest value in the top is above the bound of the remaining tags they can not make the top, and are never
+ * decoded. For throughput the logs are read once counting each tag, which takes a few longs per tag, and read again to
+ * sum only the top tags. Files are read in parallel.
+ */
+public class TopHistogramLogs implements Runnable
+{
+    private static final String BY_MAX = "max";
+    private static final String BY_THROUGHPUT = "throughput";
+
+    @Option(name = "-start", aliases = "-s", usage = "relative log start time in seconds, (default: 0.0)", required = false)
+    public double start = 0.0;
+    @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
+    public double end = Double.MAX_VALUE;
+    @Option(name = "-absoluteRange", aliases = "-ar", usage = "start and end are absolute times in seconds since epoch rather than relative to each log start, (default: false)", required = false)
+    public boolean absoluteRange = false;
+    @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
+    public boolean verbose = false;
+    @Option(name = "-top", aliases = "-k", usage = "number of tags to report, (default: 20)", required = false)
+    public int top = 20;
+    @Option(name = "-candidates", aliases = "-c", usage = "maximum number of tags summed at once, at least -top, (default: 1000)", required = false)
+    public int candidates = 1000;
+    @Option(name = "-outputValueUnitRatio", aliases = "-ovr", usage = "output value unit ratio, (default: 1.0)", required = false)
+    public double outputValueUnitRatio = 1.0;
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
+    public String outputFile;
+    @Option(name = "-readThreads", aliases = "-rts", usage = "number of files read in parallel, (default: number of processors)", required = false)
+    public int readThreads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    private String by = "99";
+    private double rankPercentile = 99.0;
+    private final Set<String> excludeTags = new HashSet<>();
+    private final Set<String> includeTags = new HashSet<>();
+    private File inputPath = new File(".");
+    private final Set<File> inputFiles = new HashSet<>();
+    private int totalTags;
+    private int passes;
+    private int summedTags;
+
+    public static void main(String[] args)
+    {
+        ParseAndRunUtil.parseParamsAndRun(args, new TopHistogramLogs());
+    }
+
+    @Option(name = "-by", aliases = "-b", usage = "rank tags by a percentile, e.g. 99.9, or by 'max' or 'throughput', (default: 99)", required = false)
+    public void setBy(String by)
+    {
+        if (!BY_MAX.equals(by) && !BY_THROUGHPUT.equals(by))
+        {
+            double percentile;
+            try
+            {
+                percentile = Double.parseDouble(by.startsWith("p") ? by.substring(1) : by);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("by must be a percentile, 'max' or 'throughput', was:" + by);
+            }
+            if (!(percentile > 0.0 && percentile <= 100.0))
+            {
+                throw new IllegalArgumentException("percentile must be above 0 and at most 100, was:" + by);
+            }
+            rankPercentile = percentile;
+        }
+        this.by = by;
+    }
+
+    @Option(name = "-excludeTag", aliases = "-excT", usage = "add a tag to filter from input, 'default' is a special tag for the null tag.", required = false)
+    public void addExcludeTag(String tag)
+    {
+        excludeTags.add(tag);
+    }
+
+    @Option(name = "-includeTag", aliases = "-incT", usage = "when include tags are used only the explicitly included will be ranked, 'default' is a special tag for the null tag.", required = false)
+    public void addIncludeTag(String tag)
+    {
+        includeTags.add(tag);
+    }
+
+    @Option(name = "-inputPath", aliases = "-ip", usage = "set path to use for input files, defaults to current folder", required = false)
+    public void setInputPath(String inputFolderName)
+    {
+        inputPath = new File(inputFolderName);
+        if (!inputPath.exists())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must exist!");
+        }
+        if (!inputPath.isDirectory())
+        {
+            throw new IllegalArgumentException("inputPath:" + inputFolderName + " must be a directory!");
+        }
+    }
+
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp", required = false)
+    public void addInputFile(String inputFile)
+    {
+        final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
+        inputFiles.addAll(Arrays.asList(inputPath.listFiles(pathname -> predicate.test(pathname.getName()))));
+    }
+
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute", required = false)
+    public void addInputFileAbs(String inputFileName)
+    {
+        File in = new File(inputFileName);
+        if (!in.exists())
+        {
+            throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
+        }
+        inputFiles.add(in);
+    }
+
+    @Override
+    public void run()
+    {
+        if (inputFiles.isEmpty())
+        {
+            throw new IllegalArgumentException("Error: please specify inputs");
+        }
+        if (top <= 0)
+        {
+            throw new IllegalArgumentException("top must be positive, was:" + top);
+        }
+        if (candidates < top)
+        {
+            throw new IllegalArgumentException("candidates must be at least top, was:" + candidates);
+        }
+        if (verbose)
+        {
+            System.err.println("Reading files: " + inputFiles);
+        }
+        try
+        {
+            rankAndPrint();
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void rankAndPrint() throws FileNotFoundException
+    {
+        LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, readThreads));
+        List<TopTags.Entry<TagSummary>> ranked;
+        try
+        {
+            ranked = BY_THROUGHPUT.equals(by) ?
+                topByThroughput(pool, errors) :
+                topByValue(pool, errors, query(pool, errors).maxBoundsByTag());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        errors.close();
+        if (errors.getTotal() != 0)
+        {
+            errors.printCounts(System.err);
+        }
+        try (PrintStream out = HdrHistogramUtil.openOutput(outputFile))
+        {
+            printTop(out, ranked);
+        }
+    }
+
+    private List<TopTags.Entry<TagSummary>> topByThroughput(ForkJoinPool pool, LogParseErrors errors)
+    {
+        Map<String, TagSummary> counts = query(pool, errors)
+            .groupBy(LogQuery.GroupBy.TAG)
+            .collect(first -> new TagSummary(first, true), TagSummary::add, TagSummary::add);
+        passes++;
+        TopTags<TagSummary> topTags = new TopTags<>(top);
+        for (Map.Entry<String, TagSummary> count : counts.entrySet())
+        {
+            topTags.offer(count.getKey(), count.getValue().getThroughput(), count.getValue());
+        }
+        totalTags = counts.size();
+        // sum the top tags to report their values
+        List<String> topTagNames = new ArrayList<>();
+        for (TopTags.Entry<TagSummary> entry : topTags.ranked())
+        {
+            topTagNames.add(entry.getTag());
+        }
+        Map<String, TagSummary> sums = sum(pool, errors, topTagNames);
+        TopTags<TagSummary> summed = new TopTags<>(top);
+        for (Map.Entry<String, TagSummary> sum : sums.entrySet())
+        {
+            summed.offer(sum.getKey(), sum.getValue().getThroughput(), sum.getValue());
+        }
+        return summed.ranked();
+    }
+
+    private List<TopTags.Entry<TagSummary>> topByValue(
+        ForkJoinPool pool,
+        LogParseErrors errors,
+        Map<String, Double> boundsByTag)
+    {
+        List<String> byBound = new ArrayList<>(boundsByTag.keySet());
+        byBound.sort(Comparator.comparing((String tag) -> -boundsByTag.get(tag)).thenComparing(tag -> tag));
+        totalTags = byBound.size();
+        TopTags<TagSummary> topTags = new TopTags<>(top);
+        boolean boundsHold = true;
+        int next = 0;
+        while (next < byBound.size())
+        {
+            // a tag with a bound below the lowest value in the top can not make it, nor can any tag after it
+            if (boundsHold && boundsByTag.get(byBound.get(next)) < topTags.getThreshold())
+            {
+                break;
+            }
+            List<String> batch = byBound.subList(next, Math.min(byBound.size(), next + candidates));
+            next += batch.size();
+            if (verbose)
+            {
+                System.err.println("Summing " + batch.size() + " tags, bounds from " + boundsByTag.get(batch.get(0)) +
+                    " down to " + boundsByTag.get(batch.get(batch.size() - 1)) + ", top threshold " +
+                    topTags.getThreshold());
+            }
+            for (Map.Entry<String, TagSummary> sum : sum(pool, errors, batch).entrySet())
+            {
+                double value = value(sum.getValue().getSum());
+                if (boundsHold && value > boundsByTag.get(sum.getKey()))
+                {
+                    // e.g. logs written with another max value unit ratio
+                    System.err.println("Warning: tag " + sum.getKey() + " is above the max logged, " +
+                        "ranking all tags rather than skipping by the max logged");
+                    boundsHold = false;
+                }
+                topTags.offer(sum.getKey(), value, sum.getValue());
+            }
+        }
+        return topTags.ranked();
+    }
+
+    private double value(Histogram sum)
+    {
+        if (sum.getTotalCount() == 0)
+        {
+            return 0.0;
+        }
+        return BY_MAX.equals(by) ? sum.getMaxValue() : sum.getValueAtPercentile(rankPercentile);
+    }
+
+    private Map<String, TagSummary> sum(ForkJoinPool pool, LogParseErrors errors, List<String> tags)
+    {
+        passes++;
+        summedTags += tags.size();
+        // the tags are already included and not excluded
+        return baseQuery(pool, errors)
+            .tags(tags.toArray(new String[0]))
+            .groupBy(LogQuery.GroupBy.TAG)
+            .collect(first -> new TagSummary(first, false), TagSummary::add, TagSummary::add);
+    }
+
+    private LogQuery query(ForkJoinPool pool, LogParseErrors errors)
+    {
+        LogQuery query = baseQuery(pool, errors)
+            .excludeTags(excludeTags.toArray(new String[0]));
+        if (!includeTags.isEmpty())
+        {
+            query.tags(includeTags.toArray(new String[0]));
+        }
+        return query;
+    }
+
+    private LogQuery baseQuery(ForkJoinPool pool, LogParseErrors errors)
+    {
+        LogQuery query = LogQuery.from(inputFiles)
+            .executor(pool)
+            .errors(errors);
+        if (absoluteRange)
+        {
+            query.absoluteRange(start, end);
+        }
+        else
+        {
+            query.range(start, end);
+        }
+        return query;
+    }
+
+    private void printTop(PrintStream out, List<TopTags.Entry<TagSummary>> ranked)
+    {
+        TreeSet<Double> percentiles = new TreeSet<>(Arrays.asList(50.0, 99.0));
+        if (!BY_MAX.equals(by) && !BY_THROUGHPUT.equals(by))
+        {
+            percentiles.add(rankPercentile);
+        }
+        String rankedBy = BY_MAX.equals(by) || BY_THROUGHPUT.equals(by) ? by : "p" + format(rankPercentile);
+        out.printf("#Top %d of %d tags by %s, %d tags summed in %d passes%n",
+            ranked.size(), totalTags, rankedBy, summedTags, passes);
+        out.print("Rank,Tag,TotalCount,Throughput(ops/sec),Mean");
+        for (double percentile : percentiles)
+        {
+            out.print(",p" + format(percentile));
+        }
+        out.println(",Max");
+        int rank = 1;
+        for (TopTags.Entry<TagSummary> entry : ranked)
+        {
+            TagSummary summary = entry.getValue();
+            Histogram sum = summary.getSum();
+            out.printf("%d,%s,%d,%.2f,%.3f", rank++, entry.getTag(), summary.getTotalCount(),
+                summary.getThroughput(), sum.getMean() / outputValueUnitRatio);
+            for (double percentile : percentiles)
+            {
+                out.printf(",%.3f", sum.getValueAtPercentile(percentile) / outputValueUnitRatio);
+            }
+            out.printf(",%.3f%n", sum.getMaxValue() / outputValueUnitRatio);
+        }
+    }
+
+    private static String format(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -1,13 +1,19 @@
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramLogWriter;
 import org.kohsuke.args4j.Option;
+import psy.lob.saw.GridUnionHistograms;
+import psy.lob.saw.HdrHistogramUtil;
 import psy.lob.saw.HistogramIterator;
+import psy.lob.saw.HistogramPrefetcher;
 import psy.lob.saw.HistogramSink;
+import psy.lob.saw.LogFileProbe;
+import psy.lob.saw.LogParseErrors;
 import psy.lob.saw.OrderedHistogramLogReader;
+import psy.lob.saw.ParallelHistogramSink;
+import psy.lob.saw.ParallelUnionHistograms;
 import psy.lob.saw.UnionHistograms;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.function.Predicate;
@@ -24,6 +30,9 @@ public class UnionHistogramLogs implements Runnable
     @Option(name = "-end", aliases = "-e", usage = "relative log end time in seconds, (default: MAX_DOUBLE)", required = false)
     public double end = Double.MAX_VALUE;
 
+    @Option(name = "-absoluteRange", aliases = "-ar", usage = "start and end are absolute times in seconds since epoch rather than relative to each log start, (default: false)", required = false)
+    public boolean absoluteRange = false;
+
     @Option(name = "-verbose", aliases = "-v", usage = "verbose logging, (default: false)", required = false)
     public boolean verbose = false;
 
@@ -33,6 +42,28 @@ public class UnionHistogramLogs implements Runnable
     @Option(name = "-targetUnionSec", aliases = "-tus", usage = "target union interval length in seconds, (default: 0.0, which will use existing interval lengths)", required = false)
     public double targetUnionSec = 0.0;
 
+    @Option(name = "-alignToGrid", aliases = "-atg", usage = "align the union intervals to a grid of -tus seconds, each input interval goes to the grid interval holding its midpoint, (default: false)", required = false)
+    public boolean alignToGrid = false;
+
+    @Option(name = "-unionThreads", aliases = "-uts", usage = "number of threads unioning intervals, partitioned by tag, only unions are logged when verbose, (default: 0, which unions on the merging thread)", required = false)
+    public int unionThreads = 0;
+
+    @Option(name = "-prefetch", aliases = "-pf", usage = "number of intervals to read ahead per input in the background, (default: 0, which reads inputs on the merging thread)", required = false)
+    public int prefetch = 0;
+
+    @Option(name = "-prefetchMemoryMb", aliases = "-pfm", usage = "cap on the memory used by intervals read ahead from all inputs in MB, (default: 256)", required = false)
+    public long prefetchMemoryMb = 256;
+
+    @Option(name = "-maxErrors", aliases = "-me", usage = "number of corrupt input lines tolerated before failing, -1 to skip all corrupt lines, (default: -1)", required = false)
+    public long maxErrors = -1;
+
+    @Option(name = "-quarantineFile", aliases = "-qf", usage = "write corrupt input lines, with their file and byte offset, to this file, (default: none)", required = false)
+    public String quarantineFile;
+
+    @Option(name = "-encodeThreads", aliases = "-ets", usage = "number of threads encoding the union intervals, (default: 0, which encodes on the merging thread)", required = false)
+    public int encodeThreads = 0;
+
+    private double latenessSec = 0.0;
     private File inputPath = new File(".");
     private Set<File> inputFiles = new HashSet<>();
     private Map<File, String> inputFilesTags = new HashMap<>();
@@ -57,9 +88,14 @@ public class UnionHistogramLogs implements Runnable
         }
     }
 
-    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp", required = false)
+    @Option(name = "-inputFile", aliases = "-if", usage = "add an input hdr log from input path, also takes regexp, '-' reads stdin", required = false)
     public void addInputFile(String inputFile)
     {
+        if (HdrHistogramUtil.STD_STREAM.equals(inputFile))
+        {
+            inputFiles.add(new File(inputFile));
+            return;
+        }
         final Predicate<String> predicate = Pattern.compile(inputFile).asPredicate();
         inputFiles.addAll(Arrays.asList(inputPath.listFiles(pathname ->
         {
@@ -67,18 +103,24 @@ public class UnionHistogramLogs implements Runnable
         })));
     }
 
-    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute", required = false)
+    @Option(name = "-inputGlob", aliases = "-ig", usage = "add input hdr logs from input path and its sub folders matching a glob, e.g. '**.hdr'", required = false)
+    public void addInputGlob(String glob)
+    {
+        inputFiles.addAll(HdrHistogramUtil.findFiles(inputPath, glob));
+    }
+
+    @Option(name = "-inputFilePath", aliases = "-ifp", usage = "add an input file by path relative to working dir or absolute, '-' reads stdin", required = false)
     public void addInputFilePath(String inputFileName)
     {
         File in = new File(inputFileName);
-        if (!in.exists())
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
         {
             throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
         }
         inputFiles.add(in);
     }
 
-    @Option(name = "-taggedInputFile", aliases = "-tif", usage = "a <tag>=<filename> add an input file, tag all histograms from this file with tag. If histograms have a tag it will be conactanated to file tag.", required = false)
+    @Option(name = "-taggedInputFile", aliases = "-tif", usage = "a <tag>=<filename> add an input file, tag all histograms from this file with tag. If histograms have a tag it will be conactanated to file tag, '-' reads stdin.", required = false)
     public void addTaggedInputFile(String inputFileNameAndTag)
     {
         String[] args = inputFileNameAndTag.split("=");
@@ -90,7 +132,7 @@ public class UnionHistogramLogs implements Runnable
         String tag = args[0];
         String inputFileName = args[1];
         File in = new File(inputFileName);
-        if (!in.exists())
+        if (!in.exists() && !HdrHistogramUtil.isStdStream(in))
         {
             throw new IllegalArgumentException("file:" + inputFileName + " must exist!");
         }
@@ -98,7 +140,13 @@ public class UnionHistogramLogs implements Runnable
         inputFilesTags.put(in, tag);
     }
 
-    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, default goes to sysout", required = false)
+    @Option(name = "-lateness", aliases = "-l", usage = "how late intervals may be logged, e.g. 5s, intervals are put back in order as they are read, see the sort command for logs which are further out of order, (default: 0, logs are in order)", required = false)
+    public void setLateness(String lateness)
+    {
+        latenessSec = HdrHistogramUtil.parseDurationSec(lateness);
+    }
+
+    @Option(name = "-outputFile", aliases = "-of", usage = "set an output file destination, '-' or default goes to sysout", required = false)
     public void setOutputFile(String outputFileName)
     {
         outputFile = new File(outputFileName);
@@ -107,81 +155,151 @@ public class UnionHistogramLogs implements Runnable
     @Override
     public void run()
     {
+        if (alignToGrid && !(targetUnionSec > 0.0))
+        {
+            throw new IllegalArgumentException("-alignToGrid needs a -targetUnionSec above 0, was:" + targetUnionSec);
+        }
+        if (alignToGrid && unionThreads > 0)
+        {
+            throw new IllegalArgumentException("-unionThreads is not supported with -alignToGrid");
+        }
+        // keep stdout for the union when it's written there
+        final PrintStream log = (outputFile == null || HdrHistogramUtil.isStdStream(outputFile)) ?
+            System.err : System.out;
         if (verbose)
         {
             if (end != Double.MAX_VALUE)
             {
-                System.out.printf("start:%.2f end:%.2f path:%s\n", start, end, inputPath.getAbsolutePath());
+                log.printf("start:%.2f end:%.2f path:%s\n", start, end, inputPath.getAbsolutePath());
             }
             else
             {
-                System.out.printf("start:%.2f end: MAX path:%s\n", start, inputPath.getAbsolutePath());
+                log.printf("start:%.2f end: MAX path:%s\n", start, inputPath.getAbsolutePath());
             }
 
             if (!inputFiles.isEmpty())
             {
-                System.out.println("Reading files:");
+                log.println("Reading files:");
             }
             else
             {
-                System.out.println("No input files!");
+                log.println("No input files!");
             }
 
             for (File inputFile : inputFiles)
             {
-                System.out.println(inputFile.getAbsolutePath());
+                log.println(inputFile.getAbsolutePath());
             }
         }
         if (inputFiles.isEmpty())
         {
             return;
         }
+        if (start != 0.0 || end != Double.MAX_VALUE || absoluteRange)
+        {
+            int found = inputFiles.size();
+            inputFiles = new HashSet<>(
+                LogFileProbe.prune(inputFiles, start - latenessSec, end + latenessSec, absoluteRange));
+            if (verbose)
+            {
+                log.printf("Skipping %d of %d files outside of range%n", found - inputFiles.size(), found);
+            }
+        }
 
 
-        try
+        try (PrintStream report = HdrHistogramUtil.openOutput((outputFile == null) ? null : outputFile.getPath()))
         {
-            final PrintStream report;
-            if (outputFile != null)
+            LogParseErrors errors = LogParseErrors.create(maxErrors, quarantineFile);
+            HistogramPrefetcher prefetcher = (prefetch > 0) ?
+                new HistogramPrefetcher(prefetch, prefetchMemoryMb * 1024 * 1024) : null;
+            List<HistogramIterator> ins = new ArrayList<>();
+            List<OrderedHistogramLogReader> readers = new ArrayList<>();
+            for (File inputFile : inputFiles)
+            {
+                OrderedHistogramLogReader reader = new OrderedHistogramLogReader(
+                    inputFile, start, end, s -> false, absoluteRange, errors, latenessSec);
+                readers.add(reader);
+                ins.add(new HistogramIterator(reader, inputFilesTags.get(inputFile), relative, prefetcher));
+            }
+            final String comment = "Union of:" +
+                inputFiles +
+                " start:" +
+                start +
+                " end:" +
+                end +
+                " relative:" +
+                relative;
+            HistogramSink sink;
+            if (encodeThreads > 0)
             {
-                report = new PrintStream(new FileOutputStream(outputFile));
+                sink = new ParallelHistogramSink<>(new ParallelHistogramSink.EncodingSink<String>()
+                {
+                    long baseTimeMs;
+
+                    @Override
+                    public void startTime(double st)
+                    {
+                        baseTimeMs = createLogWriter(report, comment, relative ? 0.0 : st).getBaseTime();
+                    }
+
+                    @Override
+                    public String encode(Histogram h)
+                    {
+                        return HdrHistogramUtil.encodeIntervalLine(h, baseTimeMs);
+                    }
+
+                    @Override
+                    public void emit(String line)
+                    {
+                        report.print(line);
+                    }
+                }, encodeThreads, encodeThreads * 16);
             }
             else
             {
-                report = System.out;
+                sink = new HistogramSink()
+                {
+                    HistogramLogWriter writer;
+
+                    @Override
+                    public void startTime(double st)
+                    {
+                        writer = createLogWriter(report, comment, relative ? 0.0 : st);
+                    }
+
+                    @Override
+                    public void accept(Histogram h)
+                    {
+                        writer.outputIntervalHistogram(h);
+                    }
+                };
             }
-            List<HistogramIterator> ins = new ArrayList<>();
-            for (File inputFile : inputFiles)
+            if (alignToGrid)
             {
-                ins.add(new HistogramIterator(
-                    new OrderedHistogramLogReader(inputFile, start, end),
-                    inputFilesTags.get(inputFile),
-                    relative));
+                new GridUnionHistograms(verbose, log, ins, sink, (long) (targetUnionSec * 1000)).run();
             }
-            UnionHistograms unionHistograms = new UnionHistograms(verbose, System.out, ins, new HistogramSink()
+            else if (unionThreads > 0)
             {
-                HistogramLogWriter writer;
-
-                @Override
-                public void startTime(double st)
-                {
-                    String comment = "Union of:" +
-                        inputFiles +
-                        " start:" +
-                        start +
-                        " end:" +
-                        end +
-                        " relative:" +
-                        relative;
-                    writer = createLogWriter(report, comment, relative ? 0.0 : st);
-                }
-
-                @Override
-                public void accept(Histogram h)
-                {
-                    writer.outputIntervalHistogram(h);
-                }
-            }, (long)(targetUnionSec * 1000));
-            unionHistograms.run();
+                new ParallelUnionHistograms(verbose, log, ins, sink, (long) (targetUnionSec * 1000), unionThreads).run();
+            }
+            else
+            {
+                new UnionHistograms(verbose, log, ins, sink, (long) (targetUnionSec * 1000)).run();
+            }
+            long lateIntervals = 0;
+            for (OrderedHistogramLogReader reader : readers)
+            {
+                lateIntervals += reader.getLateIntervals();
+            }
+            if (lateIntervals != 0)
+            {
+                System.err.println(lateIntervals + " intervals were logged later than the lateness, and are out of order in the union. Sort the logs first.");
+            }
+            errors.close();
+            if (errors.getTotal() != 0)
+            {
+                errors.printCounts(System.err);
+            }
         }
         catch (Exception e)
         {
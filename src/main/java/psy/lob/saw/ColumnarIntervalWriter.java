@@ -0,0 +1,232 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the statistics of each interval as columns, to be loaded without parsing, e.g. memory mapped with numpy.
+ * <p>
+ * The file is "HDRCOL01", then chunks of up to chunkRows rows, then a JSON footer, its length in bytes (int32) and
+ * "HDRCOL01" again. Each chunk holds each column as a contiguous little endian array, padded to 8 bytes. The footer
+ * lists the columns (name and numpy dtype), the tags (the tag column holds an index into them) and the chunks (row
+ * count and the file offset of each column), so chunks can be read independently and in parallel:
+ * <pre>
+ * {"format":"hdr-columnar","version":1,"rows":2,
+ *  "columns":[{"name":"startMs","dtype":"&lt;i8"},{"name":"tag","dtype":"&lt;i4"},...],
+ *  "tags":["default","READ"],
+ *  "chunks":[{"rows":2,"offsets":[8,24,...]}]}
+ * </pre>
+ * The columns are startMs (interval start, ms since epoch), endMs, tag, count, min, mean, a column per percentile (e.g.
+ * p99 and p999 for 99.9) and max. Only one chunk is held in memory.
+ */
+public final class ColumnarIntervalWriter implements Closeable
+{
+    public static final String MAGIC = "HDRCOL01";
+
+    private final OutputStream out;
+    private final double[] percentiles;
+    private final int chunkRows;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> dtypes = new ArrayList<>();
+    private final ByteBuffer[] columns;
+    private final long[] percentileValues;
+    private final Map<String, Integer> tagIds = new LinkedHashMap<>();
+    private final StringBuilder chunkIndex = new StringBuilder();
+    private long offset;
+    private long rows;
+    private int chunkRowCount;
+
+    /**
+     * @param out         to write to, closed on close
+     * @param percentiles in ascending order
+     * @param chunkRows   maximum number of rows per chunk
+     */
+    public ColumnarIntervalWriter(OutputStream out, double[] percentiles, int chunkRows) throws IOException
+    {
+        if (chunkRows <= 0)
+        {
+            throw new IllegalArgumentException("chunkRows must be positive, was:" + chunkRows);
+        }
+        this.out = out;
+        this.percentiles = percentiles;
+        this.chunkRows = chunkRows;
+        this.percentileValues = new long[percentiles.length];
+        addColumn("startMs", "<i8");
+        addColumn("endMs", "<i8");
+        addColumn("tag", "<i4");
+        addColumn("count", "<i8");
+        addColumn("min", "<i8");
+        addColumn("mean", "<f8");
+        for (double percentile : percentiles)
+        {
+            addColumn(percentileName(percentile), "<i8");
+        }
+        addColumn("max", "<i8");
+        columns = new ByteBuffer[names.size()];
+        for (int c = 0; c < columns.length; c++)
+        {
+            int width = dtypes.get(c).endsWith("4") ? 4 : 8;
+            columns[c] = ByteBuffer.allocate(padded(width * chunkRows)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        writeBytes(MAGIC.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the column name of the percentile, e.g. p50 for 50 and p999 for 99.9. Names are not unique, e.g. 9.99 is
+     * also p999, and percentiles with the same name can not be written together
+     */
+    public static String percentileName(double percentile)
+    {
+        return "p" + BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString().replace(".", "");
+    }
+
+    public void write(Histogram interval) throws IOException
+    {
+        String tag = (interval.getTag() == null) ? "default" : interval.getTag();
+        Integer tagId = tagIds.get(tag);
+        if (tagId == null)
+        {
+            tagId = tagIds.size();
+            tagIds.put(tag, tagId);
+        }
+        HdrHistogramUtil.valuesAtPercentiles(interval, percentiles, percentileValues);
+        int c = 0;
+        columns[c++].putLong(interval.getStartTimeStamp());
+        columns[c++].putLong(interval.getEndTimeStamp());
+        columns[c++].putInt(tagId);
+        columns[c++].putLong(interval.getTotalCount());
+        columns[c++].putLong(interval.getMinValue());
+        columns[c++].putDouble(interval.getMean());
+        for (long value : percentileValues)
+        {
+            columns[c++].putLong(value);
+        }
+        columns[c].putLong(interval.getMaxValue());
+        rows++;
+        if (++chunkRowCount == chunkRows)
+        {
+            flushChunk();
+        }
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flushChunk();
+            StringBuilder footer = new StringBuilder();
+            footer.append("{\"format\":\"hdr-columnar\",\"version\":1,\"rows\":").append(rows).append(",\"columns\":[");
+            for (int c = 0; c < names.size(); c++)
+            {
+                footer.append((c == 0) ? "" : ",")
+                    .append("{\"name\":").append(jsonString(names.get(c)))
+                    .append(",\"dtype\":").append(jsonString(dtypes.get(c))).append('}');
+            }
+            footer.append("],\"tags\":[");
+            boolean first = true;
+            for (String tag : tagIds.keySet())
+            {
+                footer.append(first ? "" : ",").append(jsonString(tag));
+                first = false;
+            }
+            footer.append("],\"chunks\":[").append(chunkIndex).append("]}");
+            byte[] footerBytes = footer.toString().getBytes(StandardCharsets.UTF_8);
+            writeBytes(footerBytes);
+            writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(footerBytes.length).array());
+            writeBytes(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void addColumn(String name, String dtype)
+    {
+        if (names.contains(name))
+        {
+            throw new IllegalArgumentException("Duplicate column name:" + name);
+        }
+        names.add(name);
+        dtypes.add(dtype);
+    }
+
+    private void flushChunk() throws IOException
+    {
+        if (chunkRowCount == 0)
+        {
+            return;
+        }
+        chunkIndex.append((chunkIndex.length() == 0) ? "" : ",")
+            .append("{\"rows\":").append(chunkRowCount).append(",\"offsets\":[");
+        for (int c = 0; c < columns.length; c++)
+        {
+            ByteBuffer column = columns[c];
+            chunkIndex.append((c == 0) ? "" : ",").append(offset);
+            // pad so that every column starts 8 byte aligned
+            while (column.position() % 8 != 0)
+            {
+                column.put((byte) 0);
+            }
+            out.write(column.array(), 0, column.position());
+            offset += column.position();
+            column.clear();
+        }
+        chunkIndex.append("]}");
+        chunkRowCount = 0;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException
+    {
+        out.write(bytes);
+        offset += bytes.length;
+    }
+
+    private static int padded(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    private static String jsonString(String value)
+    {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\')
+            {
+                json.append('\\').append(ch);
+            }
+            else if (ch < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int) ch));
+            }
+            else
+            {
+                json.append(ch);
+            }
+        }
+        return json.append('"').toString();
+    }
+}
@@ -0,0 +1,73 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+/**
+ * Exponentially growing value buckets, as used by the csve summary: the first bucket is [0, firstBucketSize), and each
+ * bucket after it is twice as wide as the one before, [firstBucketSize, 2 * firstBucketSize), [2 * firstBucketSize,
+ * 4 * firstBucketSize) and so on. Bucket bounds are in output units, values are recorded values.
+ */
+public final class ExponentialBuckets
+{
+    /**
+     * Bucket starts double, so no more buckets than this are needed for any long value.
+     */
+    public static final int MAX_BUCKETS = 64;
+
+    private final long firstBucketSize;
+    private final double outputValueUnitRatio;
+
+    /**
+     * @param firstBucketSize      first bucket size, in output units
+     * @param outputValueUnitRatio recorded values are divided by this to get output values
+     */
+    public ExponentialBuckets(long firstBucketSize, double outputValueUnitRatio)
+    {
+        if (firstBucketSize <= 0)
+        {
+            throw new IllegalArgumentException("firstBucketSize must be positive, was:" + firstBucketSize);
+        }
+        this.firstBucketSize = firstBucketSize;
+        this.outputValueUnitRatio = outputValueUnitRatio;
+    }
+
+    /**
+     * @return the start of the bucket, in output units
+     */
+    public long start(int bucket)
+    {
+        return (bucket == 0) ? 0 : firstBucketSize << (bucket - 1);
+    }
+
+    /**
+     * @return the start of the bucket, in recorded units
+     */
+    public long recordedStart(int bucket)
+    {
+        return (long) (start(bucket) * outputValueUnitRatio);
+    }
+
+    /**
+     * @param value a recorded value
+     * @return the bucket holding it
+     */
+    public int bucketOf(long value)
+    {
+        long multiple = (long) (value / outputValueUnitRatio) / firstBucketSize;
+        return (multiple == 0) ? 0 : 64 - Long.numberOfLeadingZeros(multiple);
+    }
+
+    /**
+     * Add the counts of the histogram values to their buckets, in one walk of its recorded values.
+     *
+     * @param counts per bucket, at least {@link #MAX_BUCKETS} long
+     */
+    public void addCounts(Histogram histogram, long[] counts)
+    {
+        for (HistogramIterationValue v : histogram.recordedValues())
+        {
+            counts[bucketOf(histogram.lowestEquivalentValue(v.getValueIteratedTo()))] += v.getCountAtValueIteratedTo();
+        }
+    }
+}
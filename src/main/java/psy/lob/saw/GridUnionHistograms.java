@@ -0,0 +1,140 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Unions the inputs into intervals aligned to a fixed grid, e.g. on every 10 second boundary, rather than into unions
+ * formed around whichever interval comes first (see {@link UnionHistograms}).
+ * <p>
+ * Each input interval is assigned to the grid interval holding its midpoint, so the union of the same inputs is the
+ * same however their intervals are skewed. Inputs are merged in start time order, and the start of the next interval
+ * of each input is its watermark: no interval yet to be read from the input can be assigned to a grid interval which
+ * ends before it. A grid interval is written, and its histograms released, as soon as the watermarks of all inputs
+ * have passed it, so only the grid intervals between the slowest input and the fastest are held in memory.
+ */
+public class GridUnionHistograms implements Runnable
+{
+    private final boolean verbose;
+    private final PrintStream verboseOut;
+    private final List<HistogramIterator> inputs;
+    private final HistogramSink output;
+    private final long gridMs;
+
+    /**
+     * @param gridMs grid interval length, grid intervals start on whole multiples of it
+     */
+    public GridUnionHistograms(
+        boolean verbose,
+        PrintStream verboseOut,
+        List<HistogramIterator> inputs,
+        HistogramSink output,
+        long gridMs)
+    {
+        if (gridMs <= 0)
+        {
+            throw new IllegalArgumentException("gridMs must be positive, was:" + gridMs);
+        }
+        this.verbose = verbose;
+        this.verboseOut = verboseOut;
+        this.inputs = inputs;
+        this.output = output;
+        this.gridMs = gridMs;
+    }
+
+    @Override
+    public void run()
+    {
+        PriorityQueue<HistogramIterator> ins =
+            new PriorityQueue<>(Comparator.comparingLong(HistogramIterator::nextStartTimeStamp));
+        for (HistogramIterator input : inputs)
+        {
+            if (input.hasNext())
+            {
+                ins.add(input);
+            }
+        }
+        if (ins.isEmpty())
+        {
+            if (verbose)
+            {
+                verboseOut.println("Input files do not contain range");
+            }
+            output.finish();
+            return;
+        }
+
+        output.startTime(ins.peek().getStartTimeSec());
+
+        // open grid intervals, by index, each with a union per tag
+        TreeMap<Long, Map<String, Histogram>> open = new TreeMap<>();
+        while (!ins.isEmpty())
+        {
+            HistogramIterator input = ins.poll();
+            Histogram next = input.next();
+            if (input.hasNext())
+            {
+                ins.add(input);
+            }
+
+            long midpoint = next.getStartTimeStamp() + (next.getEndTimeStamp() - next.getStartTimeStamp()) / 2;
+            long index = Math.floorDiv(midpoint, gridMs);
+            Histogram union = open.computeIfAbsent(index, k -> new HashMap<>())
+                .computeIfAbsent(next.getTag(), tag ->
+                {
+                    Histogram h = new Histogram(next.getNumberOfSignificantValueDigits());
+                    h.setTag(tag);
+                    return h;
+                });
+            union.add(next);
+            if (verbose)
+            {
+                verboseOut.print(input.source());
+                verboseOut.print(", ");
+                HdrHistogramUtil.logHistogramForVerbose(verboseOut, next, (int) index);
+            }
+
+            // all inputs are past the watermark, grid intervals ending by it are complete
+            long watermark = ins.isEmpty() ? Long.MAX_VALUE : ins.peek().nextStartTimeStamp();
+            Iterator<Map.Entry<Long, Map<String, Histogram>>> complete = open.entrySet().iterator();
+            while (complete.hasNext())
+            {
+                Map.Entry<Long, Map<String, Histogram>> grid = complete.next();
+                if ((grid.getKey() + 1) * gridMs > watermark)
+                {
+                    break;
+                }
+                outputGrid(grid.getKey(), grid.getValue());
+                complete.remove();
+            }
+        }
+        output.finish();
+    }
+
+    private void outputGrid(long index, Map<String, Histogram> unionByTag)
+    {
+        List<Histogram> unions = new ArrayList<>(unionByTag.values());
+        // tags in a stable order, the default tag first
+        unions.sort(Comparator.comparing(Histogram::getTag, Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (Histogram union : unions)
+        {
+            union.setStartTimeStamp(index * gridMs);
+            union.setEndTimeStamp((index + 1) * gridMs);
+            if (verbose)
+            {
+                verboseOut.print("union, ");
+                HdrHistogramUtil.logHistogramForVerbose(verboseOut, union, (int) index);
+            }
+            output.accept(union);
+        }
+    }
+}
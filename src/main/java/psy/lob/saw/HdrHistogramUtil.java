@@ -1,15 +1,46 @@
 package psy.lob.saw;
 
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
 import org.HdrHistogram.HistogramLogWriter;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 public class HdrHistogramUtil
 {
+    /**
+     * The file name standing for stdin, or stdout, on the command line.
+     */
+    public static final String STD_STREAM = "-";
+    // a pipe's worth of data per read or write
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = new ThreadLocal<>();
+    /**
+     * The percentiles of the summary output.
+     */
+    public static final double[] SUMMARY_PERCENTILES = {50, 90, 99, 99.9, 99.99, 99.999};
+
     public static void logHistogramForVerbose(PrintStream verboseOut, Histogram interval, int i)
     {
         logHistogramForVerbose(verboseOut, interval, i, 1);
@@ -37,6 +68,133 @@ public class HdrHistogramUtil
             interval.getTotalCount() / intervalLengthSec);
     }
 
+    /**
+     * @return true if the file is {@link #STD_STREAM}, i.e. stdin or stdout rather than a file
+     */
+    public static boolean isStdStream(File file)
+    {
+        return file != null && STD_STREAM.equals(file.getPath());
+    }
+
+    /**
+     * @return the input to read, stdin if the file is {@link #STD_STREAM}
+     * @throws FileNotFoundException when unable to find input
+     */
+    public static InputStream openInput(File input) throws FileNotFoundException
+    {
+        return isStdStream(input) ? System.in : LogFileCache.open(input);
+    }
+
+    /**
+     * Open a buffered output for a report or log. Output is written in large blocks rather than a line at a time, so
+     * the stream must be closed (or flushed) when done. Closing the stdout stream flushes it and leaves stdout open.
+     *
+     * @param fileName to write to, stdout if null or {@link #STD_STREAM}
+     * @return the output stream
+     * @throws FileNotFoundException when unable to create the file
+     */
+    public static PrintStream openOutput(String fileName) throws FileNotFoundException
+    {
+        if (fileName == null || STD_STREAM.equals(fileName))
+        {
+            final PrintStream stdout = System.out;
+            return new PrintStream(new BufferedOutputStream(new FilterOutputStream(stdout)
+            {
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                    stdout.write(b, off, len);
+                }
+
+                @Override
+                public void close()
+                {
+                    stdout.flush();
+                }
+            }, STREAM_BUFFER_BYTES));
+        }
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName), STREAM_BUFFER_BYTES));
+    }
+
+    /**
+     * Walks the folder and its sub folders for files matching the glob pattern, e.g. "**.hdr" or "2018-??/*.hdr".
+     *
+     * @param folder to walk
+     * @param glob   pattern matched against the file path relative to folder
+     * @return matching files
+     */
+    public static List<File> findFiles(File folder, String glob)
+    {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Path root = folder.toPath();
+        try (Stream<Path> paths = Files.walk(root))
+        {
+            return paths
+                .filter(path -> Files.isRegularFile(path) && matcher.matches(root.relativize(path)))
+                .map(Path::toFile)
+                .collect(Collectors.toList());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parse a duration, e.g. "90" or "90s" for seconds, "15m" for minutes, "1h" for hours or "1d" for days.
+     *
+     * @param duration to parse
+     * @return the duration in seconds
+     * @throws IllegalArgumentException if the duration is not valid or not positive
+     */
+    public static double parseDurationSec(String duration)
+    {
+        String value = duration.trim();
+        double unitSec = 1.0;
+        if (!value.isEmpty())
+        {
+            switch (Character.toLowerCase(value.charAt(value.length() - 1)))
+            {
+                case 's':
+                    unitSec = 1.0;
+                    break;
+                case 'm':
+                    unitSec = 60.0;
+                    break;
+                case 'h':
+                    unitSec = 3600.0;
+                    break;
+                case 'd':
+                    unitSec = 24 * 3600.0;
+                    break;
+                default:
+                    unitSec = 0.0;
+            }
+            if (unitSec != 0.0)
+            {
+                value = value.substring(0, value.length() - 1);
+            }
+            else
+            {
+                unitSec = 1.0;
+            }
+        }
+        double durationSec;
+        try
+        {
+            durationSec = Double.parseDouble(value) * unitSec;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid duration:" + duration + ", expected e.g. 90s, 15m, 1h or 1d");
+        }
+        if (!(durationSec > 0.0) || Double.isInfinite(durationSec))
+        {
+            throw new IllegalArgumentException("Duration must be positive, was:" + duration);
+        }
+        return durationSec;
+    }
+
     public static HistogramLogWriter createLogWriter(File output, String comment, double startTimeSec)
     {
         try
@@ -59,6 +217,150 @@ public class HdrHistogramUtil
         return createLogWriter(new HistogramLogWriter(output), comment, startTimeSec);
     }
 
+    /**
+     * Copy h, including its tag, into a histogram with the same value range so that the copy encodes the same as h.
+     *
+     * @param reuse histogram to copy into if it has the same value range, may be null
+     * @return the copy, reuse or a new histogram
+     */
+    public static Histogram copyWithSameRange(Histogram h, Histogram reuse)
+    {
+        Histogram copy = reuse;
+        if (copy == null ||
+            copy.getNumberOfSignificantValueDigits() != h.getNumberOfSignificantValueDigits() ||
+            copy.getLowestDiscernibleValue() != h.getLowestDiscernibleValue() ||
+            copy.getHighestTrackableValue() != h.getHighestTrackableValue())
+        {
+            copy = new Histogram(
+                h.getLowestDiscernibleValue(),
+                h.getHighestTrackableValue(),
+                h.getNumberOfSignificantValueDigits());
+            copy.setAutoResize(true);
+        }
+        h.copyInto(copy);
+        copy.setTag(h.getTag());
+        return copy;
+    }
+
+    /**
+     * Print a summary of the sum of a tag, as the summarize command does, e.g.:
+     * <pre>
+     * READ.TotalCount=436461
+     * READ.Period(ms)=600000
+     * READ.Throughput(ops/sec)=727.44
+     * ...
+     * READ.99.900ptile=23039
+     * READ.Max=24991
+     * </pre>
+     *
+     * @param period      of the sum in ms, the throughput is over it
+     * @param percentiles to print the values at
+     */
+    public static void printPercentiles(
+        PrintStream out,
+        Histogram sum,
+        long period,
+        double[] percentiles,
+        double outputValueUnitRatio)
+    {
+        double avgThpt = (sum.getTotalCount() * 1000.0) / period;
+        String tag = (sum.getTag() == null) ? "" : sum.getTag() + ".";
+        out.printf("%sTotalCount=%d%n", tag, sum.getTotalCount());
+        out.printf("%sPeriod(ms)=%d%n", tag, period);
+        out.printf("%sThroughput(ops/sec)=%.2f%n", tag, avgThpt);
+        out.printf("%sMin=%d%n", tag, (long) (sum.getMinValue() / outputValueUnitRatio));
+        out.printf("%sMean=%.2f%n", tag, sum.getMean() / outputValueUnitRatio);
+        out.printf("%sStdDev=%.2f%n", tag, sum.getStdDeviation() / outputValueUnitRatio);
+        for (double percentile : percentiles)
+        {
+            out.printf("%s%.3fptile=%d%n", tag, percentile,
+                (long) (sum.getValueAtPercentile(percentile) / outputValueUnitRatio));
+        }
+        out.printf("%sMax=%d%n", tag, (long) (sum.getMaxValue() / outputValueUnitRatio));
+    }
+
+    /**
+     * The values at several percentiles, as {@link Histogram#getValueAtPercentile(double)} gives them, in one walk of
+     * the recorded values rather than a walk per percentile.
+     *
+     * @param percentiles in ascending order
+     * @param values      set to the value at each percentile, 0 if h is empty
+     */
+    public static void valuesAtPercentiles(Histogram h, double[] percentiles, long[] values)
+    {
+        long totalCount = h.getTotalCount();
+        long[] countAtPercentile = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++)
+        {
+            // as getValueAtPercentile, less 1 ulp to avoid rounding up into the next bucket
+            double requested = Math.nextAfter(percentiles[i], Double.NEGATIVE_INFINITY);
+            requested = Math.min(Math.max(requested, 0.0), 100.0);
+            countAtPercentile[i] = Math.max((long) Math.ceil(requested * totalCount / 100.0), 1);
+            values[i] = 0;
+        }
+        int p = 0;
+        long countToValue = 0;
+        for (HistogramIterationValue v : h.recordedValues())
+        {
+            countToValue += v.getCountAtValueIteratedTo();
+            long value = h.lowestEquivalentValue(v.getValueIteratedTo());
+            for (; p < percentiles.length && countToValue >= countAtPercentile[p]; p++)
+            {
+                values[p] = (percentiles[p] == 0.0) ? value : h.highestEquivalentValue(value);
+            }
+            if (p == percentiles.length)
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Encode an interval as a log line, the same as {@link HistogramLogWriter#outputIntervalHistogram(org.HdrHistogram.EncodableHistogram)}
+     * writes it, so that intervals can be encoded concurrently and written in order elsewhere.
+     *
+     * @param interval   to encode
+     * @param baseTimeMs log base time, as set on the writer
+     * @return the log line, including the line end
+     */
+    public static String encodeIntervalLine(Histogram interval, long baseTimeMs)
+    {
+        ByteBuffer buffer = ENCODE_BUFFER.get();
+        if (buffer == null || buffer.capacity() < interval.getNeededByteBufferCapacity())
+        {
+            buffer = ByteBuffer.allocate(interval.getNeededByteBufferCapacity());
+            ENCODE_BUFFER.set(buffer);
+        }
+        buffer.clear();
+        int compressedLength = interval.encodeIntoCompressedByteBuffer(buffer, Deflater.BEST_COMPRESSION);
+        String payload = Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), compressedLength));
+        double startTimeStampSec = (interval.getStartTimeStamp() - baseTimeMs) / 1000.0;
+        double endTimeStampSec = (interval.getEndTimeStamp() - baseTimeMs) / 1000.0;
+        String tag = interval.getTag();
+        if (tag == null)
+        {
+            return String.format(Locale.US, "%.3f,%.3f,%.3f,%s\n",
+                startTimeStampSec,
+                endTimeStampSec - startTimeStampSec,
+                interval.getMaxValueAsDouble() / 1000000.0,
+                payload);
+        }
+        for (int i = 0; i < tag.length(); i++)
+        {
+            char c = tag.charAt(i);
+            if (c == ',' || c == ' ' || c == '\r' || c == '\n')
+            {
+                throw new IllegalArgumentException("Tag string cannot contain commas, spaces, or line breaks");
+            }
+        }
+        return String.format(Locale.US, "Tag=%s,%.3f,%.3f,%.3f,%s\n",
+            tag,
+            startTimeStampSec,
+            endTimeStampSec - startTimeStampSec,
+            interval.getMaxValueAsDouble() / 1000000.0,
+            payload);
+    }
+
     private static HistogramLogWriter createLogWriter(
         HistogramLogWriter writer,
         String comment,
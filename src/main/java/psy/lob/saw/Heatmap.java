@@ -0,0 +1,183 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Value bucket counts over time, a column of {@link ExponentialBuckets} counts per period of time, built as intervals
+ * are read. Each interval is counted into the column holding its start time.
+ * <p>
+ * Columns are a whole number of resolution periods wide, the number doubling as the log grows so that no more than
+ * maxColumns columns span it: adjacent column pairs are merged, the way a chart is downsampled, and memory is bounded
+ * by maxColumns whatever the length of the log. As columns always start on multiples of their width, heatmaps of
+ * several logs merge by downsampling the finer one to the width of the coarser.
+ */
+public final class Heatmap
+{
+    private final ExponentialBuckets buckets;
+    private final double resolutionSec;
+    private final int maxColumns;
+    private final TreeMap<Long, long[]> columns = new TreeMap<>();
+    private long periodsPerColumn = 1;
+    private int bucketCount;
+
+    /**
+     * @param resolutionSec the narrowest column width, in seconds
+     * @param maxColumns    columns are widened to keep their number at or below this
+     */
+    public Heatmap(ExponentialBuckets buckets, double resolutionSec, int maxColumns)
+    {
+        if (resolutionSec <= 0.0)
+        {
+            throw new IllegalArgumentException("resolutionSec must be positive, was:" + resolutionSec);
+        }
+        if (maxColumns < 2)
+        {
+            throw new IllegalArgumentException("maxColumns must be at least 2, was:" + maxColumns);
+        }
+        this.buckets = buckets;
+        this.resolutionSec = resolutionSec;
+        this.maxColumns = maxColumns;
+    }
+
+    /**
+     * @param offsetSec time subtracted from the interval start time, e.g. the log start time
+     */
+    public void add(Histogram interval, double offsetSec)
+    {
+        if (interval.getTotalCount() == 0)
+        {
+            return;
+        }
+        long period = (long) Math.floor((interval.getStartTimeStamp() / 1000.0 - offsetSec) / resolutionSec);
+        long[] counts = column(Math.floorDiv(period, periodsPerColumn));
+        buckets.addCounts(interval, counts);
+        long max = interval.lowestEquivalentValue(interval.getMaxValue());
+        bucketCount = Math.max(bucketCount, buckets.bucketOf(max) + 1);
+        downsample();
+    }
+
+    /**
+     * Add the counts of other, which must be over the same buckets and resolution.
+     *
+     * @return this
+     */
+    public Heatmap add(Heatmap other)
+    {
+        if (other.resolutionSec != resolutionSec)
+        {
+            throw new IllegalArgumentException("Heatmaps are of different resolutions");
+        }
+        while (periodsPerColumn < other.periodsPerColumn)
+        {
+            halveColumns();
+        }
+        for (Map.Entry<Long, long[]> otherColumn : other.columns.entrySet())
+        {
+            long[] counts = column(Math.floorDiv(otherColumn.getKey() * other.periodsPerColumn, periodsPerColumn));
+            long[] otherCounts = otherColumn.getValue();
+            for (int b = 0; b < other.bucketCount; b++)
+            {
+                counts[b] += otherCounts[b];
+            }
+        }
+        bucketCount = Math.max(bucketCount, other.bucketCount);
+        downsample();
+        return this;
+    }
+
+    /**
+     * Widen the columns to the width, e.g. to line up heatmaps of several tags.
+     *
+     * @param columnWidthSec the column width of another heatmap of the same resolution, at least this width
+     */
+    public void widenTo(double columnWidthSec)
+    {
+        while (getColumnWidthSec() < columnWidthSec)
+        {
+            halveColumns();
+        }
+    }
+
+    /**
+     * @return the column width, in seconds
+     */
+    public double getColumnWidthSec()
+    {
+        return periodsPerColumn * resolutionSec;
+    }
+
+    /**
+     * @return the number of buckets up to the last one with a count
+     */
+    public int getBucketCount()
+    {
+        return bucketCount;
+    }
+
+    /**
+     * @return the index of the first column, column i starts at i * column width seconds, 0 if there are no columns
+     */
+    public long getFirstColumn()
+    {
+        return columns.isEmpty() ? 0 : columns.firstKey();
+    }
+
+    /**
+     * @return the number of columns from the first to the last with counts, inclusive
+     */
+    public int getColumnCount()
+    {
+        return (int) span();
+    }
+
+    private long span()
+    {
+        return columns.isEmpty() ? 0 : columns.lastKey() - columns.firstKey() + 1;
+    }
+
+    /**
+     * @param column column index, as of {@link #getFirstColumn()}
+     * @return the bucket counts of the column, all 0 for columns with no counts, not to be modified
+     */
+    public long[] getCounts(long column)
+    {
+        long[] counts = columns.get(column);
+        return (counts == null) ? new long[ExponentialBuckets.MAX_BUCKETS] : counts;
+    }
+
+    private long[] column(long column)
+    {
+        return columns.computeIfAbsent(column, k -> new long[ExponentialBuckets.MAX_BUCKETS]);
+    }
+
+    private void downsample()
+    {
+        while (span() > maxColumns)
+        {
+            halveColumns();
+        }
+    }
+
+    private void halveColumns()
+    {
+        TreeMap<Long, long[]> halved = new TreeMap<>();
+        for (Map.Entry<Long, long[]> column : columns.entrySet())
+        {
+            long[] counts = halved.putIfAbsent(Math.floorDiv(column.getKey(), 2), column.getValue());
+            if (counts != null)
+            {
+                long[] pairCounts = column.getValue();
+                for (int b = 0; b < counts.length; b++)
+                {
+                    counts[b] += pairCounts[b];
+                }
+            }
+        }
+        columns.clear();
+        columns.putAll(halved);
+        periodsPerColumn *= 2;
+    }
+}
@@ -5,6 +5,7 @@ import org.HdrHistogram.Histogram;
 public class HistogramIterator implements Comparable<HistogramIterator>
 {
     private final OrderedHistogramLogReader reader;
+    private final HistogramPrefetcher.Prefetched prefetched;
     private Histogram next;
     private final String tag;
     private final boolean relative;
@@ -15,8 +16,21 @@ public class HistogramIterator implements Comparable<HistogramIterator>
     }
 
     public HistogramIterator(OrderedHistogramLogReader reader, String tag, boolean relative)
+    {
+        this(reader, tag, relative, null);
+    }
+
+    /**
+     * @param prefetcher if not null the reader is read ahead in the background by the prefetcher
+     */
+    public HistogramIterator(
+        OrderedHistogramLogReader reader,
+        String tag,
+        boolean relative,
+        HistogramPrefetcher prefetcher)
     {
         this.reader = reader;
+        this.prefetched = (prefetcher == null) ? null : prefetcher.start(reader);
         this.tag = tag;
         this.relative = relative;
         // init the reader
@@ -25,11 +39,18 @@ public class HistogramIterator implements Comparable<HistogramIterator>
 
     private void read()
     {
-        do
+        if (prefetched != null)
+        {
+            next = prefetched.take();
+        }
+        else
         {
-            next = (Histogram) reader.nextIntervalHistogram();
+            do
+            {
+                next = (Histogram) reader.nextIntervalHistogram();
+            }
+            while (next == null && reader.hasNext());
         }
-        while (next == null && reader.hasNext());
         if (next == null)
         {
             return;
@@ -39,7 +60,7 @@ public class HistogramIterator implements Comparable<HistogramIterator>
         if (relative)
         {
             long length = next.getEndTimeStamp() - next.getStartTimeStamp();
-            long nextStartTime = (long) (next.getStartTimeStamp() - reader.getStartTimeSec() * 1000);
+            long nextStartTime = (long) (next.getStartTimeStamp() - getStartTimeSec() * 1000);
             next.setStartTimeStamp(nextStartTime);
             next.setEndTimeStamp(next.getStartTimeStamp() + length);
         }
@@ -69,6 +90,14 @@ public class HistogramIterator implements Comparable<HistogramIterator>
         return next != null;
     }
 
+    /**
+     * @return the start time stamp of the next histogram, to be called only if there is one
+     */
+    public long nextStartTimeStamp()
+    {
+        return next.getStartTimeStamp();
+    }
+
     @Override
     public int compareTo(HistogramIterator o)
     {
@@ -89,7 +118,7 @@ public class HistogramIterator implements Comparable<HistogramIterator>
 
     public double getStartTimeSec()
     {
-        return reader.getStartTimeSec();
+        return (prefetched == null) ? reader.getStartTimeSec() : prefetched.getStartTimeSec();
     }
     
     public String source()
@@ -13,11 +13,12 @@ import org.HdrHistogram.Histogram;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Locale;
-import java.util.Scanner;
 import java.util.zip.DataFormatException;
 
 /**
@@ -60,6 +61,11 @@ import java.util.zip.DataFormatException;
  * by a number parse-able as a double, representing the start time (in seconds)
  * that may be added to timestamps in the file to determine an absolute
  * timestamp (e.g. since the epoch) for each interval.
+ * <h3>Corrupt lines:</h3>
+ * Interval lines are validated field by field as they are read, without throwing on
+ * bad input. A corrupt line is reported to the {@link LogParseErrors} the scanner was
+ * created with, along with its byte offset in the log, and is then skipped (or fails
+ * the read, as per the errors policy).
  */
 public class HistogramLogScanner implements Closeable
 {
@@ -75,7 +81,7 @@ public class HistogramLogScanner implements Closeable
     public interface EventHandler
     {
         /**
-         * @param comment a non-standard comment observed in the log, e.g. "#Our's is a nice 'ouse, our's is, We've got no rats or mouses"
+         * @param comment a non-standard comment line observed in the log, e.g. "#Our's is a nice 'ouse, our's is, We've got no rats or mouses"
          * @return false to keep processing, true to stop
          */
         boolean onComment(String comment);
@@ -94,7 +100,8 @@ public class HistogramLogScanner implements Closeable
 
         /**
          * A lazy reader is provided to allow fast skipping of bulk of work where tag or timestamp are to be used as
-         * a basis for filtering the {@link EncodableHistogram} anyway. The reader is to be called only once.
+         * a basis for filtering the {@link EncodableHistogram} anyway. The reader is to be called only once. A
+         * corrupt histogram is reported to the scanner errors before the reader throws.
          *
          * @param tag        histogram tag or null if none exist
          * @param timestamp  logged timestamp
@@ -105,25 +112,41 @@ public class HistogramLogScanner implements Closeable
         boolean onHistogram(String tag, double timestamp, double length, EncodableHistogramSupplier lazyReader);
 
         /**
-         * @param t an exception observed while processing the log
+         * As above, with the interval max as logged so that intervals can also be filtered on their max before they
+         * are deserialized. The logged max is rounded, and scaled down by the max value unit ratio the log was
+         * written with (1000000 by default). Defaults to ignoring the logged max.
+         *
+         * @param tag        histogram tag or null if none exist
+         * @param timestamp  logged timestamp
+         * @param length     logged interval length
+         * @param loggedMax  logged interval max
+         * @param lazyReader to be called if the histogram needs to be deserialized, given the tag/timestamp etc.
+         * @return false to keep processing, true to stop
+         */
+        default boolean onHistogram(
+            String tag, double timestamp, double length, double loggedMax,
+            EncodableHistogramSupplier lazyReader)
+        {
+            return onHistogram(tag, timestamp, length, lazyReader);
+        }
+
+        /**
+         * @param t an unexpected exception observed while processing the log, corrupt lines do not get here
          * @return false to keep processing, true to stop
          */
         boolean onException(Throwable t);
     }
 
-    private static class LazyHistogramReader implements EncodableHistogramSupplier
+    private final class LazyHistogramReader implements EncodableHistogramSupplier
     {
-
-        private final Scanner scanner;
+        private int payloadStart;
+        private int payloadEnd;
         private boolean gotIt = true;
 
-        private LazyHistogramReader(Scanner scanner)
-        {
-            this.scanner = scanner;
-        }
-
-        private void allowGet()
+        private void allowGet(int payloadStart, int payloadEnd)
         {
+            this.payloadStart = payloadStart;
+            this.payloadEnd = payloadEnd;
             gotIt = false;
         }
 
@@ -137,12 +160,34 @@ public class HistogramLogScanner implements Closeable
             }
             gotIt = true;
 
-            final String compressedPayloadString = scanner.next();
-            final ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(compressedPayloadString));
-
-            EncodableHistogram histogram = decodeFromCompressedByteBuffer(buffer, 0);
+            if (!isBase64(lineBytes, payloadStart, payloadEnd))
+            {
+                throw corruptHistogram(null);
+            }
+            // decoding a ByteBuffer slice of the line is not reliable on all JDKs, decode a copy
+            final ByteBuffer buffer = ByteBuffer.wrap(
+                Base64.getDecoder().decode(Arrays.copyOfRange(lineBytes, payloadStart, payloadEnd)));
+            if (buffer.remaining() < 4)
+            {
+                throw corruptHistogram(null);
+            }
+            try
+            {
+                return decodeFromCompressedByteBuffer(buffer, 0);
+            }
+            catch (DataFormatException | RuntimeException e)
+            {
+                // a payload which passes the checks above may still fail decoding, nothing to do but catch it
+                throw corruptHistogram(e);
+            }
+        }
 
-            return histogram;
+        private DataFormatException corruptHistogram(Exception cause)
+        {
+            errors.onError(source, lineOffset, LogParseErrors.Category.BAD_HISTOGRAM, lineString());
+            DataFormatException e = new DataFormatException("Corrupt histogram at " + source + ":" + lineOffset);
+            e.initCause(cause);
+            return e;
         }
     }
 
@@ -171,9 +216,47 @@ public class HistogramLogScanner implements Closeable
         return cookie == 208802382;
     }
 
-    private final LazyHistogramReader lazyReader;
+    private static final byte[] START_TIME = "#[StartTime:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE_TIME = "#[BaseTime:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEGEND = "\"StartTimestamp\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAG = "Tag=".getBytes(StandardCharsets.US_ASCII);
+    // powers of 10 which are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static
+    {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private final LazyHistogramReader lazyReader = new LazyHistogramReader();
+    private final InputStream in;
     private final String source;
-    protected final Scanner scanner;
+    private final LogParseErrors errors;
+
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    private boolean eof;
+    private IOException readFailure;
+    // offset in the log of the next byte in the buffer
+    private long offset;
+
+    // the current line, either a slice of the buffer or of the overflow array for lines spanning reads
+    private byte[] overflow = new byte[4 * 1024];
+    private byte[] lineBytes;
+    private int lineStart;
+    private int lineEnd;
+    private long lineOffset;
+    // field bounds as found by nextField
+    private int fieldStart;
+    private int fieldEnd;
+    // tags repeat, keep the last one around to save decoding it for every line
+    private byte[] lastTagBytes = new byte[0];
+    private String lastTag;
 
     /**
      * @param inputFileName The name of the file to read from
@@ -181,7 +264,7 @@ public class HistogramLogScanner implements Closeable
      */
     public HistogramLogScanner(final String inputFileName) throws FileNotFoundException
     {
-        this(new Scanner(new File(inputFileName)), inputFileName);
+        this(LogFileCache.open(new File(inputFileName)), inputFileName, 0, new LogParseErrors());
     }
 
     /**
@@ -189,7 +272,16 @@ public class HistogramLogScanner implements Closeable
      */
     public HistogramLogScanner(final InputStream inputStream)
     {
-        this(new Scanner(inputStream), inputStream.toString());
+        this(inputStream, inputStream.toString(), 0, new LogParseErrors());
+    }
+
+    /**
+     * @param inputStream The InputStream to read from
+     * @param source      name of the log being read
+     */
+    HistogramLogScanner(final InputStream inputStream, String source)
+    {
+        this(inputStream, source, 0, new LogParseErrors());
     }
 
     /**
@@ -198,118 +290,183 @@ public class HistogramLogScanner implements Closeable
      */
     public HistogramLogScanner(final File inputFile) throws FileNotFoundException
     {
-        this(new Scanner(inputFile), inputFile.getName());
+        this(inputFile, new LogParseErrors());
     }
 
-    private HistogramLogScanner(Scanner scanner, String source)
+    /**
+     * @param inputFile The File to read from, or {@link HdrHistogramUtil#STD_STREAM} to read from stdin
+     * @param errors    to report corrupt lines to
+     * @throws FileNotFoundException when unable to find inputFile
+     */
+    public HistogramLogScanner(final File inputFile, LogParseErrors errors) throws FileNotFoundException
     {
-        this.scanner = scanner;
-        this.lazyReader = new LazyHistogramReader(scanner);
-        this.source = source;
-        initScanner();
+        this(
+            HdrHistogramUtil.openInput(inputFile),
+            HdrHistogramUtil.isStdStream(inputFile) ? "stdin" : inputFile.getName(),
+            0,
+            errors);
     }
 
-    private void initScanner()
+    /**
+     * @param inputStream   The InputStream to read from
+     * @param source        name of the log being read
+     * @param initialOffset offset in the log of the first byte in the stream, used to report corrupt lines
+     * @param errors        to report corrupt lines to
+     */
+    HistogramLogScanner(final InputStream inputStream, String source, long initialOffset, LogParseErrors errors)
     {
-        scanner.useLocale(Locale.US);
-        scanner.useDelimiter("[ ,\\r\\n]");
+        this.in = inputStream;
+        this.source = source;
+        this.offset = initialOffset;
+        this.errors = errors;
     }
 
     /**
-     * Close underlying scanner. Note that if initialized with InputStream then the stream is closed as a result.
+     * Close underlying stream.
      */
     @Override
     public void close()
     {
-        scanner.close();
+        try
+        {
+            in.close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do about it
+        }
     }
 
     /**
      * Reads the log, delivering events to the provided handler until the handler signals to stop or the end of the log.
-     * 
+     *
      * @param handler to handle s**t
+     * @throws LogParseErrors.CorruptLogException if the errors policy fails the read
      */
     public void process(EventHandler handler)
     {
-        while (scanner.hasNextLine())
+        while (nextLine())
         {
             try
             {
-                if (scanner.hasNext("\\#.*"))
+                if (processLine(handler))
                 {
-                    // comment line.
-                    // Look for explicit start time or base time notes in comments:
-                    if (scanner.hasNext("#\\[StartTime:"))
-                    {
-                        scanner.next("#\\[StartTime:");
-                        if (scanner.hasNextDouble())
-                        {
-                            double startTimeSec = scanner.nextDouble(); // start time represented as seconds since epoch
-                            if (handler.onStartTime(startTimeSec))
-                            {
-                                return;
-                            }
-                        }
-                    }
-                    else if (scanner.hasNext("#\\[BaseTime:"))
-                    {
-                        scanner.next("#\\[BaseTime:");
-                        if (scanner.hasNextDouble())
-                        {
-                            double baseTimeSec = scanner.nextDouble(); // base time represented as seconds since epoch
-                            if (handler.onBaseTime(baseTimeSec))
-                            {
-                                return;
-                            }
-                        }
-                    }
-                    else if (handler.onComment(scanner.next("\\#.*")))
-                    {
-                        return;
-                    }
-                    continue;
-                }
-
-                if (scanner.hasNext("\"StartTimestamp\".*"))
-                {
-                    // Legend line
-                    continue;
-                }
-
-                String tagString = null;
-                if (scanner.hasNext("Tag\\=.*"))
-                {
-                    tagString = scanner.next("Tag\\=.*").substring(4);
+                    return;
                 }
-
-                // Decode: startTimestamp, intervalLength, maxTime, histogramPayload
-                final double logTimeStampInSec = scanner.nextDouble(); // Timestamp is expected to be in seconds
-                final double intervalLengthSec = scanner.nextDouble(); // Timestamp length is expect to be in seconds
-                scanner.nextDouble(); // Skip maxTime field, as max time can be deduced from the histogram.
-
-                lazyReader.allowGet();
-                if (handler.onHistogram(tagString, logTimeStampInSec, intervalLengthSec, lazyReader))
+            }
+            catch (LogParseErrors.CorruptLogException e)
+            {
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                errors.onError(source, lineOffset, LogParseErrors.Category.OTHER, lineString());
+                if (handler.onException(e))
                 {
                     return;
                 }
-
             }
-            catch (Throwable ex)
+        }
+        if (readFailure != null)
+        {
+            IOException e = readFailure;
+            readFailure = null;
+            handler.onException(e);
+        }
+    }
+
+    /**
+     * @return true if the handler asked to stop
+     */
+    private boolean processLine(EventHandler handler)
+    {
+        if (!nextField(lineStart))
+        {
+            // empty line
+            return false;
+        }
+        final byte[] bytes = lineBytes;
+        if (bytes[fieldStart] == '#')
+        {
+            // comment line.
+            // Look for explicit start time or base time notes in comments:
+            if (fieldEquals(START_TIME))
             {
-                if (handler.onException(ex))
+                if (nextField(fieldEnd))
                 {
-                    return;
+                    double startTimeSec = parseNumber(bytes, fieldStart, fieldEnd);
+                    // start time represented as seconds since epoch
+                    return !Double.isNaN(startTimeSec) && handler.onStartTime(startTimeSec);
                 }
+                return false;
             }
-            finally
+            else if (fieldEquals(BASE_TIME))
             {
-                if (scanner.hasNextLine())
+                if (nextField(fieldEnd))
                 {
-                    scanner.nextLine(); // Move to next line.
+                    double baseTimeSec = parseNumber(bytes, fieldStart, fieldEnd);
+                    // base time represented as seconds since epoch
+                    return !Double.isNaN(baseTimeSec) && handler.onBaseTime(baseTimeSec);
                 }
+                return false;
             }
+            return handler.onComment(lineString());
+        }
+
+        if (fieldStartsWith(LEGEND))
+        {
+            // Legend line
+            return false;
+        }
+
+        String tagString = null;
+        if (fieldStartsWith(TAG))
+        {
+            tagString = tag(fieldStart + TAG.length, fieldEnd);
+            if (!nextField(fieldEnd))
+            {
+                return corrupt(LogParseErrors.Category.TRUNCATED);
+            }
+        }
+
+        // Decode: startTimestamp, intervalLength, maxTime, histogramPayload
+        final double logTimeStampInSec = parseNumber(bytes, fieldStart, fieldEnd); // Timestamp is expected to be in seconds
+        if (!nextField(fieldEnd))
+        {
+            return corrupt(LogParseErrors.Category.TRUNCATED);
+        }
+        final double intervalLengthSec = parseNumber(bytes, fieldStart, fieldEnd); // Timestamp length is expect to be in seconds
+        if (!nextField(fieldEnd))
+        {
+            return corrupt(LogParseErrors.Category.TRUNCATED);
         }
-        return;
+        final double maxTime = parseNumber(bytes, fieldStart, fieldEnd);
+        if (!nextField(fieldEnd))
+        {
+            return corrupt(LogParseErrors.Category.TRUNCATED);
+        }
+        if (Double.isNaN(logTimeStampInSec))
+        {
+            return corrupt(LogParseErrors.Category.BAD_TIMESTAMP);
+        }
+        if (Double.isNaN(intervalLengthSec))
+        {
+            return corrupt(LogParseErrors.Category.BAD_INTERVAL_LENGTH);
+        }
+        // max time can be deduced from the histogram, but is handy for filtering before decoding it
+        if (Double.isNaN(maxTime))
+        {
+            return corrupt(LogParseErrors.Category.BAD_INTERVAL_MAX);
+        }
+
+        lazyReader.allowGet(fieldStart, fieldEnd);
+        return handler.onHistogram(tagString, logTimeStampInSec, intervalLengthSec, maxTime, lazyReader);
+    }
+
+    private boolean corrupt(LogParseErrors.Category category)
+    {
+        errors.onError(source, lineOffset, category, lineString());
+        return false;
     }
 
     /**
@@ -319,11 +476,298 @@ public class HistogramLogScanner implements Closeable
      */
     public boolean hasNextLine()
     {
-        return scanner.hasNextLine();
+        return position < limit || fill();
     }
 
     public String source()
     {
         return source;
     }
+
+    private boolean fill()
+    {
+        while (!eof)
+        {
+            int read;
+            try
+            {
+                read = in.read(buffer);
+            }
+            catch (IOException e)
+            {
+                // like a Scanner, a failed read ends the log
+                readFailure = e;
+                read = -1;
+            }
+            if (read < 0)
+            {
+                eof = true;
+            }
+            else if (read > 0)
+            {
+                position = 0;
+                limit = read;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the next line, excluding the line end. Lines which fit in the buffer are not copied.
+     *
+     * @return false at the end of the log
+     */
+    private boolean nextLine()
+    {
+        if (!hasNextLine())
+        {
+            return false;
+        }
+        lineOffset = offset;
+        int overflowLength = 0;
+        while (true)
+        {
+            int newLine = indexOfNewLine(buffer, position, limit);
+            int end = (newLine < 0) ? limit : newLine;
+            if (overflowLength == 0 && newLine >= 0)
+            {
+                setLine(buffer, position, end);
+            }
+            else
+            {
+                overflowLength = appendToOverflow(overflowLength, position, end);
+            }
+            int consumed = ((newLine < 0) ? limit : newLine + 1) - position;
+            offset += consumed;
+            position += consumed;
+            if (newLine >= 0)
+            {
+                break;
+            }
+            if (!fill())
+            {
+                // last line has no line end
+                break;
+            }
+        }
+        if (overflowLength != 0 || lineBytes != buffer)
+        {
+            setLine(overflow, 0, overflowLength);
+        }
+        return true;
+    }
+
+    private void setLine(byte[] bytes, int start, int end)
+    {
+        // drop the '\r' of a '\r\n' line end
+        if (end > start && bytes[end - 1] == '\r')
+        {
+            end--;
+        }
+        lineBytes = bytes;
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    private int appendToOverflow(int overflowLength, int from, int to)
+    {
+        int length = to - from;
+        if (overflowLength + length > overflow.length)
+        {
+            overflow = Arrays.copyOf(overflow, Math.max(overflow.length * 2, overflowLength + length));
+        }
+        System.arraycopy(buffer, from, overflow, overflowLength, length);
+        // mark the line as not in the buffer
+        lineBytes = overflow;
+        return overflowLength + length;
+    }
+
+    private static int indexOfNewLine(byte[] bytes, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String lineString()
+    {
+        return new String(lineBytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isDelimiter(byte b)
+    {
+        return b == ',' || b == ' ' || b == '\r';
+    }
+
+    /**
+     * Find the next field in the current line, starting at from. Consecutive delimiters are treated as one.
+     *
+     * @return false if there are no more fields in the line
+     */
+    private boolean nextField(int from)
+    {
+        final byte[] bytes = lineBytes;
+        int i = from;
+        while (i < lineEnd && isDelimiter(bytes[i]))
+        {
+            i++;
+        }
+        if (i == lineEnd)
+        {
+            return false;
+        }
+        fieldStart = i;
+        while (i < lineEnd && !isDelimiter(bytes[i]))
+        {
+            i++;
+        }
+        fieldEnd = i;
+        return true;
+    }
+
+    private boolean fieldEquals(byte[] expected)
+    {
+        return fieldEnd - fieldStart == expected.length && fieldStartsWith(expected);
+    }
+
+    private boolean fieldStartsWith(byte[] prefix)
+    {
+        if (fieldEnd - fieldStart < prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (lineBytes[fieldStart + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String tag(int start, int end)
+    {
+        int length = end - start;
+        boolean same = length == lastTagBytes.length;
+        for (int i = 0; same && i < length; i++)
+        {
+            same = lineBytes[start + i] == lastTagBytes[i];
+        }
+        if (!same)
+        {
+            lastTagBytes = Arrays.copyOfRange(lineBytes, start, end);
+            lastTag = new String(lastTagBytes, StandardCharsets.UTF_8);
+        }
+        return lastTag;
+    }
+
+    /**
+     * Parse a decimal number, e.g. "-12.345" or "1.2e3", without throwing on invalid input.
+     *
+     * @return the number, or NaN if the text is not a valid number
+     */
+    static double parseNumber(byte[] bytes, int from, int to)
+    {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+        {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; i < to; i++)
+        {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9')
+            {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point)
+                {
+                    fractionDigits++;
+                }
+            }
+            else if (b == '.' && !point)
+            {
+                point = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (digits == 0)
+        {
+            return Double.NaN;
+        }
+        if (i < to)
+        {
+            // the only valid remainder is an exponent
+            if (bytes[i] != 'e' && bytes[i] != 'E')
+            {
+                return Double.NaN;
+            }
+            i++;
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                i++;
+            }
+            if (i == to)
+            {
+                return Double.NaN;
+            }
+            for (; i < to; i++)
+            {
+                if (bytes[i] < '0' || bytes[i] > '9')
+                {
+                    return Double.NaN;
+                }
+            }
+        }
+        else if (digits <= 15)
+        {
+            // mantissa and power of ten are exact, so dividing them is as exact as Double.parseDouble
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        // validated above, will not throw
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Check the text is Base64 which the basic decoder accepts, padding is optional.
+     */
+    static boolean isBase64(byte[] bytes, int from, int to)
+    {
+        int end = to;
+        while (end > from && to - end < 2 && bytes[end - 1] == '=')
+        {
+            end--;
+        }
+        int length = end - from;
+        if (length == 0 || length % 4 == 1 || (end != to && (to - from) % 4 != 0))
+        {
+            return false;
+        }
+        for (int i = from; i < end; i++)
+        {
+            byte b = bytes[i];
+            if (!((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '+' || b == '/'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 }
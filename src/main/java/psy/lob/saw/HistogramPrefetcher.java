@@ -0,0 +1,232 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads intervals ahead of their consumption on background threads, so that a consumer of several logs (e.g. a union)
+ * does not stall on each log's I/O and decoding in turn. Each prefetched log gets a bounded queue filled by its own
+ * reader thread, virtual threads are used where the runtime supports them. The memory held by all queued intervals
+ * is capped by a shared budget, but a log with an empty queue may always read one interval so that the consumer can
+ * never be starved by the other logs' read ahead.
+ */
+public class HistogramPrefetcher
+{
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try
+        {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            // no virtual threads, fall back to platform threads
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private static final Object END = new Object();
+    private final AtomicInteger threadIndex = new AtomicInteger();
+    private final int depth;
+    private final int budgetKb;
+    private final Semaphore budget;
+
+    /**
+     * @param depth          maximum number of intervals read ahead per log
+     * @param maxMemoryBytes cap on the estimated footprint of all read ahead intervals
+     */
+    public HistogramPrefetcher(int depth, long maxMemoryBytes)
+    {
+        if (depth < 1)
+        {
+            throw new IllegalArgumentException("depth must be positive, was:" + depth);
+        }
+        this.depth = depth;
+        this.budgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxMemoryBytes / 1024));
+        this.budget = new Semaphore(budgetKb);
+    }
+
+    /**
+     * Start reading ahead from the reader, the reader should not be used directly from here on.
+     */
+    public Prefetched start(OrderedHistogramLogReader reader)
+    {
+        Prefetched prefetched = new Prefetched(reader);
+        Thread thread = newThread(prefetched::fill, "prefetch-" + threadIndex.getAndIncrement() + "-" + reader.source());
+        thread.start();
+        return prefetched;
+    }
+
+    private static Thread newThread(Runnable task, String name)
+    {
+        if (OF_VIRTUAL != null)
+        {
+            try
+            {
+                Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+                thread.setName(name);
+                return thread;
+            }
+            catch (ReflectiveOperationException e)
+            {
+                // fall through to platform thread
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static final class Item
+    {
+        final Histogram histogram;
+        final double startTimeSec;
+        final int permits;
+
+        Item(Histogram histogram, double startTimeSec, int permits)
+        {
+            this.histogram = histogram;
+            this.startTimeSec = startTimeSec;
+            this.permits = permits;
+        }
+    }
+
+    public final class Prefetched
+    {
+        private final OrderedHistogramLogReader reader;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(depth);
+        private volatile boolean closed;
+        private double startTimeSec;
+
+        private Prefetched(OrderedHistogramLogReader reader)
+        {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next interval, or null if the log is exhausted
+         */
+        public Histogram take()
+        {
+            Object next;
+            try
+            {
+                next = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (next == END)
+            {
+                // leave the end marker for repeated calls
+                queue.offer(END);
+                return null;
+            }
+            if (next instanceof Throwable)
+            {
+                queue.offer(next);
+                throw new IllegalStateException("Failed reading ahead from:" + reader.source(), (Throwable) next);
+            }
+            Item item = (Item) next;
+            budget.release(item.permits);
+            startTimeSec = item.startTimeSec;
+            return item.histogram;
+        }
+
+        /**
+         * @return the reader start time as of the last interval taken
+         */
+        public double getStartTimeSec()
+        {
+            return startTimeSec;
+        }
+
+        public String source()
+        {
+            return reader.source();
+        }
+
+        /**
+         * Stop reading ahead and release the queued intervals.
+         */
+        public void close()
+        {
+            closed = true;
+            drain();
+        }
+
+        private void drain()
+        {
+            Object next;
+            while ((next = queue.poll()) != null)
+            {
+                if (next instanceof Item)
+                {
+                    budget.release(((Item) next).permits);
+                }
+            }
+        }
+
+        private void fill()
+        {
+            try
+            {
+                while (!closed && reader.hasNext())
+                {
+                    Histogram next = (Histogram) reader.nextIntervalHistogram();
+                    if (next == null)
+                    {
+                        continue;
+                    }
+                    int permits = Math.min(budgetKb, (next.getEstimatedFootprintInBytes() + 1023) / 1024);
+                    boolean acquired = false;
+                    while (!closed && !(acquired = budget.tryAcquire(permits, 10, TimeUnit.MILLISECONDS)))
+                    {
+                        if (queue.isEmpty())
+                        {
+                            // the consumer may be waiting on this log, go over budget rather than starve it
+                            break;
+                        }
+                    }
+                    if (closed)
+                    {
+                        if (acquired)
+                        {
+                            budget.release(permits);
+                        }
+                        break;
+                    }
+                    queue.put(new Item(next, reader.getStartTimeSec(), acquired ? permits : 0));
+                }
+                if (!closed)
+                {
+                    queue.put(END);
+                }
+            }
+            catch (Throwable t)
+            {
+                drain();
+                queue.offer(t);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+    }
+}
@@ -7,4 +7,11 @@ public interface HistogramSink
     void startTime(double st);
 
     void accept(Histogram h);
+
+    /**
+     * Called once all histograms were accepted.
+     */
+    default void finish()
+    {
+    }
 }
@@ -0,0 +1,132 @@
+package psy.lob.saw;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks a deterministic, stratified sample of the intervals of a log: the intervals of each tag are cut into strata of
+ * stride consecutive intervals, and one interval of each stratum is picked, at the same place in every stratum (which
+ * varies by tag). Intervals not picked are skipped by the reader before they are decoded (see
+ * {@link OrderedHistogramLogReader#sample(IntervalSampler)}), while the number and time span of all intervals are
+ * counted so the sample can be scaled up.
+ */
+public final class IntervalSampler
+{
+    private static final class TagCounts
+    {
+        final long phase;
+        long seen;
+        long selected;
+        long startTimeStamp = Long.MAX_VALUE;
+        long endTimeStamp = 0;
+
+        TagCounts(long phase)
+        {
+            this.phase = phase;
+        }
+    }
+
+    private final int stride;
+    private final Map<String, TagCounts> countsByTag = new HashMap<>();
+    private long intervalLengthSum;
+
+    /**
+     * @param fraction of the intervals to pick, e.g. 0.01 picks 1 in 100
+     */
+    public IntervalSampler(double fraction)
+    {
+        if (!(fraction > 0.0 && fraction <= 1.0))
+        {
+            throw new IllegalArgumentException("fraction must be above 0 and at most 1, was:" + fraction);
+        }
+        this.stride = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(1.0 / fraction)));
+    }
+
+    /**
+     * @return the number of intervals in a stratum, one of which is picked
+     */
+    public int getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * Called for every interval in range, in log order.
+     *
+     * @param tag            the interval tag, may be null
+     * @param startTimeStamp interval start, ms since epoch
+     * @param endTimeStamp   interval end, ms since epoch
+     * @return true if the interval is picked, and should be decoded
+     */
+    public boolean select(String tag, long startTimeStamp, long endTimeStamp)
+    {
+        TagCounts counts = countsByTag.get(tag);
+        if (counts == null)
+        {
+            counts = new TagCounts(((tag == null) ? 0 : tag.hashCode() & Integer.MAX_VALUE) % stride);
+            countsByTag.put(tag, counts);
+        }
+        counts.startTimeStamp = Math.min(counts.startTimeStamp, startTimeStamp);
+        counts.endTimeStamp = Math.max(counts.endTimeStamp, endTimeStamp);
+        intervalLengthSum += endTimeStamp - startTimeStamp;
+        if (counts.seen++ % stride != counts.phase)
+        {
+            return false;
+        }
+        counts.selected++;
+        return true;
+    }
+
+    /**
+     * @return the sum of the lengths of all intervals in range, picked or not, in ms
+     */
+    public long getIntervalLengthSum()
+    {
+        return intervalLengthSum;
+    }
+
+    /**
+     * @return the tags seen, null for intervals with no tag
+     */
+    public Set<String> getTags()
+    {
+        return countsByTag.keySet();
+    }
+
+    /**
+     * @return the number of intervals of the tag in range, picked or not
+     */
+    public long getSeen(String tag)
+    {
+        TagCounts counts = countsByTag.get(tag);
+        return (counts == null) ? 0 : counts.seen;
+    }
+
+    /**
+     * @return the number of intervals of the tag picked
+     */
+    public long getSelected(String tag)
+    {
+        TagCounts counts = countsByTag.get(tag);
+        return (counts == null) ? 0 : counts.selected;
+    }
+
+    /**
+     * @return the earliest start of the intervals of the tag in range, picked or not, ms since epoch
+     */
+    public long getStartTimeStamp(String tag)
+    {
+        TagCounts counts = countsByTag.get(tag);
+        return (counts == null) ? Long.MAX_VALUE : counts.startTimeStamp;
+    }
+
+    /**
+     * @return the latest end of the intervals of the tag in range, picked or not, ms since epoch
+     */
+    public long getEndTimeStamp(String tag)
+    {
+        TagCounts counts = countsByTag.get(tag);
+        return (counts == null) ? 0 : counts.endTimeStamp;
+    }
+}
@@ -0,0 +1,186 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compacts a log as it is read, trading detail for size: intervals are rewritten with fewer significant value digits,
+ * and merged by tag into the intervals of a coarser grid, each interval going to the grid interval holding its
+ * midpoint (as the grid aligned union does). Intervals with a midpoint at or after keepFromMs are recent, and are
+ * passed on as they are.
+ * <p>
+ * The error introduced is measured as it goes: every compacted interval, and the sum of each tag over the whole log,
+ * is checked against the exact sum of the same intervals at their original precision, at the 50th to the 100th
+ * percentile. Merging intervals loses time resolution but not values, so only the precision reduction shows.
+ */
+public final class LogCompactor
+{
+    private static final double[] CHECKED_PERCENTILES = {50, 90, 99, 99.9, 99.99, 100};
+    private static final Comparator<String> TAG_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private final int significantDigits;
+    private final long intervalMs;
+    private final long keepFromMs;
+    private final HistogramSink sink;
+    // open grid intervals, by grid index then tag, each a compacted histogram and the exact sum it is checked against
+    private final TreeMap<Long, Map<String, Histogram[]>> cells = new TreeMap<>();
+    // the compacted and exact sums of each tag over the whole log
+    private final Map<String, Histogram[]> sumsByTag = new HashMap<>();
+    private long intervalsIn;
+    private long intervalsOut;
+    private double maxIntervalError;
+    private double maxSummaryError;
+
+    /**
+     * @param significantDigits number of significant value digits to rewrite intervals with, intervals with fewer are
+     *                          left as they are
+     * @param intervalMs        grid interval length, 0 to keep the interval lengths of the log
+     * @param keepFromMs        intervals with a midpoint at or after this time, in ms since epoch, are kept as they are,
+     *                          Long.MAX_VALUE to compact all intervals. Rounded down to the grid
+     * @param sink              to pass the compacted intervals to, in start time order
+     */
+    public LogCompactor(int significantDigits, long intervalMs, long keepFromMs, HistogramSink sink)
+    {
+        if (significantDigits < 0 || significantDigits > 5)
+        {
+            throw new IllegalArgumentException("significantDigits must be between 0 and 5, was:" + significantDigits);
+        }
+        if (intervalMs < 0)
+        {
+            throw new IllegalArgumentException("intervalMs must not be negative, was:" + intervalMs);
+        }
+        this.significantDigits = significantDigits;
+        this.intervalMs = intervalMs;
+        // compacted grid intervals must end by the time kept intervals start
+        this.keepFromMs = (intervalMs == 0 || keepFromMs == Long.MAX_VALUE) ?
+            keepFromMs : Math.floorDiv(keepFromMs, intervalMs) * intervalMs;
+        this.sink = sink;
+    }
+
+    /**
+     * @param interval the next interval, in start time order, not kept
+     */
+    public void add(Histogram interval)
+    {
+        intervalsIn++;
+        long midpoint = interval.getStartTimeStamp() + (interval.getEndTimeStamp() - interval.getStartTimeStamp()) / 2;
+        if (midpoint >= keepFromMs)
+        {
+            flushCells(Long.MAX_VALUE);
+            emit(interval, interval);
+            return;
+        }
+        int digits = Math.min(significantDigits, interval.getNumberOfSignificantValueDigits());
+        if (intervalMs == 0)
+        {
+            Histogram compacted = new Histogram(digits);
+            compacted.add(interval);
+            compacted.setStartTimeStamp(interval.getStartTimeStamp());
+            compacted.setEndTimeStamp(interval.getEndTimeStamp());
+            compacted.setTag(interval.getTag());
+            emit(compacted, interval);
+            return;
+        }
+        // no interval to come can fall in a grid interval ending by the start of this one
+        flushCells(interval.getStartTimeStamp());
+        Histogram[] cell = cells.computeIfAbsent(Math.floorDiv(midpoint, intervalMs), k -> new HashMap<>())
+            .computeIfAbsent(interval.getTag(), k -> new Histogram[]{
+                new Histogram(digits), new Histogram(interval.getNumberOfSignificantValueDigits())});
+        cell[0].add(interval);
+        cell[1].add(interval);
+    }
+
+    /**
+     * Pass on the remaining intervals, and finish the sink.
+     */
+    public void finish()
+    {
+        flushCells(Long.MAX_VALUE);
+        for (Histogram[] sums : sumsByTag.values())
+        {
+            maxSummaryError = Math.max(maxSummaryError, maxPercentileError(sums[0], sums[1]));
+        }
+        sink.finish();
+    }
+
+    public long getIntervalsIn()
+    {
+        return intervalsIn;
+    }
+
+    public long getIntervalsOut()
+    {
+        return intervalsOut;
+    }
+
+    /**
+     * @return the largest relative error of a checked percentile of a compacted interval, e.g. 0.01 for 1%
+     */
+    public double getMaxIntervalError()
+    {
+        return maxIntervalError;
+    }
+
+    /**
+     * @return the largest relative error of a checked percentile of the sum of a tag over the log, e.g. 0.01 for 1%
+     */
+    public double getMaxSummaryError()
+    {
+        return maxSummaryError;
+    }
+
+    private void flushCells(long beforeMs)
+    {
+        while (!cells.isEmpty() && (cells.firstKey() + 1) * intervalMs <= beforeMs)
+        {
+            Map.Entry<Long, Map<String, Histogram[]>> cell = cells.pollFirstEntry();
+            List<String> tags = new ArrayList<>(cell.getValue().keySet());
+            tags.sort(TAG_ORDER);
+            for (String tag : tags)
+            {
+                Histogram[] compactedAndExact = cell.getValue().get(tag);
+                Histogram compacted = compactedAndExact[0];
+                compacted.setStartTimeStamp(cell.getKey() * intervalMs);
+                compacted.setEndTimeStamp((cell.getKey() + 1) * intervalMs);
+                compacted.setTag(tag);
+                emit(compacted, compactedAndExact[1]);
+            }
+        }
+    }
+
+    private void emit(Histogram compacted, Histogram exact)
+    {
+        if (compacted != exact)
+        {
+            maxIntervalError = Math.max(maxIntervalError, maxPercentileError(compacted, exact));
+        }
+        Histogram[] sums = sumsByTag.computeIfAbsent(compacted.getTag(), k -> new Histogram[]{
+            new Histogram(exact.getNumberOfSignificantValueDigits()),
+            new Histogram(exact.getNumberOfSignificantValueDigits())});
+        sums[0].add(compacted);
+        sums[1].add(exact);
+        intervalsOut++;
+        sink.accept(compacted);
+    }
+
+    private static double maxPercentileError(Histogram compacted, Histogram exact)
+    {
+        double maxError = 0.0;
+        for (double percentile : CHECKED_PERCENTILES)
+        {
+            long exactValue = exact.getValueAtPercentile(percentile);
+            if (exactValue != 0)
+            {
+                long compactedValue = compacted.getValueAtPercentile(percentile);
+                maxError = Math.max(maxError, Math.abs(compactedValue - exactValue) / (double) exactValue);
+            }
+        }
+        return maxError;
+    }
+}
@@ -0,0 +1,148 @@
+package psy.lob.saw;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A process wide cache of log file contents, used when many commands run in the same JVM and read the same logs
+ * (see the batch command). When enabled each cached file is read from disk once, and concurrent readers of the same
+ * file wait for the single read in flight. Cached files are dropped least recently used first when the cache is over
+ * capacity, and are re-read if modified. Files larger than the capacity are never cached.
+ * <p>
+ * The cache is disabled by default, in which case files are read directly.
+ */
+public final class LogFileCache
+{
+    private static volatile LogFileCache instance;
+
+    private final long capacityBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private static final class Entry
+    {
+        final long length;
+        final long lastModified;
+        final CompletableFuture<byte[]> contents = new CompletableFuture<>();
+
+        Entry(long length, long lastModified)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private LogFileCache(long capacityBytes)
+    {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public static void enable(long capacityBytes)
+    {
+        instance = new LogFileCache(capacityBytes);
+    }
+
+    public static void disable()
+    {
+        instance = null;
+    }
+
+    /**
+     * @param file to read
+     * @return a stream of the file contents, served from the cache if enabled
+     * @throws FileNotFoundException when unable to find file
+     */
+    public static InputStream open(File file) throws FileNotFoundException
+    {
+        LogFileCache cache = instance;
+        if (cache == null || !file.isFile() || file.length() > cache.capacityBytes)
+        {
+            return new FileInputStream(file);
+        }
+        return new ByteArrayInputStream(cache.get(file));
+    }
+
+    private byte[] get(File file) throws FileNotFoundException
+    {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Entry entry;
+        boolean load = false;
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+            if (entry == null || entry.length != length || entry.lastModified != lastModified)
+            {
+                if (entry != null)
+                {
+                    entries.remove(key);
+                    cachedBytes -= entry.length;
+                }
+                entry = new Entry(length, lastModified);
+                entries.put(key, entry);
+                cachedBytes += length;
+                evict(entry);
+                load = true;
+            }
+        }
+        if (load)
+        {
+            try
+            {
+                entry.contents.complete(Files.readAllBytes(file.toPath()));
+            }
+            catch (IOException e)
+            {
+                entry.contents.completeExceptionally(e);
+                synchronized (entries)
+                {
+                    if (entries.remove(key, entry))
+                    {
+                        cachedBytes -= entry.length;
+                    }
+                }
+            }
+        }
+        try
+        {
+            return entry.contents.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            FileNotFoundException notFound = new FileNotFoundException(file + ": " + e.getCause().getMessage());
+            notFound.initCause(e.getCause());
+            throw notFound;
+        }
+    }
+
+    private void evict(Entry keep)
+    {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (cachedBytes > capacityBytes && iterator.hasNext())
+        {
+            Entry eldest = iterator.next().getValue();
+            if (eldest == keep)
+            {
+                continue;
+            }
+            iterator.remove();
+            cachedBytes -= eldest.length;
+        }
+    }
+}
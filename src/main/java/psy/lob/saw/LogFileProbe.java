@@ -0,0 +1,392 @@
+package psy.lob.saw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the time range covered by a log by reading only its header and its tail, so that logs which can not
+ * contribute to a time range can be dropped before they are parsed. Timestamps are resolved to the log start time
+ * and base time the same way {@link OrderedHistogramLogReader} resolves them.
+ * <p>
+ * As logs are written in timestamp order, the probe can also find where a time range starts in a log by bisecting
+ * over byte offsets (see {@link #seek(double, boolean)}).
+ */
+public class LogFileProbe
+{
+    private static final int MAX_HEADER_LINES = 1000;
+    private static final int TAIL_BYTES = 64 * 1024;
+    private static final int MAX_TAIL_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+    // bisect until the range start is known to be within this many bytes, then read on from there
+    private static final int SEEK_RESOLUTION_BYTES = 64 * 1024;
+
+    private final File file;
+    private final double startTimeSec;
+    private final double baseTimeSec;
+    private final long firstIntervalOffset;
+    private final double firstTimestamp;
+    private final double lastTimestamp;
+
+    private LogFileProbe(
+        File file,
+        double startTimeSec,
+        double baseTimeSec,
+        long firstIntervalOffset,
+        double firstTimestamp,
+        double lastTimestamp)
+    {
+        this.file = file;
+        this.startTimeSec = startTimeSec;
+        this.baseTimeSec = baseTimeSec;
+        this.firstIntervalOffset = firstIntervalOffset;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * @return the probe of the file, or null if the file has no intervals or the range can not be determined
+     * @throws IOException on failure to read the file
+     */
+    public static LogFileProbe probe(File file) throws IOException
+    {
+        double startTimeSec = 0.0;
+        boolean observedStartTime = false;
+        double baseTimeSec = 0.0;
+        boolean observedBaseTime = false;
+        double firstTimestamp = Double.NaN;
+        long firstIntervalOffset = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            long offset = 0;
+            Line line;
+            for (int i = 0; i < MAX_HEADER_LINES && (line = lineAt(raf, offset)) != null; i++)
+            {
+                if (line.text.startsWith("#[StartTime:"))
+                {
+                    startTimeSec = parseCommentTime(line.text, "#[StartTime:");
+                    observedStartTime = !Double.isNaN(startTimeSec);
+                }
+                else if (line.text.startsWith("#[BaseTime:"))
+                {
+                    baseTimeSec = parseCommentTime(line.text, "#[BaseTime:");
+                    observedBaseTime = !Double.isNaN(baseTimeSec);
+                }
+                else
+                {
+                    double[] interval = parseInterval(line.text);
+                    if (interval != null)
+                    {
+                        firstTimestamp = interval[0];
+                        firstIntervalOffset = line.start;
+                        break;
+                    }
+                }
+                offset = line.end;
+            }
+        }
+        if (Double.isNaN(firstTimestamp))
+        {
+            return null;
+        }
+        double lastTimestamp = lastTimestamp(file);
+        if (Double.isNaN(lastTimestamp))
+        {
+            return null;
+        }
+        if (!observedStartTime)
+        {
+            startTimeSec = firstTimestamp;
+        }
+        if (!observedBaseTime)
+        {
+            // same criteria as the reader, timestamps more than a year before start time are not absolute
+            baseTimeSec = (firstTimestamp < startTimeSec - (365 * 24 * 3600.0)) ? startTimeSec : 0.0;
+        }
+        return new LogFileProbe(file, startTimeSec, baseTimeSec, firstIntervalOffset, firstTimestamp, lastTimestamp);
+    }
+
+    /**
+     * Probes the files in parallel, and keeps those which may have intervals starting within the range. Files which
+     * can not be probed, and stdin, are kept.
+     *
+     * @param files             candidate input files
+     * @param rangeStartTimeSec range start in seconds, relative to each log start time unless absolute
+     * @param rangeEndTimeSec   range end in seconds, relative to each log start time unless absolute
+     * @param absolute          range is in seconds since epoch
+     * @return the files which may contribute to the range
+     */
+    public static List<File> prune(
+        Collection<File> files,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        boolean absolute)
+    {
+        return files.parallelStream()
+            .filter(file ->
+            {
+                if (HdrHistogramUtil.isStdStream(file))
+                {
+                    return true;
+                }
+                try
+                {
+                    LogFileProbe probe = probe(file);
+                    return probe == null || probe.mayContribute(rangeStartTimeSec, rangeEndTimeSec, absolute);
+                }
+                catch (IOException e)
+                {
+                    return true;
+                }
+            })
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @return true if the log may have intervals starting within the range
+     */
+    public boolean mayContribute(double rangeStartTimeSec, double rangeEndTimeSec, boolean absolute)
+    {
+        double offset = absolute ? 0.0 : startTimeSec;
+        return getFirstIntervalSec() - offset <= rangeEndTimeSec && getLastIntervalSec() - offset >= rangeStartTimeSec;
+    }
+
+    /**
+     * Bisect the log for the range start. Sampled timestamps are checked to be ordered by offset, if they are not the
+     * log is out of order and can only be scanned from the start.
+     *
+     * @param rangeStartTimeSec range start in seconds, relative to the log start time unless absolute
+     * @param absolute          range is in seconds since epoch
+     * @return offset of a line such that all intervals before it start before the range, or 0 if no such line is
+     * found or the log is out of order
+     * @throws IOException on failure to read the log
+     */
+    public long seek(double rangeStartTimeSec, boolean absolute) throws IOException
+    {
+        // the range start as it would be logged
+        final double target = (absolute ? rangeStartTimeSec : rangeStartTimeSec + startTimeSec) - baseTimeSec;
+        if (firstTimestamp >= target || lastTimestamp < firstTimestamp)
+        {
+            return 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            long lo = firstIntervalOffset;
+            double loTimestamp = firstTimestamp;
+            long hi = raf.length();
+            double hiTimestamp = lastTimestamp;
+            while (hi - lo > SEEK_RESOLUTION_BYTES)
+            {
+                long mid = lo + (hi - lo) / 2;
+                Line line = lineAt(raf, mid);
+                double[] interval = (line == null) ? null : parseInterval(line.text);
+                if (interval == null)
+                {
+                    // past the last line, or a line we can't make sense of, look before it
+                    hi = mid;
+                    continue;
+                }
+                double timestamp = interval[0];
+                if (timestamp < loTimestamp || timestamp > hiTimestamp)
+                {
+                    return 0;
+                }
+                if (timestamp < target)
+                {
+                    lo = line.start;
+                    loTimestamp = timestamp;
+                }
+                else
+                {
+                    hi = mid;
+                    hiTimestamp = timestamp;
+                }
+            }
+            return (lo == firstIntervalOffset) ? 0 : lo;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public double getStartTimeSec()
+    {
+        return startTimeSec;
+    }
+
+    public double getBaseTimeSec()
+    {
+        return baseTimeSec;
+    }
+
+    /**
+     * @return absolute start time of the first interval in seconds
+     */
+    public double getFirstIntervalSec()
+    {
+        return firstTimestamp + baseTimeSec;
+    }
+
+    /**
+     * @return absolute start time of the last interval in seconds
+     */
+    public double getLastIntervalSec()
+    {
+        return lastTimestamp + baseTimeSec;
+    }
+
+    private static final class Line
+    {
+        final long start;
+        final long end;
+        final String text;
+
+        Line(long start, long end, String text)
+        {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @return the first line starting at or after offset, or null if there is none
+     */
+    private static Line lineAt(RandomAccessFile raf, long offset) throws IOException
+    {
+        long length = raf.length();
+        long start = offset;
+        if (offset > 0)
+        {
+            long newLine = indexOfNewLine(raf, offset - 1, length);
+            if (newLine < 0)
+            {
+                return null;
+            }
+            start = newLine + 1;
+        }
+        if (start >= length)
+        {
+            return null;
+        }
+        long end = indexOfNewLine(raf, start, length);
+        if (end < 0)
+        {
+            end = length;
+        }
+        int lineLength = (int) Math.min(end - start, MAX_LINE_BYTES);
+        if (lineLength > 0 && end < length)
+        {
+            // drop the '\r' of a '\r\n' line end
+            raf.seek(end - 1);
+            if (raf.read() == '\r')
+            {
+                lineLength = (int) Math.min(end - 1 - start, MAX_LINE_BYTES);
+            }
+        }
+        byte[] bytes = new byte[lineLength];
+        raf.seek(start);
+        raf.readFully(bytes);
+        return new Line(start, end + 1, new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    private static long indexOfNewLine(RandomAccessFile raf, long from, long length) throws IOException
+    {
+        byte[] buffer = new byte[8 * 1024];
+        long position = from;
+        while (position < length)
+        {
+            raf.seek(position);
+            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            if (read <= 0)
+            {
+                break;
+            }
+            for (int i = 0; i < read; i++)
+            {
+                if (buffer[i] == '\n')
+                {
+                    return position + i;
+                }
+            }
+            position += read;
+        }
+        return -1;
+    }
+
+    private static double lastTimestamp(File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            long length = raf.length();
+            for (int tailBytes = TAIL_BYTES; ; tailBytes *= 2)
+            {
+                int toRead = (int) Math.min(length, tailBytes);
+                byte[] tail = new byte[toRead];
+                raf.seek(length - toRead);
+                raf.readFully(tail);
+                String[] lines = new String(tail, StandardCharsets.US_ASCII).split("\r?\n");
+                // the first line may be partial, unless the tail is the whole file
+                int first = (toRead == length) ? 0 : 1;
+                for (int i = lines.length - 1; i >= first; i--)
+                {
+                    double[] interval = parseInterval(lines[i]);
+                    if (interval != null)
+                    {
+                        return interval[0];
+                    }
+                }
+                if (toRead == length || tailBytes >= MAX_TAIL_BYTES)
+                {
+                    return Double.NaN;
+                }
+            }
+        }
+    }
+
+    private static double parseCommentTime(String line, String prefix)
+    {
+        String[] fields = line.substring(prefix.length()).trim().split("[ ,\\]]");
+        try
+        {
+            return Double.parseDouble(fields[0]);
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @param line a log line
+     * @return {timestamp, length} as logged if this is an interval line, null otherwise
+     */
+    static double[] parseInterval(String line)
+    {
+        if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '"')
+        {
+            return null;
+        }
+        String[] fields = line.split("[ ,]");
+        int i = (fields[0].startsWith("Tag=")) ? 1 : 0;
+        // timestamp, length, max and a non empty payload
+        if (fields.length < i + 4 || fields[i + 3].isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            return new double[]{Double.parseDouble(fields[i]), Double.parseDouble(fields[i + 1])};
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+
+/**
+ * An in memory index of the histogram logs in a directory, built to answer repeated range/tag queries without
+ * re-reading the logs. Interval histograms are kept compressed, and every {@link #ROLLUP_SIZE} consecutive intervals
+ * of a tag are also kept summed up so that a query only decodes the intervals at the edges of its range.
+ * <p>
+ * The index is updated by a single thread calling {@link #refresh()}, which picks up new files and data appended to
+ * known files, starts over on files which were rewritten, and drops deleted files. Queries may be run concurrently
+ * with each other and with a refresh, they never lock and only observe fully appended intervals.
+ */
+public class LogIndex
+{
+    static final int ROLLUP_SIZE = 64;
+
+    private final File directory;
+    private final Predicate<String> fileNameFilter;
+    private final Map<String, IndexedLog> logByName = new HashMap<>();
+    private final Map<String, String> failures = new TreeMap<>();
+    private volatile List<IndexedLog> logs = Collections.emptyList();
+
+    public LogIndex(File directory, Predicate<String> fileNameFilter)
+    {
+        this.directory = directory;
+        this.fileNameFilter = fileNameFilter;
+    }
+
+    /**
+     * Index new files and new data appended to indexed files, and drop the files which were deleted. A file which
+     * fails to read is dropped from the index, to be read again from the start by the next refresh, and reported in
+     * {@link #failures()}, the other files are refreshed regardless. Not thread safe, expected to be called from a
+     * single thread.
+     *
+     * @return number of intervals added to the index
+     * @throws IOException on failure to list the directory
+     */
+    public int refresh() throws IOException
+    {
+        File[] files = directory.listFiles(pathname -> pathname.isFile() && fileNameFilter.test(pathname.getName()));
+        if (files == null)
+        {
+            throw new IOException("Failed to list:" + directory);
+        }
+        Arrays.sort(files);
+        failures.clear();
+        List<IndexedLog> updated = new ArrayList<>(logs);
+        boolean changed = false;
+        Set<String> listed = new HashSet<>();
+        int added = 0;
+        for (File file : files)
+        {
+            listed.add(file.getName());
+            IndexedLog log = logByName.get(file.getName());
+            try
+            {
+                if (log == null || log.isRewritten())
+                {
+                    if (log != null)
+                    {
+                        updated.remove(log);
+                    }
+                    log = new IndexedLog(file);
+                    logByName.put(file.getName(), log);
+                    updated.add(log);
+                    changed = true;
+                }
+                added += log.readAppended();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // part of the appended data may have been indexed, start over next time
+                logByName.remove(file.getName());
+                updated.remove(log);
+                changed = true;
+                failures.put(file.getName(), e.toString());
+            }
+        }
+        for (Iterator<IndexedLog> i = updated.iterator(); i.hasNext(); )
+        {
+            IndexedLog log = i.next();
+            if (!listed.contains(log.file.getName()))
+            {
+                logByName.remove(log.file.getName());
+                i.remove();
+                changed = true;
+            }
+        }
+        if (changed)
+        {
+            logs = Collections.unmodifiableList(updated);
+        }
+        return added;
+    }
+
+    /**
+     * @return the files which failed to read on the last refresh, and why, by file name
+     */
+    public Map<String, String> failures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the set of tags in the index, the default tag is represented by "default"
+     */
+    public TreeSet<String> tags()
+    {
+        TreeSet<String> tags = new TreeSet<>();
+        for (IndexedLog log : logs)
+        {
+            for (String tag : log.seriesByTag.keySet())
+            {
+                tags.add(tag == null ? "default" : tag);
+            }
+        }
+        return tags;
+    }
+
+    public List<String> fileNames()
+    {
+        List<String> names = new ArrayList<>();
+        for (IndexedLog log : logs)
+        {
+            names.add(log.file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Summarize the intervals starting within the range, with the same semantics as the summarize command.
+     *
+     * @param rangeStartTimeSec range start in seconds, relative to each log start time unless absolute
+     * @param rangeEndTimeSec   range end in seconds, relative to each log start time unless absolute
+     * @param absolute          range is in seconds since epoch
+     * @param shouldSkipTag     predicate returns true if tag should be skipped
+     * @param ignoreTag         all tags are summed into the default tag
+     * @return the summary of the selected range and tags
+     */
+    public PartialSummary query(
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        boolean absolute,
+        Predicate<String> shouldSkipTag,
+        boolean ignoreTag)
+    {
+        PartialSummary summary = new PartialSummary();
+        for (IndexedLog log : logs)
+        {
+            final double offsetSec = absolute ? 0.0 : log.startTimeSec;
+            final long fromMs = (long) ((offsetSec + rangeStartTimeSec) * 1000.0);
+            final long toMs = (long) ((offsetSec + rangeEndTimeSec) * 1000.0);
+            // the period of a log is the longest time span covered by any of its summed tags
+            long maxPeriod = 0;
+            long[] span = newSpan();
+            for (TagSeries series : log.seriesByTag.values())
+            {
+                if (shouldSkipTag.test(series.tag))
+                {
+                    continue;
+                }
+                if (!ignoreTag)
+                {
+                    span = newSpan();
+                }
+                series.snapshot.sumInto(summary, ignoreTag ? null : series.tag, fromMs, toMs, span);
+                maxPeriod = Math.max(maxPeriod, span[1] - span[0]);
+            }
+            summary.addPeriod(maxPeriod);
+        }
+        return summary;
+    }
+
+    private static long[] newSpan()
+    {
+        return new long[]{Long.MAX_VALUE, 0L};
+    }
+
+    private static final class IndexedLog
+    {
+        // the bytes at the start of a log compared to tell whether it was rewritten
+        private static final int HEAD_BYTES = 1024;
+
+        final File file;
+        // written by the refreshing thread only
+        long consumedBytes;
+        OrderedHistogramLogReader lastReader;
+        Object fileKey;
+        byte[] head = new byte[0];
+        // copy on write, published to queries
+        volatile Map<String, TagSeries> seriesByTag = Collections.emptyMap();
+        volatile double startTimeSec;
+
+        IndexedLog(File file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * @return true if the file was replaced, or rewritten rather than appended to, since it was last read
+         */
+        boolean isRewritten() throws IOException
+        {
+            if (file.length() < consumedBytes)
+            {
+                return true;
+            }
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            if (key != null && fileKey != null && !key.equals(fileKey))
+            {
+                return true;
+            }
+            return !Arrays.equals(head, readHead(head.length));
+        }
+
+        int readAppended() throws IOException
+        {
+            long completeLength = lengthOfCompleteLines();
+            if (completeLength <= consumedBytes)
+            {
+                return 0;
+            }
+            if (fileKey == null)
+            {
+                fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            }
+            OrderedHistogramLogReader reader = null;
+            int added = 0;
+            try (FileInputStream in = new FileInputStream(file))
+            {
+                InputStream appended = new LimitedInputStream(in, completeLength - consumedBytes);
+                long skipped = 0;
+                while (skipped < consumedBytes)
+                {
+                    skipped += in.skip(consumedBytes - skipped);
+                }
+                reader = new OrderedHistogramLogReader(
+                    new HistogramLogScanner(appended),
+                    0.0,
+                    Double.MAX_VALUE,
+                    s -> false,
+                    true);
+                if (lastReader != null)
+                {
+                    reader.continueFrom(lastReader);
+                }
+                Map<String, TagSeries> newSeries = null;
+                while (reader.hasNext())
+                {
+                    Histogram interval = (Histogram) reader.nextIntervalHistogram();
+                    if (interval == null)
+                    {
+                        continue;
+                    }
+                    String tag = interval.getTag();
+                    TagSeries series = seriesByTag.get(tag);
+                    if (series == null)
+                    {
+                        if (newSeries == null)
+                        {
+                            newSeries = new HashMap<>(seriesByTag);
+                        }
+                        series = newSeries.computeIfAbsent(tag, TagSeries::new);
+                    }
+                    series.append(interval);
+                    added++;
+                }
+                startTimeSec = reader.getStartTimeSec();
+                if (newSeries != null)
+                {
+                    seriesByTag = Collections.unmodifiableMap(newSeries);
+                }
+            }
+            finally
+            {
+                if (reader != null)
+                {
+                    reader.close();
+                }
+            }
+            lastReader = reader;
+            consumedBytes = completeLength;
+            if (head.length < HEAD_BYTES)
+            {
+                head = readHead((int) Math.min(HEAD_BYTES, consumedBytes));
+            }
+            return added;
+        }
+
+        private byte[] readHead(int length) throws IOException
+        {
+            byte[] bytes = new byte[length];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+            {
+                raf.readFully(bytes);
+            }
+            return bytes;
+        }
+
+        /**
+         * A log may be caught mid-write, only lines terminated by a new line are consumed.
+         */
+        private long lengthOfCompleteLines() throws IOException
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+            {
+                long end = raf.length();
+                byte[] buffer = new byte[8 * 1024];
+                while (end > consumedBytes)
+                {
+                    int length = (int) Math.min(buffer.length, end - consumedBytes);
+                    raf.seek(end - length);
+                    raf.readFully(buffer, 0, length);
+                    for (int i = length - 1; i >= 0; i--)
+                    {
+                        if (buffer[i] == '\n')
+                        {
+                            return end - length + i + 1;
+                        }
+                    }
+                    end -= length;
+                }
+                return consumedBytes;
+            }
+        }
+    }
+
+    private static final class TagSeries
+    {
+        final String tag;
+        volatile Snapshot snapshot = new Snapshot(16);
+        // written by the refreshing thread only
+        private Histogram rollup;
+
+        TagSeries(String tag)
+        {
+            this.tag = tag;
+        }
+
+        void append(Histogram interval)
+        {
+            Snapshot s = snapshot;
+            int index = s.size;
+            if (index == s.starts.length)
+            {
+                s = s.grow();
+            }
+            s.starts[index] = interval.getStartTimeStamp();
+            s.ends[index] = interval.getEndTimeStamp();
+            s.lengthSums[index + 1] = s.lengthSums[index] + interval.getEndTimeStamp() - interval.getStartTimeStamp();
+            ByteBuffer buffer = ByteBuffer.allocate(interval.getNeededByteBufferCapacity());
+            int length = interval.encodeIntoCompressedByteBuffer(buffer);
+            s.payloads[index] = Arrays.copyOf(buffer.array(), length);
+
+            if (rollup == null)
+            {
+                rollup = new Histogram(interval.getNumberOfSignificantValueDigits());
+            }
+            rollup.add(interval);
+            if ((index + 1) % ROLLUP_SIZE == 0)
+            {
+                s.rollups[index / ROLLUP_SIZE] = rollup;
+                rollup = null;
+            }
+            // publish only after the interval is fully written
+            snapshot = new Snapshot(s, index + 1);
+        }
+    }
+
+    /**
+     * The arrays are shared between snapshots, but a snapshot never reads beyond its size and the appending thread
+     * never writes below it.
+     */
+    private static final class Snapshot
+    {
+        final long[] starts;
+        final long[] ends;
+        final long[] lengthSums;
+        final byte[][] payloads;
+        final Histogram[] rollups;
+        final int size;
+
+        Snapshot(int capacity)
+        {
+            starts = new long[capacity];
+            ends = new long[capacity];
+            lengthSums = new long[capacity + 1];
+            payloads = new byte[capacity][];
+            rollups = new Histogram[capacity / ROLLUP_SIZE + 1];
+            size = 0;
+        }
+
+        Snapshot(Snapshot s, int size)
+        {
+            starts = s.starts;
+            ends = s.ends;
+            lengthSums = s.lengthSums;
+            payloads = s.payloads;
+            rollups = s.rollups;
+            this.size = size;
+        }
+
+        private Snapshot(Snapshot s, int capacity, int size)
+        {
+            starts = Arrays.copyOf(s.starts, capacity);
+            ends = Arrays.copyOf(s.ends, capacity);
+            lengthSums = Arrays.copyOf(s.lengthSums, capacity + 1);
+            payloads = Arrays.copyOf(s.payloads, capacity);
+            rollups = Arrays.copyOf(s.rollups, capacity / ROLLUP_SIZE + 1);
+            this.size = size;
+        }
+
+        Snapshot grow()
+        {
+            return new Snapshot(this, starts.length * 2, size);
+        }
+
+        /**
+         * @param span the {start, end} time span covered by the summed intervals, widened to cover this series
+         */
+        void sumInto(PartialSummary summary, String tag, long fromMs, long toMs, long[] span)
+        {
+            final int size = this.size;
+            int lo = firstIndexAtOrAfter(fromMs, size);
+            int hi = (toMs == Long.MAX_VALUE) ? size : firstIndexAtOrAfter(toMs + 1, size);
+            if (lo >= hi)
+            {
+                return;
+            }
+            Histogram sum = null;
+            int i = lo;
+            while (i < hi)
+            {
+                Histogram next;
+                if (i % ROLLUP_SIZE == 0 && i + ROLLUP_SIZE <= hi && rollups[i / ROLLUP_SIZE] != null)
+                {
+                    next = rollups[i / ROLLUP_SIZE];
+                    i += ROLLUP_SIZE;
+                }
+                else
+                {
+                    next = decode(i++);
+                }
+                if (sum == null)
+                {
+                    sum = summary.sumForTag(tag, next.getNumberOfSignificantValueDigits());
+                }
+                sum.add(next);
+            }
+            summary.addIntervalLength(lengthSums[hi] - lengthSums[lo]);
+            span[0] = Math.min(span[0], starts[lo]);
+            for (i = lo; i < hi; i++)
+            {
+                span[1] = Math.max(span[1], ends[i]);
+            }
+        }
+
+        private int firstIndexAtOrAfter(long timeMs, int size)
+        {
+            int index = Arrays.binarySearch(starts, 0, size, timeMs);
+            if (index < 0)
+            {
+                return -(index + 1);
+            }
+            // there may be several intervals (one per tag or a repeat) starting at the same time
+            while (index > 0 && starts[index - 1] == timeMs)
+            {
+                index--;
+            }
+            return index;
+        }
+
+        private Histogram decode(int i)
+        {
+            try
+            {
+                return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(payloads[i]), 0);
+            }
+            catch (DataFormatException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream
+    {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0)
+            {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0)
+            {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+    }
+}
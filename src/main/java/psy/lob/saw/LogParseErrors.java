@@ -0,0 +1,143 @@
+package psy.lob.saw;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts for the corrupt lines found while reading logs: counts them by category, optionally writes them with their
+ * source and byte offset to a quarantine stream, and fails the read once more than the tolerated number of errors
+ * was observed. May be shared by readers on different threads.
+ * <p>
+ * The quarantine format is a line per corrupt line: {@code <source>:<byte offset>:<category>:<line>}
+ */
+public class LogParseErrors implements Closeable
+{
+    public enum Category
+    {
+        /** an interval line with missing fields, usually the last line of a log caught mid-write */
+        TRUNCATED,
+        BAD_TIMESTAMP,
+        BAD_INTERVAL_LENGTH,
+        BAD_INTERVAL_MAX,
+        /** the compressed histogram is not valid Base64, or fails to decode */
+        BAD_HISTOGRAM,
+        /** an unexpected failure while handling a line */
+        OTHER
+    }
+
+    private final long maxErrors;
+    private final PrintStream quarantine;
+    private final AtomicLongArray counts = new AtomicLongArray(Category.values().length);
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Skip all corrupt lines, counting them.
+     */
+    public LogParseErrors()
+    {
+        this(-1, null);
+    }
+
+    /**
+     * @param maxErrors  number of errors tolerated before failing, negative to never fail, 0 to fail on first error
+     * @param quarantine if not null, corrupt lines are written to it
+     */
+    public LogParseErrors(long maxErrors, PrintStream quarantine)
+    {
+        this.maxErrors = maxErrors;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * @param maxErrors          number of errors tolerated before failing, negative to never fail
+     * @param quarantineFileName if not null, corrupt lines are written to this file
+     * @return errors as configured from the command line
+     * @throws FileNotFoundException when unable to create the quarantine file
+     */
+    public static LogParseErrors create(long maxErrors, String quarantineFileName) throws FileNotFoundException
+    {
+        PrintStream quarantine = (quarantineFileName == null) ? null :
+            new PrintStream(new FileOutputStream(quarantineFileName));
+        return new LogParseErrors(maxErrors, quarantine);
+    }
+
+    /**
+     * @throws CorruptLogException if the error is one more than tolerated
+     */
+    public void onError(String source, long offset, Category category, String line)
+    {
+        counts.incrementAndGet(category.ordinal());
+        long errors = total.incrementAndGet();
+        if (quarantine != null)
+        {
+            synchronized (quarantine)
+            {
+                quarantine.print(source);
+                quarantine.print(':');
+                quarantine.print(offset);
+                quarantine.print(':');
+                quarantine.print(category);
+                quarantine.print(':');
+                quarantine.println(line);
+            }
+        }
+        if (maxErrors >= 0 && errors > maxErrors)
+        {
+            throw new CorruptLogException(
+                "Too many corrupt lines (" + errors + "), last at " + source + ":" + offset + " " + category);
+        }
+    }
+
+    public long getCount(Category category)
+    {
+        return counts.get(category.ordinal());
+    }
+
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+    /**
+     * Print the non zero counts, e.g. "Corrupt lines: 3 (TRUNCATED=1,BAD_HISTOGRAM=2)"
+     */
+    public void printCounts(PrintStream out)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Category category : Category.values())
+        {
+            long count = getCount(category);
+            if (count != 0)
+            {
+                sb.append(sb.length() == 0 ? "" : ",").append(category).append('=').append(count);
+            }
+        }
+        out.println("Corrupt lines: " + getTotal() + " (" + sb + ")");
+    }
+
+    /**
+     * Close the quarantine stream, if any.
+     */
+    @Override
+    public void close()
+    {
+        if (quarantine != null)
+        {
+            quarantine.close();
+        }
+    }
+
+    public static class CorruptLogException extends IllegalStateException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptLogException(String message)
+        {
+            super(message);
+        }
+    }
+}
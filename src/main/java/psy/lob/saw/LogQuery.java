@@ -0,0 +1,445 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * A query over histogram logs, summing up the matching intervals by group, e.g. the per minute sums of the slow
+ * intervals of two tags:
+ * <pre>
+ * Map&lt;String, Histogram&gt; sums = LogQuery.from(files)
+ *     .range(60, 3600)
+ *     .tags("READ", "WRITE")
+ *     .maxAbove(10_000_000)
+ *     .groupBy(LogQuery.GroupBy.TAG, LogQuery.GroupBy.window(60))
+ *     .aggregate();
+ * </pre>
+ * Each filter is applied at the cheapest point it can be. The range drops the files which do not cover it after
+ * reading only their first and last lines (see {@link LogFileProbe}), and the reader seeks to the range start in the
+ * remaining logs. Timestamps, tags and the logged max of each line are checked before its histogram is decoded. Only
+ * the matching intervals are decoded and added up.
+ * <p>
+ * Files are read in parallel on the executor, each into its own sums, and the per file sums are merged into the
+ * result. A query may be run more than once.
+ */
+public final class LogQuery
+{
+    /**
+     * Picks the group of an interval.
+     */
+    public interface GroupBy
+    {
+        /**
+         * Group by tag, the null tag is grouped as 'default'.
+         */
+        GroupBy TAG = (file, interval, offsetSec) -> (interval.getTag() == null) ? "default" : interval.getTag();
+
+        /**
+         * Group by the path of the log.
+         */
+        GroupBy FILE = (file, interval, offsetSec) -> file.getPath();
+
+        /**
+         * Group by consecutive windows of the given length, keyed by the window start in seconds. Windows start from
+         * each log start time, or from the epoch if the range is absolute.
+         */
+        static GroupBy window(double windowSec)
+        {
+            if (!(windowSec > 0.0))
+            {
+                throw new IllegalArgumentException("windowSec must be positive, was:" + windowSec);
+            }
+            return (file, interval, offsetSec) ->
+            {
+                double windowStart = Math.floor((interval.getStartTimeStamp() / 1000.0 - offsetSec) / windowSec) * windowSec;
+                return BigDecimal.valueOf(windowStart).stripTrailingZeros().toPlainString();
+            };
+        }
+
+        /**
+         * @param file      the log the interval was read from
+         * @param interval  a matching interval
+         * @param offsetSec the log start time in seconds, or 0 if the range is absolute
+         * @return the group key
+         */
+        String key(File file, Histogram interval, double offsetSec);
+    }
+
+    /**
+     * Folds an interval into the result of its group, for results which depend on where the interval is in the log.
+     */
+    public interface Accumulator<R>
+    {
+        /**
+         * @param offsetSec the log start time in seconds, or 0 if the range is absolute
+         */
+        void accept(R result, Histogram interval, double offsetSec);
+    }
+
+    // groups are ordered by their keys, numbers by value (e.g. window starts) and anything else as text
+    private static final Comparator<String> KEY_PART_ORDER = (a, b) ->
+    {
+        double x = parseKeyPart(a);
+        double y = parseKeyPart(b);
+        if (!Double.isNaN(x) && !Double.isNaN(y) && x != y)
+        {
+            return Double.compare(x, y);
+        }
+        return a.compareTo(b);
+    };
+    private static final Comparator<String> KEY_ORDER = (a, b) ->
+    {
+        String[] x = a.split(",", -1);
+        String[] y = b.split(",", -1);
+        for (int i = 0; i < Math.min(x.length, y.length); i++)
+        {
+            int order = KEY_PART_ORDER.compare(x[i], y[i]);
+            if (order != 0)
+            {
+                return order;
+            }
+        }
+        return Integer.compare(x.length, y.length);
+    };
+
+    private final List<File> files;
+    private double rangeStartSec = 0.0;
+    private double rangeEndSec = Double.MAX_VALUE;
+    private boolean absolute = false;
+    private Set<String> tags;
+    private final Set<String> excludedTags = new HashSet<>();
+    private double maxAbove = Double.NEGATIVE_INFINITY;
+    private final List<GroupBy> groupBy = new ArrayList<>();
+    private Executor executor = ForkJoinPool.commonPool();
+    private LogParseErrors errors = new LogParseErrors();
+
+    private LogQuery(Collection<File> files)
+    {
+        this.files = new ArrayList<>(files);
+    }
+
+    public static LogQuery from(Collection<File> files)
+    {
+        return new LogQuery(files);
+    }
+
+    public static LogQuery from(File... files)
+    {
+        return new LogQuery(Arrays.asList(files));
+    }
+
+    /**
+     * Select the intervals starting within the range.
+     *
+     * @param startSec range start in seconds, relative to each log start time
+     * @param endSec   range end in seconds, relative to each log start time
+     */
+    public LogQuery range(double startSec, double endSec)
+    {
+        this.rangeStartSec = startSec;
+        this.rangeEndSec = endSec;
+        this.absolute = false;
+        return this;
+    }
+
+    /**
+     * Select the intervals starting within the range.
+     *
+     * @param startSec range start in seconds since epoch
+     * @param endSec   range end in seconds since epoch
+     */
+    public LogQuery absoluteRange(double startSec, double endSec)
+    {
+        this.rangeStartSec = startSec;
+        this.rangeEndSec = endSec;
+        this.absolute = true;
+        return this;
+    }
+
+    /**
+     * Select only these tags, 'default' is a special tag for the null tag.
+     */
+    public LogQuery tags(String... tags)
+    {
+        if (this.tags == null)
+        {
+            this.tags = new HashSet<>();
+        }
+        this.tags.addAll(Arrays.asList(tags));
+        return this;
+    }
+
+    /**
+     * Skip these tags, 'default' is a special tag for the null tag.
+     */
+    public LogQuery excludeTags(String... tags)
+    {
+        excludedTags.addAll(Arrays.asList(tags));
+        return this;
+    }
+
+    /**
+     * Select the intervals with a max value above the threshold. Intervals are skipped on the max as logged before
+     * they are decoded, which assumes the logs were written with the default max value unit ratio.
+     */
+    public LogQuery maxAbove(long value)
+    {
+        this.maxAbove = value;
+        return this;
+    }
+
+    /**
+     * Sum the intervals by group, with several keys the group key is their comma separated values. Without grouping
+     * all the intervals are summed into a single group keyed by the empty string.
+     */
+    public LogQuery groupBy(GroupBy... keys)
+    {
+        groupBy.addAll(Arrays.asList(keys));
+        return this;
+    }
+
+    /**
+     * Read the files on this executor, (default: the common fork join pool).
+     */
+    public LogQuery executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Report corrupt lines to errors, (default: skip and count them).
+     */
+    public LogQuery errors(LogParseErrors errors)
+    {
+        this.errors = errors;
+        return this;
+    }
+
+    /**
+     * Run the query.
+     *
+     * @return the sum of the matching intervals of each group, ordered by group key
+     * @throws UncheckedIOException if a log can not be found
+     * @throws LogParseErrors.CorruptLogException if the errors policy fails the read
+     */
+    public Map<String, Histogram> aggregate()
+    {
+        return collect(
+            first -> new Histogram(first.getNumberOfSignificantValueDigits()),
+            Histogram::add,
+            (sum, other) ->
+            {
+                sum.add(other);
+                return sum;
+            });
+    }
+
+    /**
+     * Run the query, folding the matching intervals of each group into a result of any kind, e.g. counts rather than
+     * sums, so that only the results are held rather than the intervals or their sums.
+     *
+     * @param create     creates the result of a group, from the first interval of the group read from a file
+     * @param accumulate folds an interval into the result of its group, called from the thread reading the file
+     * @param combine    merges the results of a group read from two files
+     * @return the result of each group, ordered by group key
+     * @throws UncheckedIOException if a log can not be found
+     * @throws LogParseErrors.CorruptLogException if the errors policy fails the read
+     */
+    public <R> Map<String, R> collect(
+        Function<Histogram, R> create,
+        BiConsumer<R, Histogram> accumulate,
+        BinaryOperator<R> combine)
+    {
+        Accumulator<R> ignoringOffset = (result, interval, offsetSec) -> accumulate.accept(result, interval);
+        return collect(create, ignoringOffset, combine);
+    }
+
+    /**
+     * As {@link #collect(Function, BiConsumer, BinaryOperator)}, with the accumulator given the log start time, e.g. to
+     * place intervals on a timeline relative to the log start as the window groups do.
+     */
+    public <R> Map<String, R> collect(
+        Function<Histogram, R> create,
+        Accumulator<R> accumulate,
+        BinaryOperator<R> combine)
+    {
+        List<File> toRead = files;
+        if (rangeStartSec != 0.0 || rangeEndSec != Double.MAX_VALUE || absolute)
+        {
+            toRead = LogFileProbe.prune(files, rangeStartSec, rangeEndSec, absolute);
+        }
+        List<CompletableFuture<Map<String, R>>> perFile = new ArrayList<>();
+        for (File file : toRead)
+        {
+            perFile.add(CompletableFuture.supplyAsync(() -> collect(file, create, accumulate), executor));
+        }
+        Map<String, R> results = new TreeMap<>(KEY_ORDER);
+        for (CompletableFuture<Map<String, R>> fileResults : perFile)
+        {
+            try
+            {
+                for (Map.Entry<String, R> result : fileResults.join().entrySet())
+                {
+                    results.merge(result.getKey(), result.getValue(), combine);
+                }
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Scan the matching intervals without decoding them, for an upper bound of the max value of each tag, taken from
+     * the max logged with each interval. Scanning costs little more than reading the log lines, and the bounds allow
+     * skipping the tags which can not matter, e.g. when looking for the tags with the highest percentiles. The max
+     * above filter is not applied, and the bounds assume the logs were written with the default max value unit ratio.
+     *
+     * @return the bound of each tag, in recorded units, ordered by tag ('default' for the null tag), POSITIVE_INFINITY
+     * for tags with an interval logged without a max
+     * @throws UncheckedIOException if a log can not be found
+     * @throws LogParseErrors.CorruptLogException if the errors policy fails the read
+     */
+    public Map<String, Double> maxBoundsByTag()
+    {
+        List<File> toRead = files;
+        if (rangeStartSec != 0.0 || rangeEndSec != Double.MAX_VALUE || absolute)
+        {
+            toRead = LogFileProbe.prune(files, rangeStartSec, rangeEndSec, absolute);
+        }
+        List<CompletableFuture<Map<String, Double>>> perFile = new ArrayList<>();
+        for (File file : toRead)
+        {
+            perFile.add(CompletableFuture.supplyAsync(() -> maxBoundsByTag(file), executor));
+        }
+        Map<String, Double> bounds = new TreeMap<>();
+        for (CompletableFuture<Map<String, Double>> fileBounds : perFile)
+        {
+            try
+            {
+                for (Map.Entry<String, Double> bound : fileBounds.join().entrySet())
+                {
+                    bounds.merge(bound.getKey(), bound.getValue(), Math::max);
+                }
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return bounds;
+    }
+
+    private Map<String, Double> maxBoundsByTag(File file)
+    {
+        Map<String, Double> bounds = new HashMap<>();
+        try (OrderedHistogramLogReader reader =
+                 new OrderedHistogramLogReader(file, rangeStartSec, rangeEndSec, this::shouldSkipTag, absolute, errors))
+        {
+            reader.filter((tag, startTimeStamp, endTimeStamp, maxBound) ->
+            {
+                bounds.merge((tag == null) ? "default" : tag, maxBound, Math::max);
+                return false;
+            });
+            while (reader.hasNext())
+            {
+                reader.nextIntervalHistogram();
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bounds;
+    }
+
+    private <R> Map<String, R> collect(File file, Function<Histogram, R> create, Accumulator<R> accumulate)
+    {
+        Map<String, R> results = new HashMap<>();
+        try (OrderedHistogramLogReader reader =
+                 new OrderedHistogramLogReader(file, rangeStartSec, rangeEndSec, this::shouldSkipTag, absolute, errors))
+        {
+            reader.filterMaxAbove(maxAbove);
+            while (reader.hasNext())
+            {
+                Histogram interval = (Histogram) reader.nextIntervalHistogram();
+                if (interval == null)
+                {
+                    continue;
+                }
+                double offsetSec = absolute ? 0.0 : reader.getStartTimeSec();
+                String key = key(file, interval, offsetSec);
+                accumulate.accept(results.computeIfAbsent(key, k -> create.apply(interval)), interval, offsetSec);
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return results;
+    }
+
+    private String key(File file, Histogram interval, double offsetSec)
+    {
+        if (groupBy.isEmpty())
+        {
+            return "";
+        }
+        StringBuilder key = new StringBuilder(groupBy.get(0).key(file, interval, offsetSec));
+        for (int i = 1; i < groupBy.size(); i++)
+        {
+            key.append(',').append(groupBy.get(i).key(file, interval, offsetSec));
+        }
+        return key.toString();
+    }
+
+    private boolean shouldSkipTag(String tag)
+    {
+        String ntag = (tag == null) ? "default" : tag;
+        return excludedTags.contains(ntag) || (tags != null && !tags.contains(ntag));
+    }
+
+    private static double parseKeyPart(String part)
+    {
+        try
+        {
+            return Double.parseDouble(part);
+        }
+        catch (NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package psy.lob.saw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the intervals of a log by start time, in bounded memory, for logs written out of order (e.g. by several
+ * threads). Interval lines are sorted as is, without decoding their histograms, and lines with the same start time
+ * keep their order. The header lines (up to the first interval) are written first, comments found after the first
+ * interval are written last.
+ * <p>
+ * A log which fits in memory is sorted in memory. Otherwise sorted runs are spilled to temporary files and merged.
+ * Runs are generated by replacement selection: lines are held in a heap and the earliest is spilled to the current
+ * run whenever memory is full, so a log which is out of order by less than the memory holds spills as a single run,
+ * and a run is on average twice the memory in length otherwise.
+ */
+public class LogSorter
+{
+    // rough cost of holding a line in memory, on top of its bytes
+    private static final int LINE_OVERHEAD_BYTES = 64;
+    // cap on the number of runs merged at once
+    private static final int MAX_MERGE_WAY = 128;
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final Comparator<Line> LINE_ORDER =
+        Comparator.comparingDouble((Line l) -> l.timestamp).thenComparingLong(l -> l.sequence);
+
+    private final long maxMemoryBytes;
+    private final File tmpDir;
+    private final LogParseErrors errors;
+    private int spilledRuns;
+
+    private static final class Line
+    {
+        final double timestamp;
+        final long sequence;
+        final byte[] bytes;
+        int run;
+
+        Line(double timestamp, long sequence, byte[] bytes)
+        {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param maxMemoryBytes cap on the memory used to hold lines
+     * @param tmpDir         where runs are spilled, null for the default temporary file directory
+     * @param errors         to report lines which are neither comments nor intervals to, such lines are dropped
+     */
+    public LogSorter(long maxMemoryBytes, File tmpDir, LogParseErrors errors)
+    {
+        if (maxMemoryBytes <= 0)
+        {
+            throw new IllegalArgumentException("maxMemoryBytes must be positive, was:" + maxMemoryBytes);
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.tmpDir = tmpDir;
+        this.errors = errors;
+    }
+
+    /**
+     * @return the number of runs spilled by the last sort, 0 if it was sorted in memory
+     */
+    public int getSpilledRuns()
+    {
+        return spilledRuns;
+    }
+
+    /**
+     * Sort the log read from in, writing the sorted log to out. Neither stream is closed.
+     *
+     * @param source name of the log, used to report corrupt lines
+     * @throws IOException on failure to read the log, or to write the sorted log or the runs
+     */
+    public void sort(InputStream in, String source, OutputStream out) throws IOException
+    {
+        spilledRuns = 0;
+        LineReader reader = new LineReader(in);
+        PriorityQueue<Line> heap = new PriorityQueue<>(
+            Comparator.comparingInt((Line l) -> l.run).thenComparing(LINE_ORDER));
+        List<byte[]> trailingComments = new ArrayList<>();
+        List<File> runs = new ArrayList<>();
+        DataOutputStream run = null;
+        Line lastSpilled = null;
+        int currentRun = 0;
+        long memory = 0;
+        long sequence = 0;
+        boolean inHeader = true;
+        try
+        {
+            byte[] bytes;
+            while ((bytes = reader.readLine()) != null)
+            {
+                String text = new String(bytes, StandardCharsets.US_ASCII);
+                double[] interval = LogFileProbe.parseInterval(text);
+                if (interval == null)
+                {
+                    if (text.isEmpty() || text.charAt(0) == '#' || text.charAt(0) == '"')
+                    {
+                        if (inHeader)
+                        {
+                            writeLine(out, bytes);
+                        }
+                        else
+                        {
+                            trailingComments.add(bytes);
+                        }
+                    }
+                    else
+                    {
+                        errors.onError(source, reader.lineOffset, category(text), text);
+                    }
+                    continue;
+                }
+                inHeader = false;
+                Line line = new Line(interval[0], sequence++, bytes);
+                // a line earlier than the last spilled can't go in the current run
+                line.run = (lastSpilled != null && LINE_ORDER.compare(line, lastSpilled) < 0) ? currentRun + 1 : currentRun;
+                heap.add(line);
+                memory += bytes.length + LINE_OVERHEAD_BYTES;
+                while (memory > maxMemoryBytes)
+                {
+                    Line earliest = heap.poll();
+                    memory -= earliest.bytes.length + LINE_OVERHEAD_BYTES;
+                    if (run == null || earliest.run != currentRun)
+                    {
+                        if (run != null)
+                        {
+                            run.close();
+                        }
+                        currentRun = earliest.run;
+                        File runFile = File.createTempFile("hdr-sort-", ".run", tmpDir);
+                        runFile.deleteOnExit();
+                        runs.add(runFile);
+                        run = openRun(runFile);
+                    }
+                    writeRecord(run, earliest);
+                    lastSpilled = earliest;
+                }
+            }
+            if (runs.isEmpty())
+            {
+                Line[] lines = heap.toArray(new Line[0]);
+                Arrays.sort(lines, LINE_ORDER);
+                for (Line line : lines)
+                {
+                    writeLine(out, line.bytes);
+                }
+            }
+            else
+            {
+                // spill what's left, in as many runs as it takes
+                Line earliest;
+                while ((earliest = heap.poll()) != null)
+                {
+                    if (earliest.run != currentRun)
+                    {
+                        run.close();
+                        currentRun = earliest.run;
+                        File runFile = File.createTempFile("hdr-sort-", ".run", tmpDir);
+                        runFile.deleteOnExit();
+                        runs.add(runFile);
+                        run = openRun(runFile);
+                    }
+                    writeRecord(run, earliest);
+                }
+                run.close();
+                run = null;
+                spilledRuns = runs.size();
+                merge(runs, out);
+            }
+            for (byte[] comment : trailingComments)
+            {
+                writeLine(out, comment);
+            }
+            out.flush();
+        }
+        finally
+        {
+            if (run != null)
+            {
+                run.close();
+            }
+            for (File runFile : runs)
+            {
+                runFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Merge the runs into out, merging them into fewer, longer, runs first if there are too many to merge at once.
+     */
+    private void merge(List<File> runs, OutputStream out) throws IOException
+    {
+        while (runs.size() > MAX_MERGE_WAY)
+        {
+            List<File> merging = new ArrayList<>(runs.subList(0, MAX_MERGE_WAY));
+            runs.removeAll(merging);
+            File merged = File.createTempFile("hdr-sort-", ".run", tmpDir);
+            merged.deleteOnExit();
+            runs.add(merged);
+            try (DataOutputStream mergedRun = openRun(merged))
+            {
+                merge(merging, line -> writeRecord(mergedRun, line));
+            }
+            for (File runFile : merging)
+            {
+                runFile.delete();
+            }
+        }
+        merge(runs, line -> writeLine(out, line.bytes));
+    }
+
+    private interface LineSink
+    {
+        void accept(Line line) throws IOException;
+    }
+
+    private static void merge(List<File> runs, LineSink sink) throws IOException
+    {
+        List<RunReader> readers = new ArrayList<>();
+        PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> LINE_ORDER.compare(a.head, b.head));
+        try
+        {
+            for (File runFile : runs)
+            {
+                RunReader reader = new RunReader(runFile);
+                readers.add(reader);
+                if (reader.next())
+                {
+                    heads.add(reader);
+                }
+            }
+            RunReader earliest;
+            while ((earliest = heads.poll()) != null)
+            {
+                sink.accept(earliest.head);
+                if (earliest.next())
+                {
+                    heads.add(earliest);
+                }
+            }
+        }
+        finally
+        {
+            for (RunReader reader : readers)
+            {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static DataOutputStream openRun(File runFile) throws IOException
+    {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), STREAM_BUFFER_BYTES));
+    }
+
+    private static void writeRecord(DataOutputStream run, Line line) throws IOException
+    {
+        run.writeDouble(line.timestamp);
+        run.writeLong(line.sequence);
+        run.writeInt(line.bytes.length);
+        run.write(line.bytes);
+    }
+
+    private static void writeLine(OutputStream out, byte[] bytes) throws IOException
+    {
+        out.write(bytes);
+        out.write('\n');
+    }
+
+    private static LogParseErrors.Category category(String line)
+    {
+        String[] fields = line.split("[ ,]");
+        int i = (fields[0].startsWith("Tag=")) ? 1 : 0;
+        return (fields.length < i + 4 || fields[i + 3].isEmpty()) ?
+            LogParseErrors.Category.TRUNCATED : LogParseErrors.Category.BAD_TIMESTAMP;
+    }
+
+    private static final class RunReader
+    {
+        final DataInputStream in;
+        Line head;
+
+        RunReader(File runFile) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), STREAM_BUFFER_BYTES));
+        }
+
+        boolean next() throws IOException
+        {
+            double timestamp;
+            try
+            {
+                timestamp = in.readDouble();
+            }
+            catch (EOFException e)
+            {
+                head = null;
+                return false;
+            }
+            long sequence = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            head = new Line(timestamp, sequence, bytes);
+            return true;
+        }
+    }
+
+    /**
+     * Reads lines as bytes, without the line end, keeping track of their offsets.
+     */
+    private static final class LineReader
+    {
+        private final InputStream in;
+        private final byte[] buffer = new byte[STREAM_BUFFER_BYTES];
+        private int position;
+        private int limit;
+        private long offset;
+        private byte[] line = new byte[1024];
+        long lineOffset;
+
+        LineReader(InputStream in)
+        {
+            this.in = in;
+        }
+
+        byte[] readLine() throws IOException
+        {
+            lineOffset = offset;
+            int length = 0;
+            boolean any = false;
+            while (true)
+            {
+                if (position == limit)
+                {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0)
+                    {
+                        limit = 0;
+                        if (!any)
+                        {
+                            return null;
+                        }
+                        break;
+                    }
+                }
+                any = true;
+                byte b = buffer[position++];
+                offset++;
+                if (b == '\n')
+                {
+                    break;
+                }
+                if (length == line.length)
+                {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r')
+            {
+                length--;
+            }
+            return Arrays.copyOf(line, length);
+        }
+    }
+}
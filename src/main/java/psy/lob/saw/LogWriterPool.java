@@ -0,0 +1,201 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes intervals to many output logs (e.g. a log per tag) with a bounded number of open files, encoding on a pool
+ * of threads.
+ * <p>
+ * Each output log is owned by one lane, a single thread picked by the output file hash, so the intervals of a log are
+ * written in the order they were given while different logs are encoded in parallel. Each lane keeps its writers in a
+ * least recently used cache, a writer evicted from the cache is closed and its log is reopened for append (without
+ * writing the header again) on its next interval. The total number of open logs never exceeds the configured maximum.
+ */
+public class LogWriterPool implements Closeable
+{
+    // intervals handed over but not yet written, per lane, bounds the memory held when reading outpaces encoding
+    private static final int MAX_PENDING_PER_LANE = 256;
+
+    private final Lane[] lanes;
+    private final Semaphore pending;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param threads      number of lanes writing in parallel
+     * @param maxOpenFiles cap on the number of output logs open at any time, must be at least the number of threads
+     */
+    public LogWriterPool(int threads, int maxOpenFiles)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be positive, was:" + threads);
+        }
+        if (maxOpenFiles < threads)
+        {
+            throw new IllegalArgumentException(
+                "maxOpenFiles must be at least the number of threads(" + threads + "), was:" + maxOpenFiles);
+        }
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            // spread the open files budget over the lanes
+            lanes[i] = new Lane(maxOpenFiles / threads + (i < maxOpenFiles % threads ? 1 : 0));
+        }
+        pending = new Semaphore(threads * MAX_PENDING_PER_LANE);
+    }
+
+    /**
+     * Write the interval to the output log, creating the log on first use.
+     *
+     * @param output       log to write to
+     * @param comment      comment for the log header
+     * @param startTimeSec start time for the log header, see {@link HdrHistogramUtil#createLogWriter(File, String, double)}
+     * @param interval     to write, not to be modified from here on
+     */
+    public void write(File output, String comment, double startTimeSec, Histogram interval)
+    {
+        checkFailure();
+        try
+        {
+            pending.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        Lane lane = lanes[(output.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        lane.executor.execute(() ->
+        {
+            try
+            {
+                if (failure.get() == null)
+                {
+                    lane.writer(output, comment, startTimeSec).outputIntervalHistogram(interval);
+                }
+            }
+            catch (Throwable t)
+            {
+                failure.compareAndSet(null, t);
+            }
+            finally
+            {
+                pending.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for all intervals to be written and close the logs.
+     *
+     * @throws IllegalStateException if writing failed
+     */
+    @Override
+    public void close()
+    {
+        for (Lane lane : lanes)
+        {
+            lane.executor.execute(lane::closeAll);
+            lane.executor.shutdown();
+        }
+        for (Lane lane : lanes)
+        {
+            try
+            {
+                while (!lane.executor.awaitTermination(1, TimeUnit.SECONDS))
+                {
+                    // keep waiting
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure()
+    {
+        Throwable t = failure.get();
+        if (t != null)
+        {
+            throw new IllegalStateException("Failed writing logs", t);
+        }
+    }
+
+    private static final class Lane
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, "log-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // logs created so far, by output, mapped to their base time
+        final Map<File, Long> baseTimeByOutput = new HashMap<>();
+        // open writers in access order
+        final LinkedHashMap<File, HistogramLogWriter> open = new LinkedHashMap<>(16, 0.75f, true);
+        final int maxOpenFiles;
+
+        Lane(int maxOpenFiles)
+        {
+            this.maxOpenFiles = maxOpenFiles;
+        }
+
+        HistogramLogWriter writer(File output, String comment, double startTimeSec) throws FileNotFoundException
+        {
+            HistogramLogWriter writer = open.get(output);
+            if (writer != null)
+            {
+                return writer;
+            }
+            if (open.size() >= maxOpenFiles)
+            {
+                // close the least recently used before opening another
+                Iterator<HistogramLogWriter> eldest = open.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+            Long baseTime = baseTimeByOutput.get(output);
+            if (baseTime == null)
+            {
+                writer = HdrHistogramUtil.createLogWriter(output, comment, startTimeSec);
+                baseTimeByOutput.put(output, writer.getBaseTime());
+            }
+            else
+            {
+                // evicted earlier, carry on from where it was left
+                writer = new HistogramLogWriter(new FileOutputStream(output, true));
+                writer.setBaseTime(baseTime);
+            }
+            open.put(output, writer);
+            return writer;
+        }
+
+        void closeAll()
+        {
+            for (HistogramLogWriter writer : open.values())
+            {
+                writer.close();
+            }
+            open.clear();
+        }
+    }
+}
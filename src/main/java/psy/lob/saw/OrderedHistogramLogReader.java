@@ -9,9 +9,17 @@ package psy.lob.saw;
 
 import org.HdrHistogram.EncodableHistogram;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.function.Predicate;
 import java.util.zip.DataFormatException;
 
@@ -21,6 +29,23 @@ import java.util.zip.DataFormatException;
  */
 public class OrderedHistogramLogReader implements Closeable
 {
+    /**
+     * Picks the intervals to decode, given what the log line tells of them.
+     */
+    public interface IntervalFilter
+    {
+        /**
+         * Called for every interval in range, and not excluded by tag or skipped by a sampler, in log order.
+         *
+         * @param tag            the interval tag, may be null
+         * @param startTimeStamp interval start, ms since epoch
+         * @param endTimeStamp   interval end, ms since epoch
+         * @param maxBound       an upper bound of the interval max value, in recorded units, from the max as logged
+         *                       (assuming the default max value unit ratio), or POSITIVE_INFINITY if none was logged
+         * @return true if the interval should be decoded
+         */
+        boolean select(String tag, long startTimeStamp, long endTimeStamp, double maxBound);
+    }
 
     private final HistogramLogScanner scanner;
     private final HistogramLogScanner.EventHandler handler = new HistogramLogScanner.EventHandler()
@@ -52,6 +77,14 @@ public class OrderedHistogramLogReader implements Closeable
         public boolean onHistogram(
             String tag, double timestamp, double length,
             HistogramLogScanner.EncodableHistogramSupplier lazyReader)
+        {
+            return onHistogram(tag, timestamp, length, Double.NaN, lazyReader);
+        }
+
+        @Override
+        public boolean onHistogram(
+            String tag, double timestamp, double length, double loggedMax,
+            HistogramLogScanner.EncodableHistogramSupplier lazyReader)
         {
             final double logTimeStampInSec = timestamp; // Timestamp is expected to be in seconds
 
@@ -94,6 +127,11 @@ public class OrderedHistogramLogReader implements Closeable
 
             if (startTimeStampToCheckRangeOn > rangeEndTimeSec)
             {
+                if (startTimeStampToCheckRangeOn <= rangeEndTimeSec + reorderLatenessSec)
+                {
+                    // late intervals may still be in range
+                    return false;
+                }
                 // trip the inRange so that readers can stop now
                 inRange = false;
                 return true;
@@ -105,6 +143,26 @@ public class OrderedHistogramLogReader implements Closeable
                 return false;
             }
 
+            // skip intervals not sampled before they are decoded
+            if (sampler != null && !sampler.select(
+                tag, (long) (absoluteStartTimeStampSec * 1000.0), (long) (absoluteEndTimeStampSec * 1000.0)))
+            {
+                return false;
+            }
+
+            if (filter != null && !filter.select(
+                tag, (long) (absoluteStartTimeStampSec * 1000.0), (long) (absoluteEndTimeStampSec * 1000.0),
+                Double.isNaN(loggedMax) ? Double.POSITIVE_INFINITY : (loggedMax + LOGGED_MAX_ROUNDING) * LOGGED_MAX_RATIO))
+            {
+                return false;
+            }
+
+            // skip by the logged max, allowing for its rounding, and check the actual max once decoded
+            if ((loggedMax + LOGGED_MAX_ROUNDING) * LOGGED_MAX_RATIO <= maxAbove)
+            {
+                return false;
+            }
+
             EncodableHistogram histogram;
             try
             {
@@ -112,7 +170,12 @@ public class OrderedHistogramLogReader implements Closeable
             }
             catch (DataFormatException e)
             {
-                return true;
+                // counted by the scanner, skip it and carry on
+                return false;
+            }
+            if (histogram.getMaxValueAsDouble() <= maxAbove)
+            {
+                return false;
             }
 
             histogram.setStartTimeStamp((long) (absoluteStartTimeStampSec * 1000.0));
@@ -125,11 +188,15 @@ public class OrderedHistogramLogReader implements Closeable
         @Override
         public boolean onException(Throwable t)
         {
-            t.printStackTrace();
+            // counted by the scanner, skip the line
             return false;
         }
     };
 
+    // max values are logged scaled down by this ratio, with 3 decimal places
+    private static final double LOGGED_MAX_RATIO = 1000000.0;
+    private static final double LOGGED_MAX_ROUNDING = 0.0005;
+
     // scanner handling state
     private double startTimeSec = 0.0;
     private boolean observedStartTime = false;
@@ -142,6 +209,29 @@ public class OrderedHistogramLogReader implements Closeable
     private final Predicate<String> shouldExcludeTag;
     private EncodableHistogram nextHistogram;
     private boolean inRange = true;
+    private double maxAbove = Double.NEGATIVE_INFINITY;
+    private IntervalSampler sampler;
+    private IntervalFilter filter;
+
+    // intervals read ahead and put back in start time order, null if the log is read as is
+    private final PriorityQueue<Reordered> reorderBuffer;
+    private final double reorderLatenessSec;
+    private long readCount;
+    private long latestStartTimeStamp = Long.MIN_VALUE;
+    private long lastStartTimeStamp = Long.MIN_VALUE;
+    private long lateIntervals;
+
+    private static final class Reordered
+    {
+        final EncodableHistogram histogram;
+        final long sequence;
+
+        Reordered(EncodableHistogram histogram, long sequence)
+        {
+            this.histogram = histogram;
+            this.sequence = sequence;
+        }
+    }
 
     public OrderedHistogramLogReader(final File inputFile) throws FileNotFoundException
     {
@@ -161,8 +251,11 @@ public class OrderedHistogramLogReader implements Closeable
 
     /**
      * Constructs a new OrderedHistogramLogReader that produces intervals read from the specified file.
+     * <p>
+     * When the range does not start at the beginning of the log, the reader seeks to the range start by bisecting the
+     * file (see {@link LogFileProbe#seek(double, boolean)}) rather than parse the log up to it.
      *
-     * @param inputFile         The File to read from
+     * @param inputFile         The File to read from, or {@link HdrHistogramUtil#STD_STREAM} to read from stdin
      * @param rangeStartTimeSec
      * @param rangeEndTimeSec
      * @param shouldExcludeTag  predicate returns true is tag should be skipped
@@ -175,11 +268,203 @@ public class OrderedHistogramLogReader implements Closeable
         double rangeEndTimeSec,
         Predicate<String> shouldExcludeTag, boolean absolute) throws FileNotFoundException
     {
-        scanner = new HistogramLogScanner(inputFile);
+        this(inputFile, rangeStartTimeSec, rangeEndTimeSec, shouldExcludeTag, absolute, new LogParseErrors());
+    }
+
+    /**
+     * As above, reporting corrupt lines in the log to errors.
+     *
+     * @param inputFile         The File to read from
+     * @param rangeStartTimeSec
+     * @param rangeEndTimeSec
+     * @param shouldExcludeTag  predicate returns true is tag should be skipped
+     * @param absolute
+     * @param errors            to report corrupt lines to, corrupt lines are skipped unless the errors policy fails the read
+     * @throws FileNotFoundException when unable to find inputFile
+     */
+    public OrderedHistogramLogReader(
+        final File inputFile,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        Predicate<String> shouldExcludeTag, boolean absolute,
+        LogParseErrors errors) throws FileNotFoundException
+    {
+        this(inputFile, rangeStartTimeSec, rangeEndTimeSec, shouldExcludeTag, absolute, errors, 0.0);
+    }
+
+    /**
+     * As above, for logs with intervals written slightly out of order (e.g. by several threads). Intervals are read
+     * ahead and put back in start time order, an interval starting more than the lateness before the latest interval
+     * read is handed out. Intervals later than that are handed out as read, out of order, and are counted (see
+     * {@link #getLateIntervals()}), such logs should be sorted first.
+     *
+     * @param inputFile          The File to read from
+     * @param rangeStartTimeSec
+     * @param rangeEndTimeSec
+     * @param shouldExcludeTag   predicate returns true is tag should be skipped
+     * @param absolute
+     * @param errors             to report corrupt lines to, corrupt lines are skipped unless the errors policy fails the read
+     * @param reorderLatenessSec how late, in seconds, an interval may be logged relative to the intervals after it,
+     *                           0 to read the log as is
+     * @throws FileNotFoundException when unable to find inputFile
+     */
+    public OrderedHistogramLogReader(
+        final File inputFile,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        Predicate<String> shouldExcludeTag, boolean absolute,
+        LogParseErrors errors,
+        double reorderLatenessSec) throws FileNotFoundException
+    {
+        this(
+            openAt(inputFile, rangeStartTimeSec - reorderLatenessSec, absolute, errors),
+            rangeStartTimeSec,
+            rangeEndTimeSec,
+            shouldExcludeTag,
+            absolute,
+            reorderLatenessSec);
+    }
+
+    /**
+     * Constructs a new OrderedHistogramLogReader that produces intervals read from the stream, e.g. a pipe. The stream
+     * can not be seeked, so the log is parsed up to the range start.
+     *
+     * @param in                The stream to read from
+     * @param source            name of the log, used to report corrupt lines
+     * @param rangeStartTimeSec
+     * @param rangeEndTimeSec
+     * @param shouldExcludeTag  predicate returns true is tag should be skipped
+     * @param absolute
+     * @param errors            to report corrupt lines to, corrupt lines are skipped unless the errors policy fails the read
+     */
+    public OrderedHistogramLogReader(
+        final InputStream in,
+        String source,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        Predicate<String> shouldExcludeTag, boolean absolute,
+        LogParseErrors errors)
+    {
+        this(new HistogramLogScanner(in, source, 0, errors), rangeStartTimeSec, rangeEndTimeSec, shouldExcludeTag, absolute, 0.0);
+    }
+
+    private static HistogramLogScanner openAt(
+        File inputFile,
+        double rangeStartTimeSec,
+        boolean absolute,
+        LogParseErrors errors) throws FileNotFoundException
+    {
+        if (rangeStartTimeSec > 0.0 && !HdrHistogramUtil.isStdStream(inputFile))
+        {
+            try
+            {
+                LogFileProbe probe = LogFileProbe.probe(inputFile);
+                long offset = (probe == null) ? 0 : probe.seek(rangeStartTimeSec, absolute);
+                if (offset > 0)
+                {
+                    InputStream in = LogFileCache.open(inputFile);
+                    long skipped = 0;
+                    while (skipped < offset)
+                    {
+                        skipped += in.skip(offset - skipped);
+                    }
+                    // the skipped header is replaced by the start and base times it resolves to
+                    String header =
+                        "#[StartTime: " + BigDecimal.valueOf(probe.getStartTimeSec()).toPlainString() + " ]\n" +
+                        "#[BaseTime: " + BigDecimal.valueOf(probe.getBaseTimeSec()).toPlainString() + " ]\n";
+                    byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+                    return new HistogramLogScanner(
+                        new SequenceInputStream(new ByteArrayInputStream(headerBytes), in),
+                        inputFile.getName(),
+                        offset - headerBytes.length,
+                        errors);
+                }
+            }
+            catch (FileNotFoundException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                // read from the start
+            }
+        }
+        return new HistogramLogScanner(inputFile, errors);
+    }
+
+    OrderedHistogramLogReader(
+        HistogramLogScanner scanner,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        Predicate<String> shouldExcludeTag, boolean absolute)
+    {
+        this(scanner, rangeStartTimeSec, rangeEndTimeSec, shouldExcludeTag, absolute, 0.0);
+    }
+
+    private OrderedHistogramLogReader(
+        HistogramLogScanner scanner,
+        double rangeStartTimeSec,
+        double rangeEndTimeSec,
+        Predicate<String> shouldExcludeTag, boolean absolute,
+        double reorderLatenessSec)
+    {
+        if (reorderLatenessSec < 0.0)
+        {
+            throw new IllegalArgumentException("reorderLatenessSec must not be negative, was:" + reorderLatenessSec);
+        }
+        this.scanner = scanner;
         this.rangeStartTimeSec = rangeStartTimeSec;
         this.rangeEndTimeSec = rangeEndTimeSec;
         this.absolute = absolute;
         this.shouldExcludeTag = shouldExcludeTag;
+        this.reorderLatenessSec = reorderLatenessSec;
+        this.reorderBuffer = (reorderLatenessSec == 0.0) ? null : new PriorityQueue<>(
+            Comparator.comparingLong((Reordered r) -> r.histogram.getStartTimeStamp())
+                .thenComparingLong(r -> r.sequence));
+    }
+
+    /**
+     * Skip intervals with a max value at or below the threshold. Intervals are skipped on their max as logged, before
+     * they are decoded, assuming the log was written with the default max value unit ratio.
+     *
+     * @param maxValue intervals must have a max above this value to be read
+     */
+    void filterMaxAbove(double maxValue)
+    {
+        this.maxAbove = maxValue;
+    }
+
+    /**
+     * Read only the intervals picked by the sampler, the intervals it does not pick are skipped before they are
+     * decoded, so that reading a sample costs little more than scanning the log lines.
+     *
+     * @param sampler picks the intervals to read, given all intervals in range and not excluded by tag
+     */
+    public void sample(IntervalSampler sampler)
+    {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Read only the intervals picked by the filter, the intervals it does not pick are skipped before they are decoded.
+     *
+     * @param filter picks the intervals to read, given all intervals in range, not excluded by tag and sampled
+     */
+    public void filter(IntervalFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Carry over the start and base times observed by a reader of the preceding part of the same log, used when a
+     * log is consumed in parts (e.g. while it is being appended to).
+     */
+    void continueFrom(OrderedHistogramLogReader previous)
+    {
+        startTimeSec = previous.startTimeSec;
+        observedStartTime = previous.observedStartTime;
+        baseTimeSec = previous.baseTimeSec;
+        observedBaseTime = previous.observedBaseTime;
     }
 
     /**
@@ -199,19 +484,49 @@ public class OrderedHistogramLogReader implements Closeable
     /**
      * Read the next interval histogram from the log. Returns a Histogram object if
      * an interval line was found, or null if not.
-     * <p>Upon encountering any unexpected format errors in reading the next interval
-     * from the input, this method will return a null. Use {@link #hasNext} to determine
+     * <p>Corrupt lines are skipped, and reported to the errors the reader was created with.
+     * Upon reaching the end of the input, this method will return a null. Use {@link #hasNext} to determine
      * whether or not additional intervals may be available for reading in the log input.
      *
      * @return a DecodedInterval, or a null if no appropriately formatted interval was found
      */
     public EncodableHistogram nextIntervalHistogram()
     {
-
-        scanner.process(handler);
-        EncodableHistogram histogram = this.nextHistogram;
-        nextHistogram = null;
-        return histogram;
+        if (reorderBuffer == null)
+        {
+            scanner.process(handler);
+            EncodableHistogram histogram = this.nextHistogram;
+            nextHistogram = null;
+            return histogram;
+        }
+        final long latenessMs = (long) (reorderLatenessSec * 1000);
+        // read ahead until the earliest interval can't be preceded by one yet to be read
+        while (scanner.hasNextLine() && inRange &&
+            (reorderBuffer.isEmpty() || reorderBuffer.peek().histogram.getStartTimeStamp() > latestStartTimeStamp - latenessMs))
+        {
+            scanner.process(handler);
+            EncodableHistogram histogram = this.nextHistogram;
+            nextHistogram = null;
+            if (histogram != null)
+            {
+                reorderBuffer.add(new Reordered(histogram, readCount++));
+                latestStartTimeStamp = Math.max(latestStartTimeStamp, histogram.getStartTimeStamp());
+            }
+        }
+        Reordered next = reorderBuffer.poll();
+        if (next == null)
+        {
+            return null;
+        }
+        if (next.histogram.getStartTimeStamp() < lastStartTimeStamp)
+        {
+            lateIntervals++;
+        }
+        else
+        {
+            lastStartTimeStamp = next.histogram.getStartTimeStamp();
+        }
+        return next.histogram;
     }
 
     /**
@@ -221,7 +536,15 @@ public class OrderedHistogramLogReader implements Closeable
      */
     public boolean hasNext()
     {
-        return scanner.hasNextLine() && inRange;
+        return (scanner.hasNextLine() && inRange) || (reorderBuffer != null && !reorderBuffer.isEmpty());
+    }
+
+    /**
+     * @return the number of intervals handed out of order, as they were logged later than the reorder lateness
+     */
+    public long getLateIntervals()
+    {
+        return lateIntervals;
     }
 
     @Override
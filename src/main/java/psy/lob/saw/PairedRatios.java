@@ -0,0 +1,145 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.DoubleHistogram;
+
+/**
+ * The distribution of the ratios of paired values, e.g. the p99 of a candidate run interval over that of the baseline
+ * run interval at the same time, and whether they differ significantly, in constant memory.
+ * <p>
+ * Significance is tested with a paired t-test on the log of the ratios, using the normal approximation, which holds
+ * for the 30 or more pairs required for a verdict. Intervals of a run are not independent (e.g. a slow period spans
+ * several intervals), so a low p-value is best read as "unlikely to be noise" rather than taken literally.
+ */
+public final class PairedRatios
+{
+    public static final int MIN_PAIRS = 30;
+
+    private final DoubleHistogram ratios = new DoubleHistogram(3);
+    private long pairs;
+    private long higher;
+    private long lower;
+    private long skipped;
+    // running mean and sum of squared deviations of the log ratios
+    private double mean;
+    private double m2;
+
+    /**
+     * Add a pair, pairs with a value which is not positive have no ratio and are skipped.
+     */
+    public void add(double baseline, double candidate)
+    {
+        if (!(baseline > 0.0 && candidate > 0.0))
+        {
+            skipped++;
+            return;
+        }
+        double ratio = candidate / baseline;
+        ratios.recordValue(ratio);
+        if (candidate > baseline)
+        {
+            higher++;
+        }
+        else if (candidate < baseline)
+        {
+            lower++;
+        }
+        pairs++;
+        double logRatio = Math.log(ratio);
+        double delta = logRatio - mean;
+        mean += delta / pairs;
+        m2 += delta * (logRatio - mean);
+    }
+
+    public long getPairs()
+    {
+        return pairs;
+    }
+
+    /**
+     * @return the number of pairs where the candidate is higher than the baseline
+     */
+    public long getHigher()
+    {
+        return higher;
+    }
+
+    /**
+     * @return the number of pairs where the candidate is lower than the baseline
+     */
+    public long getLower()
+    {
+        return lower;
+    }
+
+    /**
+     * @return the number of pairs skipped for having a value which is not positive
+     */
+    public long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return the ratio at the percentile, NaN if there are no pairs
+     */
+    public double getRatioAtPercentile(double percentile)
+    {
+        return (pairs == 0) ? Double.NaN : ratios.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return the geometric mean of the ratios, NaN if there are no pairs
+     */
+    public double getGeometricMeanRatio()
+    {
+        return (pairs == 0) ? Double.NaN : Math.exp(mean);
+    }
+
+    /**
+     * @return the two sided p-value of the ratios being 1 on average, NaN if there are too few pairs
+     */
+    public double getPValue()
+    {
+        if (pairs < MIN_PAIRS)
+        {
+            return Double.NaN;
+        }
+        double standardError = Math.sqrt(m2 / (pairs - 1) / pairs);
+        if (standardError == 0.0)
+        {
+            return (mean == 0.0) ? 1.0 : 0.0;
+        }
+        return erfc(Math.abs(mean / standardError) / Math.sqrt(2));
+    }
+
+    /**
+     * @param alpha significance level, e.g. 0.05
+     * @return the verdict on the candidate against the baseline
+     */
+    public String getVerdict(double alpha)
+    {
+        double pValue = getPValue();
+        if (Double.isNaN(pValue))
+        {
+            return "inconclusive";
+        }
+        if (pValue >= alpha)
+        {
+            return "no significant difference";
+        }
+        return (mean > 0) ? "candidate higher" : "candidate lower";
+    }
+
+    /**
+     * Complementary error function, to within 1.2e-7 (Numerical Recipes erfcc).
+     */
+    private static double erfc(double x)
+    {
+        double z = Math.abs(x);
+        double t = 1.0 / (1.0 + 0.5 * z);
+        double ans = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 +
+            t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 +
+            t * (-0.82215223 + t * 0.17087277)))))))));
+        return (x >= 0) ? ans : 2.0 - ans;
+    }
+}
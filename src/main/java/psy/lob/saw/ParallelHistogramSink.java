@@ -0,0 +1,143 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link HistogramSink} which takes the encoding of histograms (e.g. compressing them into log lines) off the
+ * producing thread. Each accepted histogram is copied into a pooled histogram, as producers reuse theirs, and encoded
+ * on a pool of threads. The encoded results are emitted in the order the histograms were accepted, on the producing
+ * thread as they become ready, so the emitting side of the sink needs no synchronization. The number of histograms
+ * being encoded is bounded, when the bound is reached the producer waits for the oldest to be emitted.
+ *
+ * @param <T> the encoded form of a histogram
+ */
+public class ParallelHistogramSink<T> implements HistogramSink
+{
+    /**
+     * A sink split into a parallel encoding step and an ordered emitting step.
+     */
+    public interface EncodingSink<T>
+    {
+        void startTime(double st);
+
+        /**
+         * Called concurrently from the encoding threads. The histogram is reused once encoded, do not keep it.
+         */
+        T encode(Histogram h);
+
+        /**
+         * Called in accept order, from the thread calling the decorating sink.
+         */
+        void emit(T encoded);
+    }
+
+    private final EncodingSink<T> sink;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<T>> inFlight = new ArrayDeque<>();
+    private final Queue<Histogram> pool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param sink        to encode and emit histograms
+     * @param threads     number of encoding threads
+     * @param maxInFlight cap on the number of histograms accepted and not yet emitted
+     */
+    public ParallelHistogramSink(EncodingSink<T> sink, int threads, int maxInFlight)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be positive, was:" + threads);
+        }
+        this.sink = sink;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread thread = new Thread(r, "sink-encoder-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void startTime(double st)
+    {
+        sink.startTime(st);
+    }
+
+    @Override
+    public void accept(Histogram h)
+    {
+        Histogram copy = borrow(h);
+        inFlight.add(executor.submit(() ->
+        {
+            try
+            {
+                return sink.encode(copy);
+            }
+            finally
+            {
+                pool.offer(copy);
+            }
+        }));
+        // emit what is ready, and wait for the oldest if there's too much on the go
+        while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() >= maxInFlight))
+        {
+            emitOldest();
+        }
+    }
+
+    /**
+     * Emit all remaining histograms and stop the encoding threads.
+     */
+    @Override
+    public void finish()
+    {
+        try
+        {
+            while (!inFlight.isEmpty())
+            {
+                emitOldest();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void emitOldest()
+    {
+        Future<T> oldest = inFlight.poll();
+        try
+        {
+            sink.emit(oldest.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Failed encoding histogram", e.getCause());
+        }
+    }
+
+    /**
+     * @return a copy of h, in a histogram with the same value range so that it encodes the same as h
+     */
+    private Histogram borrow(Histogram h)
+    {
+        return HdrHistogramUtil.copyWithSameRange(h, pool.poll());
+    }
+}
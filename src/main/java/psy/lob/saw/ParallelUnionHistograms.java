@@ -0,0 +1,294 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unions the inputs the same as {@link UnionHistograms}, with the unions of different tags worked out in parallel.
+ * <p>
+ * The inputs are merged on the calling thread, and each interval is handed, in batches, to the partition owning its
+ * tag, picked by the tag hash. A partition is a single thread which owns the union state of its tags, so the intervals
+ * of a tag are unioned in merge order. Each interval is numbered as it is merged, and each union completed by an
+ * interval is given its number. The completed unions are written from the calling thread in that order, once all
+ * partitions are past it, so the output is the same as the single threaded union. Only the unions are logged when
+ * verbose, as the intervals are added on the partition threads.
+ */
+public class ParallelUnionHistograms implements Runnable
+{
+    private static final int BATCH_SIZE = 256;
+    // batches handed to a partition and not yet collected, bounds the intervals held when merging outpaces unioning
+    private static final int MAX_BATCHES_PER_PARTITION = 4;
+    // merged intervals after which all partitions are handed what they have, so unions don't wait on quiet partitions
+    private static final int FLUSH_INTERVAL = 16 * 1024;
+
+    private final boolean verbose;
+    private final PrintStream verboseOut;
+    private final List<HistogramIterator> inputs;
+    private final HistogramSink output;
+    private final long targetUnionMs;
+    private final Partition[] partitions;
+    private final Queue<Histogram> pool = new ConcurrentLinkedQueue<>();
+
+    private static final class Completed
+    {
+        final long sequence;
+        final int index;
+        final Histogram union;
+
+        Completed(long sequence, int index, Histogram union)
+        {
+            this.sequence = sequence;
+            this.index = index;
+            this.union = union;
+        }
+    }
+
+    private static final class Batch
+    {
+        final long[] sequences = new long[BATCH_SIZE];
+        final Histogram[] intervals = new Histogram[BATCH_SIZE];
+        int size;
+    }
+
+    private final class Partition
+    {
+        final ExecutorService executor;
+        // union state, confined to the partition thread
+        final Map<String, UnionHistograms.UnionHistogram> unionedByTag = new HashMap<>();
+        final ArrayDeque<Future<List<Completed>>> inFlight = new ArrayDeque<>();
+        // for each batch in flight, the number of intervals merged when it was handed over
+        final ArrayDeque<Long> inFlightCoveredTo = new ArrayDeque<>();
+        Batch batch = new Batch();
+        // all the intervals of the partition numbered below this are unioned
+        long coveredTo;
+
+        Partition(int index)
+        {
+            executor = Executors.newSingleThreadExecutor(r ->
+            {
+                Thread thread = new Thread(r, "union-partition-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        List<Completed> union(Batch batch)
+        {
+            List<Completed> completed = new ArrayList<>();
+            for (int i = 0; i < batch.size; i++)
+            {
+                Histogram next = batch.intervals[i];
+                UnionHistograms.UnionHistogram union = unionedByTag.computeIfAbsent(next.getTag(), tag ->
+                    new UnionHistograms.UnionHistogram(tag, next.getNumberOfSignificantValueDigits(), targetUnionMs));
+                if (union.isRolledOverBy(next))
+                {
+                    completed.add(new Completed(
+                        batch.sequences[i],
+                        union.index,
+                        HdrHistogramUtil.copyWithSameRange(union.h, pool.poll())));
+                    union.rollover();
+                }
+                union.add(next);
+            }
+            return completed;
+        }
+    }
+
+    /**
+     * @param threads number of partitions unioning in parallel
+     */
+    public ParallelUnionHistograms(
+        boolean verbose,
+        PrintStream verboseOut,
+        List<HistogramIterator> inputs,
+        HistogramSink output,
+        long targetUnionMs,
+        int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be positive, was:" + threads);
+        }
+        this.verbose = verbose;
+        this.verboseOut = verboseOut;
+        this.inputs = inputs;
+        this.output = output;
+        this.targetUnionMs = targetUnionMs;
+        this.partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            partitions[i] = new Partition(i);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            merge();
+        }
+        finally
+        {
+            for (Partition partition : partitions)
+            {
+                partition.executor.shutdownNow();
+            }
+        }
+    }
+
+    private void merge()
+    {
+        List<HistogramIterator> ins = inputs;
+        ins.removeIf(e -> !e.hasNext());
+        Collections.sort(ins);
+
+        if (ins.isEmpty())
+        {
+            if (verbose)
+            {
+                verboseOut.println("Input files do not contain range");
+            }
+            output.finish();
+            return;
+        }
+
+        output.startTime(ins.get(0).getStartTimeSec());
+
+        // tags in the order the single threaded union writes the last unions in, by partition
+        Map<String, Partition> partitionByTag = new HashMap<>();
+        PriorityQueue<Completed> completed = new PriorityQueue<>(Comparator.comparingLong(c -> c.sequence));
+        long sequence = 0;
+        while (!ins.isEmpty())
+        {
+            HistogramIterator input = ins.get(0);
+            Histogram next = input.next();
+
+            Partition partition = partitionByTag.computeIfAbsent(next.getTag(), tag ->
+                partitions[(((tag == null) ? 0 : tag.hashCode()) & Integer.MAX_VALUE) % partitions.length]);
+            Batch batch = partition.batch;
+            batch.sequences[batch.size] = sequence;
+            batch.intervals[batch.size] = next;
+            batch.size++;
+            sequence++;
+            if (batch.size == BATCH_SIZE)
+            {
+                submit(partition, sequence);
+                collect(completed, sequence);
+            }
+            if (sequence % FLUSH_INTERVAL == 0)
+            {
+                for (Partition p : partitions)
+                {
+                    submit(p, sequence);
+                }
+                collect(completed, sequence);
+            }
+            // trim and sort
+            ins.removeIf(e -> !e.hasNext());
+            Collections.sort(ins);
+        }
+        for (Partition p : partitions)
+        {
+            submit(p, sequence);
+            while (!p.inFlight.isEmpty())
+            {
+                collectOldest(p, completed);
+            }
+        }
+        collect(completed, sequence);
+
+        // write last hgrms, all partitions are idle
+        for (Map.Entry<String, Partition> tagPartition : partitionByTag.entrySet())
+        {
+            UnionHistograms.UnionHistogram u = tagPartition.getValue().unionedByTag.get(tagPartition.getKey());
+            outputUnion(u.index, u.h);
+        }
+        output.finish();
+    }
+
+    private void submit(Partition partition, long sequence)
+    {
+        Batch batch = partition.batch;
+        if (batch.size == 0)
+        {
+            return;
+        }
+        partition.inFlight.add(partition.executor.submit(() -> partition.union(batch)));
+        partition.inFlightCoveredTo.add(sequence);
+        partition.batch = new Batch();
+    }
+
+    /**
+     * Collect the unions completed by the partitions, waiting on a partition only if it is too far behind, and write
+     * those all partitions are past.
+     */
+    private void collect(PriorityQueue<Completed> completed, long sequence)
+    {
+        long writable = sequence;
+        for (Partition partition : partitions)
+        {
+            while (!partition.inFlight.isEmpty() &&
+                (partition.inFlight.peek().isDone() || partition.inFlight.size() > MAX_BATCHES_PER_PARTITION))
+            {
+                collectOldest(partition, completed);
+            }
+            // a partition with nothing in hand is past all merged intervals
+            if (!partition.inFlight.isEmpty() || partition.batch.size != 0)
+            {
+                writable = Math.min(writable, partition.coveredTo);
+            }
+        }
+        while (!completed.isEmpty() && completed.peek().sequence < writable)
+        {
+            Completed union = completed.poll();
+            outputUnion(union.index, union.union);
+            pool.offer(union.union);
+        }
+    }
+
+    private void collectOldest(Partition partition, PriorityQueue<Completed> completed)
+    {
+        Future<List<Completed>> oldest = partition.inFlight.poll();
+        long coveredTo = partition.inFlightCoveredTo.poll();
+        try
+        {
+            completed.addAll(oldest.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Failed unioning intervals", e.getCause());
+        }
+        partition.coveredTo = coveredTo;
+    }
+
+    private void outputUnion(int i, Histogram union)
+    {
+        if (verbose)
+        {
+            verboseOut.print("union, ");
+            HdrHistogramUtil.logHistogramForVerbose(verboseOut, union, i);
+        }
+        output.accept(union);
+    }
+}
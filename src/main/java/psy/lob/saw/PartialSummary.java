@@ -0,0 +1,188 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+
+/**
+ * The summed up state of a summary: per tag histograms plus the period and interval length bookkeeping. Partial
+ * summaries collected from disjoint sets of logs can be merged into the summary of all the logs, which allows a
+ * summary to be computed where the logs live and only the (small) partials to be shipped around.
+ * <p>
+ * The partial file format is a standard histogram log, with a histogram line per tag and the bookkeeping values
+ * recorded in comments, e.g.:
+ * <pre>
+ * #[Histogram log format version 1.3]
+ * #[PartialPeriodMs:205823]
+ * #[PartialIntervalLengthSumMs:205000]
+ * "StartTimestamp","Interval_Length","Interval_Max","Interval_Compressed_Histogram"
+ * Tag=A,0.000,0.000,0.145,HISTFAAA...
+ * </pre>
+ */
+public class PartialSummary
+{
+    private static final String PERIOD_PREFIX = "#[PartialPeriodMs:";
+    private static final String INTERVAL_LENGTH_SUM_PREFIX = "#[PartialIntervalLengthSumMs:";
+
+    private final Map<String, Histogram> sumByTag = new HashMap<>();
+    private long period;
+    private long intervalLengthSum;
+
+    public Map<String, Histogram> sumByTag()
+    {
+        return sumByTag;
+    }
+
+    public long getPeriod()
+    {
+        return period;
+    }
+
+    public long getIntervalLengthSum()
+    {
+        return intervalLengthSum;
+    }
+
+    public void addPeriod(long period)
+    {
+        this.period += period;
+    }
+
+    public void addIntervalLength(long intervalLength)
+    {
+        this.intervalLengthSum += intervalLength;
+    }
+
+    /**
+     * @param tag                            summary tag, null for the default tag
+     * @param numberOfSignificantValueDigits used to create the sum histogram if this is the first sighting of tag
+     * @return the sum histogram for the tag
+     */
+    public Histogram sumForTag(String tag, int numberOfSignificantValueDigits)
+    {
+        return sumByTag.computeIfAbsent(tag, k ->
+        {
+            Histogram h = new Histogram(numberOfSignificantValueDigits);
+            h.setTag(k);
+            return h;
+        });
+    }
+
+    /**
+     * Merge other into this summary, the bookkeeping values are summed and histograms are added by tag.
+     */
+    public void add(PartialSummary other)
+    {
+        period += other.period;
+        intervalLengthSum += other.intervalLengthSum;
+        for (Histogram otherSum : other.sumByTag.values())
+        {
+            sumForTag(otherSum.getTag(), otherSum.getNumberOfSignificantValueDigits()).add(otherSum);
+        }
+    }
+
+    public void write(PrintStream out)
+    {
+        HistogramLogWriter writer = new HistogramLogWriter(out);
+        writer.outputLogFormatVersion();
+        writer.outputComment(PERIOD_PREFIX.substring(1) + period + "]");
+        writer.outputComment(INTERVAL_LENGTH_SUM_PREFIX.substring(1) + intervalLengthSum + "]");
+        writer.outputLegend();
+        for (Histogram sum : sumByTag.values())
+        {
+            // the sum time stamps are meaningless, only the bookkeeping values above matter
+            writer.outputIntervalHistogram(0.0, 0.0, sum);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param partialFile a file written by {@link #write(PrintStream)}
+     * @param ignoreTag   all tags are summed into the default tag
+     * @param shouldSkipTag predicate returns true if tag should be skipped
+     * @return the partial summary read from the file
+     * @throws FileNotFoundException when unable to find partialFile
+     */
+    public static PartialSummary read(File partialFile, boolean ignoreTag, Predicate<String> shouldSkipTag)
+        throws FileNotFoundException
+    {
+        PartialSummary partial = new PartialSummary();
+        // partials are written by us, fail on the first corrupt line
+        try (HistogramLogScanner scanner = new HistogramLogScanner(partialFile, new LogParseErrors(0, null)))
+        {
+            scanner.process(new HistogramLogScanner.EventHandler()
+            {
+                @Override
+                public boolean onComment(String comment)
+                {
+                    if (comment.startsWith(PERIOD_PREFIX))
+                    {
+                        partial.period += parseValue(comment, PERIOD_PREFIX);
+                    }
+                    else if (comment.startsWith(INTERVAL_LENGTH_SUM_PREFIX))
+                    {
+                        partial.intervalLengthSum += parseValue(comment, INTERVAL_LENGTH_SUM_PREFIX);
+                    }
+                    return false;
+                }
+
+                @Override
+                public boolean onBaseTime(double secondsSinceEpoch)
+                {
+                    return false;
+                }
+
+                @Override
+                public boolean onStartTime(double secondsSinceEpoch)
+                {
+                    return false;
+                }
+
+                @Override
+                public boolean onHistogram(
+                    String tag,
+                    double timestamp,
+                    double length,
+                    HistogramLogScanner.EncodableHistogramSupplier lazyReader)
+                {
+                    if (shouldSkipTag.test(tag))
+                    {
+                        return false;
+                    }
+                    EncodableHistogram histogram;
+                    try
+                    {
+                        histogram = lazyReader.read();
+                    }
+                    catch (DataFormatException e)
+                    {
+                        throw new IllegalArgumentException("Corrupt histogram in partial:" + partialFile, e);
+                    }
+                    Histogram h = (Histogram) histogram;
+                    partial.sumForTag(ignoreTag ? null : tag, h.getNumberOfSignificantValueDigits()).add(h);
+                    return false;
+                }
+
+                @Override
+                public boolean onException(Throwable t)
+                {
+                    throw new IllegalArgumentException("Failed to read partial:" + partialFile, t);
+                }
+            });
+        }
+        return partial;
+    }
+
+    private static long parseValue(String comment, String prefix)
+    {
+        return Long.parseLong(comment.substring(prefix.length(), comment.length() - 1));
+    }
+}
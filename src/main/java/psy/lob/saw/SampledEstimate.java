@@ -0,0 +1,155 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+/**
+ * Estimates the summary of all the intervals of a tag from a sample of them (see {@link IntervalSampler}), with 95%
+ * confidence intervals.
+ * <p>
+ * The confidence intervals are found by the random groups method: the sampled intervals are dealt round robin into 10
+ * groups, each a sample of the whole log in its own right, and the spread of the estimates of the groups gives the
+ * standard error of the estimate of the whole sample. Being taken over intervals rather than values, this allows for
+ * values being correlated within an interval and across nearby intervals (e.g. a slow period), which a bound on the
+ * values alone would not. The max and min of a sample are bounds rather than estimates, so have no interval.
+ */
+public final class SampledEstimate
+{
+    public static final int GROUPS = 10;
+    // Student's t for a two sided 95% interval with GROUPS - 1 degrees of freedom
+    private static final double T_95 = 2.262;
+
+    private Histogram sum = new Histogram(3);
+    private final Histogram[] groups = new Histogram[GROUPS];
+    private final long[] groupIntervals = new long[GROUPS];
+    private long sampled;
+    private long seen;
+
+    /**
+     * @param interval a sampled interval
+     */
+    public void add(Histogram interval)
+    {
+        if (sampled == 0)
+        {
+            sum = new Histogram(interval.getNumberOfSignificantValueDigits());
+            for (int g = 0; g < GROUPS; g++)
+            {
+                groups[g] = new Histogram(interval.getNumberOfSignificantValueDigits());
+            }
+        }
+        int group = (int) (sampled++ % GROUPS);
+        groups[group].add(interval);
+        groupIntervals[group]++;
+        sum.add(interval);
+    }
+
+    /**
+     * @param intervals the number of intervals the samples were taken from, including those sampled
+     */
+    public void addSeen(long intervals)
+    {
+        seen += intervals;
+    }
+
+    public long getSampled()
+    {
+        return sampled;
+    }
+
+    public long getSeen()
+    {
+        return seen;
+    }
+
+    /**
+     * @return the number of intervals each sampled interval stands for
+     */
+    public double getScale()
+    {
+        return (sampled == 0) ? 0.0 : (double) seen / sampled;
+    }
+
+    /**
+     * @return the sampled values with their counts scaled up to stand for all the intervals, counts are rounded to the
+     * nearest whole count but never to 0
+     */
+    public Histogram scaled()
+    {
+        Histogram scaled = new Histogram(sum.getNumberOfSignificantValueDigits());
+        double scale = getScale();
+        for (HistogramIterationValue v : sum.recordedValues())
+        {
+            long count = Math.max(1, Math.round(v.getCountAtValueIteratedTo() * scale));
+            scaled.recordValueWithCount(v.getValueIteratedTo(), count);
+        }
+        return scaled;
+    }
+
+    /**
+     * @return the estimated total count of all the intervals
+     */
+    public double getTotalCount()
+    {
+        return sum.getTotalCount() * getScale();
+    }
+
+    /**
+     * @return the 95% confidence interval of the total count, {low, high}, NaN if some group has no sample
+     */
+    public double[] getTotalCountInterval()
+    {
+        double[] groupEstimates = new double[GROUPS];
+        for (int g = 0; g < GROUPS; g++)
+        {
+            groupEstimates[g] = (groupIntervals[g] == 0) ? Double.NaN :
+                groups[g].getTotalCount() * ((double) seen / groupIntervals[g]);
+        }
+        return interval(getTotalCount(), groupEstimates);
+    }
+
+    /**
+     * @return the 95% confidence interval of the value at the percentile, {low, high}, in recorded units, NaN if some
+     * group has no sample
+     */
+    public double[] getPercentileInterval(double percentile)
+    {
+        double[] groupEstimates = new double[GROUPS];
+        for (int g = 0; g < GROUPS; g++)
+        {
+            groupEstimates[g] = (groupIntervals[g] == 0 || groups[g].getTotalCount() == 0) ? Double.NaN :
+                groups[g].getValueAtPercentile(percentile);
+        }
+        return interval(sum.getValueAtPercentile(percentile), groupEstimates);
+    }
+
+    /**
+     * @return the 95% confidence interval of the mean, {low, high}, in recorded units, NaN if some group has no sample
+     */
+    public double[] getMeanInterval()
+    {
+        double[] groupEstimates = new double[GROUPS];
+        for (int g = 0; g < GROUPS; g++)
+        {
+            groupEstimates[g] = (groupIntervals[g] == 0 || groups[g].getTotalCount() == 0) ? Double.NaN :
+                groups[g].getMean();
+        }
+        return interval(sum.getMean(), groupEstimates);
+    }
+
+    private static double[] interval(double estimate, double[] groupEstimates)
+    {
+        double mean = 0.0;
+        for (double groupEstimate : groupEstimates)
+        {
+            mean += groupEstimate / GROUPS;
+        }
+        double squares = 0.0;
+        for (double groupEstimate : groupEstimates)
+        {
+            squares += (groupEstimate - mean) * (groupEstimate - mean);
+        }
+        double standardError = Math.sqrt(squares / (GROUPS * (GROUPS - 1)));
+        return new double[]{estimate - T_95 * standardError, estimate + T_95 * standardError};
+    }
+}
@@ -0,0 +1,334 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the steady state of a log, between its warmup and cooldown, and sums it up, in a single pass over the log.
+ * <p>
+ * The log timeline is cut into slots the length of its first interval, and the throughput (the value count) and p99 of
+ * each slot, over all tags, are kept as the log is read. The steady level of each is taken from the middle half of the
+ * log, so warmup and cooldown are assumed to take less than a quarter of the log each. Warmup ends in the first run of
+ * slots whose median throughput and p99 are within tolerance of the steady levels, after the last slot of the run out
+ * of tolerance, and cooldown starts in the last such run, at its first slot out of tolerance. The tolerance is 3
+ * (normalized) median absolute deviations of the middle half, and no less than 5% of the steady level.
+ * <p>
+ * To sum up the steady state without reading the log again the intervals are summed into at most 256 consecutive
+ * segments of the timeline, and adjacent segments are merged as the log grows. The steady state is summed from the
+ * segments wholly within it, so its boundaries are rounded inwards to the segment boundaries, which are 1/128th of
+ * the log apart at worst.
+ */
+public class SteadyStateDetector
+{
+    private static final int MAX_SEGMENTS = 256;
+    private static final int MIN_RUN_SLOTS = 3;
+    private static final int MAX_RUN_SLOTS = 30;
+    private static final double MIN_TOLERANCE = 0.05;
+
+    private static final class Segment
+    {
+        final Map<String, Histogram> sumByTag = new HashMap<>();
+        long intervalLengthSum;
+
+        void add(String tag, Histogram interval)
+        {
+            sumByTag.computeIfAbsent(tag, k ->
+            {
+                Histogram h = new Histogram(interval.getNumberOfSignificantValueDigits());
+                h.setTag(k);
+                return h;
+            }).add(interval);
+            intervalLengthSum += interval.getEndTimeStamp() - interval.getStartTimeStamp();
+        }
+
+        void add(Segment other)
+        {
+            for (Histogram otherSum : other.sumByTag.values())
+            {
+                Histogram sum = sumByTag.get(otherSum.getTag());
+                if (sum == null)
+                {
+                    sumByTag.put(otherSum.getTag(), otherSum);
+                }
+                else
+                {
+                    sum.add(otherSum);
+                }
+            }
+            intervalLengthSum += other.intervalLengthSum;
+        }
+    }
+
+    private long firstStartMs = Long.MIN_VALUE;
+    private long slotMs;
+    private Segment[] segments = new Segment[MAX_SEGMENTS];
+    private long slotsPerSegment = 1;
+
+    // per slot statistics, for slots with intervals only
+    private long[] slots = new long[1024];
+    private double[] throughput = new double[1024];
+    private double[] p99 = new double[1024];
+    private int slotCount;
+    private long currentSlot = -1;
+    private Histogram currentSlotSum;
+
+    private long steadyStartMs;
+    private long steadyEndMs;
+    private boolean found;
+
+    /**
+     * @param tag      the tag to sum the interval under, which may differ from the interval tag
+     * @param interval the next interval, in start time order
+     */
+    public void add(String tag, Histogram interval)
+    {
+        if (firstStartMs == Long.MIN_VALUE)
+        {
+            firstStartMs = interval.getStartTimeStamp();
+            slotMs = Math.max(1, interval.getEndTimeStamp() - interval.getStartTimeStamp());
+            currentSlotSum = new Histogram(interval.getNumberOfSignificantValueDigits());
+        }
+        long slot = Math.max(0, (interval.getStartTimeStamp() - firstStartMs) / slotMs);
+        if (slot != currentSlot)
+        {
+            closeSlot();
+            currentSlot = slot;
+        }
+        currentSlotSum.add(interval);
+
+        while (slot / slotsPerSegment >= MAX_SEGMENTS)
+        {
+            halveSegments();
+        }
+        int segment = (int) (slot / slotsPerSegment);
+        if (segments[segment] == null)
+        {
+            segments[segment] = new Segment();
+        }
+        segments[segment].add(tag, interval);
+    }
+
+    /**
+     * Find the steady state of the intervals added, the whole log is taken to be steady if it is too short to tell.
+     * To be called once all intervals were added, and only once.
+     *
+     * @return the sum of the steady state intervals
+     */
+    public PartialSummary steadyState()
+    {
+        PartialSummary summary = new PartialSummary();
+        if (firstStartMs == Long.MIN_VALUE)
+        {
+            return summary;
+        }
+        closeSlot();
+        int[] range = steadyRange();
+        found = range != null;
+        long startSegment = 0;
+        long endSegment = MAX_SEGMENTS;
+        if (found)
+        {
+            // round inwards to whole segments
+            startSegment = (slots[range[0]] + slotsPerSegment - 1) / slotsPerSegment;
+            endSegment = (range[1] == slotCount) ? MAX_SEGMENTS : slots[range[1]] / slotsPerSegment;
+            if (startSegment >= endSegment)
+            {
+                found = false;
+                startSegment = 0;
+                endSegment = MAX_SEGMENTS;
+            }
+        }
+        Segment steady = new Segment();
+        for (long i = startSegment; i < endSegment; i++)
+        {
+            if (segments[(int) i] != null)
+            {
+                steady.add(segments[(int) i]);
+            }
+        }
+
+        long period = 0;
+        steadyStartMs = Long.MAX_VALUE;
+        steadyEndMs = 0;
+        for (Histogram sum : steady.sumByTag.values())
+        {
+            summary.sumForTag(sum.getTag(), sum.getNumberOfSignificantValueDigits()).add(sum);
+            period = Math.max(period, sum.getEndTimeStamp() - sum.getStartTimeStamp());
+            steadyStartMs = Math.min(steadyStartMs, sum.getStartTimeStamp());
+            steadyEndMs = Math.max(steadyEndMs, sum.getEndTimeStamp());
+        }
+        summary.addPeriod(period);
+        summary.addIntervalLength(steady.intervalLengthSum);
+        return summary;
+    }
+
+    /**
+     * @return true if warmup and cooldown were told apart from the steady state, false if the whole log was taken
+     */
+    public boolean isFound()
+    {
+        return found;
+    }
+
+    /**
+     * @return the start time stamp of the first steady state interval, in ms
+     */
+    public long getSteadyStartMs()
+    {
+        return steadyStartMs;
+    }
+
+    /**
+     * @return the end time stamp of the last steady state interval, in ms
+     */
+    public long getSteadyEndMs()
+    {
+        return steadyEndMs;
+    }
+
+    private void closeSlot()
+    {
+        if (currentSlot < 0)
+        {
+            return;
+        }
+        if (slotCount == slots.length)
+        {
+            slots = Arrays.copyOf(slots, slotCount * 2);
+            throughput = Arrays.copyOf(throughput, slotCount * 2);
+            p99 = Arrays.copyOf(p99, slotCount * 2);
+        }
+        slots[slotCount] = currentSlot;
+        throughput[slotCount] = currentSlotSum.getTotalCount();
+        p99[slotCount] = currentSlotSum.getValueAtPercentile(99.0);
+        slotCount++;
+        currentSlotSum.reset();
+        currentSlot = -1;
+    }
+
+    private void halveSegments()
+    {
+        Segment[] merged = new Segment[MAX_SEGMENTS];
+        for (int i = 0; i < MAX_SEGMENTS; i++)
+        {
+            Segment segment = segments[i];
+            if (segment == null)
+            {
+                continue;
+            }
+            if (merged[i / 2] == null)
+            {
+                merged[i / 2] = segment;
+            }
+            else
+            {
+                merged[i / 2].add(segment);
+            }
+        }
+        segments = merged;
+        slotsPerSegment *= 2;
+    }
+
+    /**
+     * @return the steady range of slot indexes, end exclusive, or null if the log is too short to tell
+     */
+    private int[] steadyRange()
+    {
+        int run = Math.max(MIN_RUN_SLOTS, Math.min(MAX_RUN_SLOTS, slotCount / 50));
+        if (slotCount < 4 * run)
+        {
+            return null;
+        }
+        double[][] series = {throughput, p99};
+        double[] level = new double[series.length];
+        double[] tolerance = new double[series.length];
+        for (int m = 0; m < series.length; m++)
+        {
+            double[] middle = Arrays.copyOfRange(series[m], slotCount / 4, 3 * slotCount / 4);
+            level[m] = median(middle.clone());
+            for (int i = 0; i < middle.length; i++)
+            {
+                middle[i] = Math.abs(middle[i] - level[m]);
+            }
+            // 1.4826 scales the median absolute deviation to a standard deviation for normally distributed data
+            tolerance[m] = Math.max(3 * 1.4826 * median(middle), MIN_TOLERANCE * Math.abs(level[m]));
+        }
+        int start = -1;
+        for (int i = 0; i + run <= slotCount && start < 0; i++)
+        {
+            if (isSteady(series, level, tolerance, i, run))
+            {
+                start = i;
+            }
+        }
+        int end = -1;
+        for (int i = slotCount; i - run >= 0 && end < 0; i--)
+        {
+            if (isSteady(series, level, tolerance, i - run, run))
+            {
+                end = i;
+            }
+        }
+        if (start < 0 || end <= start)
+        {
+            return null;
+        }
+        // the median of a run passes with up to half of it still warming up (or cooling down), so the steady range
+        // starts after the last slot of the first run out of tolerance, and ends before the first of the last run
+        for (int i = start + run - 1; i >= start; i--)
+        {
+            if (!isSteadySlot(series, level, tolerance, i))
+            {
+                start = i + 1;
+                break;
+            }
+        }
+        for (int i = end - run; i < end; i++)
+        {
+            if (!isSteadySlot(series, level, tolerance, i))
+            {
+                end = i;
+                break;
+            }
+        }
+        if (end <= start)
+        {
+            return null;
+        }
+        return new int[]{start, end};
+    }
+
+    private static boolean isSteadySlot(double[][] series, double[] level, double[] tolerance, int slot)
+    {
+        for (int m = 0; m < series.length; m++)
+        {
+            if (Math.abs(series[m][slot] - level[m]) > tolerance[m])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSteady(double[][] series, double[] level, double[] tolerance, int from, int run)
+    {
+        for (int m = 0; m < series.length; m++)
+        {
+            if (Math.abs(median(Arrays.copyOfRange(series[m], from, from + run)) - level[m]) > tolerance[m])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double median(double[] values)
+    {
+        Arrays.sort(values);
+        int mid = values.length / 2;
+        return (values.length % 2 == 1) ? values[mid] : (values[mid - 1] + values[mid]) / 2;
+    }
+}
@@ -0,0 +1,89 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Sums up the intervals of a tag: their total count and the period they cover and, unless only counting, the sum of
+ * their values. Counting only takes a few longs per tag however many intervals are added, so that all the tags of
+ * logs with very many of them can be held at once.
+ * <p>
+ * The period is the span of the intervals of the tag within each log, summed over the logs as summarize does:
+ * intervals are added from one log, and the summaries of different logs are added up. Unlike summarize, which takes
+ * the period of the longest lived tag for all tags, each tag has its own period.
+ */
+public final class TagSummary
+{
+    private final Histogram sum;
+    private long totalCount;
+    // the span of the intervals added, and the periods of the summaries added
+    private long startTimeStamp = Long.MAX_VALUE;
+    private long endTimeStamp = 0;
+    private long summariesPeriodMs;
+
+    /**
+     * @param first the first interval of the tag, its precision is used for the sum
+     * @param countOnly true to count values without summing them
+     */
+    public TagSummary(Histogram first, boolean countOnly)
+    {
+        this.sum = countOnly ? null : new Histogram(first.getNumberOfSignificantValueDigits());
+    }
+
+    public void add(Histogram interval)
+    {
+        totalCount += interval.getTotalCount();
+        startTimeStamp = Math.min(startTimeStamp, interval.getStartTimeStamp());
+        endTimeStamp = Math.max(endTimeStamp, interval.getEndTimeStamp());
+        if (sum != null)
+        {
+            sum.add(interval);
+        }
+    }
+
+    /**
+     * Add the summary of another log, which must count only if this does.
+     *
+     * @return this
+     */
+    public TagSummary add(TagSummary other)
+    {
+        totalCount += other.totalCount;
+        summariesPeriodMs += other.getPeriodMs();
+        if (sum != null)
+        {
+            sum.add(other.sum);
+        }
+        return this;
+    }
+
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    /**
+     * @return the time from the earliest interval start to the latest interval end in each log, summed over the logs,
+     * in ms
+     */
+    public long getPeriodMs()
+    {
+        return summariesPeriodMs + ((startTimeStamp > endTimeStamp) ? 0 : endTimeStamp - startTimeStamp);
+    }
+
+    /**
+     * @return values per second over the period, 0 if the period is empty
+     */
+    public double getThroughput()
+    {
+        long periodMs = getPeriodMs();
+        return (periodMs <= 0) ? 0.0 : totalCount * 1000.0 / periodMs;
+    }
+
+    /**
+     * @return the sum of the intervals, null if only counting
+     */
+    public Histogram getSum()
+    {
+        return sum;
+    }
+}
@@ -0,0 +1,125 @@
+package psy.lob.saw;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.util.Arrays;
+
+/**
+ * Counts the values recorded, and those above each of a set of thresholds, e.g. to check a service level objective
+ * such as 99% of requests within 50ms. The counts of an interval are found in one walk of its recorded values, which
+ * stops once past the highest threshold, and intervals with no value above the lowest threshold are not walked at all.
+ * <p>
+ * Values the histogram can not tell apart from a threshold, within its precision, count as within the threshold.
+ */
+public final class ThresholdCounts
+{
+    private final long[] thresholds;
+    private final long[] above;
+    private long total;
+
+    /**
+     * @param thresholds in ascending order
+     */
+    public ThresholdCounts(long[] thresholds)
+    {
+        for (int i = 1; i < thresholds.length; i++)
+        {
+            if (thresholds[i] <= thresholds[i - 1])
+            {
+                throw new IllegalArgumentException("thresholds must be ascending, was:" + Arrays.toString(thresholds));
+            }
+        }
+        this.thresholds = thresholds;
+        this.above = new long[thresholds.length];
+    }
+
+    public void add(Histogram interval)
+    {
+        long intervalTotal = interval.getTotalCount();
+        total += intervalTotal;
+        if (intervalTotal == 0 || thresholds.length == 0 ||
+            interval.lowestEquivalentValue(interval.getMaxValue()) <= thresholds[0])
+        {
+            return;
+        }
+        int t = 0;
+        long atOrBelow = 0;
+        for (HistogramIterationValue v : interval.recordedValues())
+        {
+            long value = interval.lowestEquivalentValue(v.getValueIteratedTo());
+            while (t < thresholds.length && value > thresholds[t])
+            {
+                above[t] += intervalTotal - atOrBelow;
+                t++;
+            }
+            if (t == thresholds.length)
+            {
+                break;
+            }
+            atOrBelow += v.getCountAtValueIteratedTo();
+        }
+    }
+
+    /**
+     * Add the counts of other, which must be for the same thresholds.
+     *
+     * @return this
+     */
+    public ThresholdCounts add(ThresholdCounts other)
+    {
+        if (!Arrays.equals(thresholds, other.thresholds))
+        {
+            throw new IllegalArgumentException("Counts are for different thresholds");
+        }
+        total += other.total;
+        for (int i = 0; i < above.length; i++)
+        {
+            above[i] += other.above[i];
+        }
+        return this;
+    }
+
+    /**
+     * @return a copy of these counts, to add up other counts into while keeping these
+     */
+    public ThresholdCounts copy()
+    {
+        return new ThresholdCounts(thresholds).add(this);
+    }
+
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @param i threshold index
+     * @return the number of values above the threshold
+     */
+    public long getAbove(int i)
+    {
+        return above[i];
+    }
+
+    /**
+     * @param i threshold index
+     * @return the fraction of values within the threshold, 1 if there are none
+     */
+    public double getCompliance(int i)
+    {
+        return (total == 0) ? 1.0 : 1.0 - (double) above[i] / total;
+    }
+
+    /**
+     * The rate the error budget is used at, 1 uses the budget up exactly, above 1 breaches the objective.
+     *
+     * @param i         threshold index
+     * @param objective the fraction of values to be within the threshold, e.g. 0.99
+     * @return the fraction of values above the threshold over the fraction allowed to be above it
+     */
+    public double getBurnRate(int i, double objective)
+    {
+        return (1.0 - getCompliance(i)) / (1.0 - objective);
+    }
+}
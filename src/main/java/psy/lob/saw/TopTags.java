@@ -0,0 +1,97 @@
+package psy.lob.saw;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The k tags with the highest scores offered, e.g. the worst p99.9, held in a min heap so that ranking any number of
+ * tags takes memory for only k of them. Tags with the same score are ranked by tag.
+ */
+public final class TopTags<T>
+{
+    public static final class Entry<T>
+    {
+        private final String tag;
+        private final double score;
+        private final T value;
+
+        Entry(String tag, double score, T value)
+        {
+            this.tag = tag;
+            this.score = score;
+            this.value = value;
+        }
+
+        public String getTag()
+        {
+            return tag;
+        }
+
+        public double getScore()
+        {
+            return score;
+        }
+
+        public T getValue()
+        {
+            return value;
+        }
+    }
+
+    private final Comparator<Entry<T>> rankOrder = Comparator.comparingDouble((Entry<T> e) -> -e.score)
+        .thenComparing(e -> e.tag);
+    private final int k;
+    // the last ranked entry at the head
+    private final PriorityQueue<Entry<T>> heap;
+
+    public TopTags(int k)
+    {
+        if (k <= 0)
+        {
+            throw new IllegalArgumentException("k must be positive, was:" + k);
+        }
+        this.k = k;
+        this.heap = new PriorityQueue<>(k, rankOrder.reversed());
+    }
+
+    /**
+     * @return true if the tag is in the top k so far
+     */
+    public boolean offer(String tag, double score, T value)
+    {
+        Entry<T> entry = new Entry<>(tag, score, value);
+        if (heap.size() < k)
+        {
+            heap.add(entry);
+            return true;
+        }
+        if (rankOrder.compare(entry, heap.peek()) >= 0)
+        {
+            return false;
+        }
+        heap.poll();
+        heap.add(entry);
+        return true;
+    }
+
+    /**
+     * @return the lowest score in the top k, a tag scoring below it can not make the top k, NEGATIVE_INFINITY until k
+     * tags were offered
+     */
+    public double getThreshold()
+    {
+        return (heap.size() < k) ? Double.NEGATIVE_INFINITY : heap.peek().score;
+    }
+
+    /**
+     * @return the top k, highest score first
+     */
+    public List<Entry<T>> ranked()
+    {
+        List<Entry<T>> ranked = new ArrayList<>(heap);
+        ranked.sort(rankOrder);
+        return ranked;
+    }
+}
@@ -11,16 +11,90 @@ import java.util.Map;
 public class UnionHistograms implements Runnable
 {
 
-    private static class UnionHistogram
+    /**
+     * The union of the intervals of a tag, and the rules for when an interval rolls it over into the next union.
+     */
+    static final class UnionHistogram
     {
+        private final long targetUnionMs;
         final Histogram h;
         int index;
 
-        private UnionHistogram(int numberOfSignificantValueDigits)
+        UnionHistogram(String tag, int numberOfSignificantValueDigits, long targetUnionMs)
         {
+            this.targetUnionMs = targetUnionMs;
             this.h = new Histogram(numberOfSignificantValueDigits);
+            h.setTag(tag);
+            clear();
+        }
+
+        /**
+         * @return true if next does not belong in this union, which is then complete and should be output and rolled
+         * over before next is added
+         */
+        boolean isRolledOverBy(Histogram next)
+        {
+            long nextStart = next.getStartTimeStamp();
+            long nextEnd = next.getEndTimeStamp();
+            long unionStart = h.getStartTimeStamp();
+            long unionEnd = h.getEndTimeStamp();
+            // iterators are sorted, so we know nextStart >= unionStart
+            // new union, or next interval is inside union interval
+            if (unionStart == Long.MAX_VALUE || (nextStart < unionEnd && nextEnd <= unionEnd))
+            {
+                return false;
+            }
+            // next interval starts before the end of this interval, but is not contained by it
+            if (nextStart < unionEnd)
+            {
+                double nextIntervalLength = nextEnd - nextStart;
+                double overlap = (unionEnd - nextStart) / nextIntervalLength;
+                // 80% or more of next is in fact in the current union
+                return !(overlap > 0.8);
+            }
+            return true;
+        }
+
+        void add(Histogram next)
+        {
+            long unionStart = h.getStartTimeStamp();
+            long unionEnd = h.getEndTimeStamp();
+            h.add(next);
+            if (unionStart == Long.MAX_VALUE)
+            {
+                // expand union length to allow more intervals to fall into the same union
+                if (h.getEndTimeStamp() - h.getStartTimeStamp() < targetUnionMs)
+                {
+                    h.setEndTimeStamp(h.getStartTimeStamp() + targetUnionMs);
+                }
+            }
+            else if (next.getEndTimeStamp() > unionEnd)
+            {
+                // prevent an ever expanding union
+                h.setStartTimeStamp(unionStart);
+                h.setEndTimeStamp(unionEnd);
+            }
+        }
+
+        /**
+         * Start the next union, the current one must have been output already.
+         */
+        void rollover()
+        {
+            index++;
+            String tag = h.getTag();
+            h.reset();
+            h.setTag(tag);
+            clear();
+        }
+
+        private void clear()
+        {
+            h.setEndTimeStamp(0L);
+            h.setStartTimeStamp(Long.MAX_VALUE);
         }
     }
+
     private final boolean verbose;
     private final PrintStream verboseOut;
     private final List<HistogramIterator> inputs;
@@ -63,6 +137,7 @@ public class UnionHistograms implements Runnable
             {
                 verboseOut.println("Input files do not contain range");
             }
+            output.finish();
             return;
         }
 
@@ -74,78 +149,14 @@ public class UnionHistograms implements Runnable
             HistogramIterator input = ins.get(0);
             Histogram next = input.next();
 
-            UnionHistogram union = unionedByTag.computeIfAbsent(next.getTag(), k ->
-            {
-                UnionHistogram u = new UnionHistogram(next.getNumberOfSignificantValueDigits());
-                u.h.setEndTimeStamp(0L);
-                u.h.setStartTimeStamp(Long.MAX_VALUE);
-                u.h.setTag(k);
-                return u;
-            });
-            Histogram unionHgrm = union.h;
-            final int unionIndex = union.index;
-
-            long nextStart = next.getStartTimeStamp();
-            long nextEnd = next.getEndTimeStamp();
-
-            long unionStart = unionHgrm.getStartTimeStamp();
-            long unionEnd = unionHgrm.getEndTimeStamp();
-            // iterators are sorted, so we know nextStart >= unionStart
-            boolean rollover = false;
-
-            // new union
-            if (unionStart == Long.MAX_VALUE)
-            {
-                addNext(input.source(), unionIndex, next, unionHgrm);
-                // expand union length to allow more intervals to fall into the same union
-                if (unionHgrm.getEndTimeStamp() - unionHgrm.getStartTimeStamp() < targetUnionMs)
-                {
-                    unionHgrm.setEndTimeStamp(unionHgrm.getStartTimeStamp()  + targetUnionMs);
-                }
-            }
-            // next interval is inside union interval
-            else if (nextStart < unionEnd && nextEnd <= unionEnd)
-            {
-                addNext(input.source(), unionIndex, next, unionHgrm);
-            }
-            // next interval starts before the end of this interval, but is not contained by it
-            else if (nextStart < unionEnd)
+            UnionHistogram union = unionedByTag.computeIfAbsent(next.getTag(), tag ->
+                new UnionHistogram(tag, next.getNumberOfSignificantValueDigits(), targetUnionMs));
+            if (union.isRolledOverBy(next))
             {
-                double nextIntervalLength = nextEnd - nextStart;
-                double overlap = (unionEnd - nextStart) / nextIntervalLength;
-                // 80% or more of next is in fact in the current union 
-                if (overlap > 0.8)
-                {
-                    addNext(input.source(), unionIndex, next, unionHgrm);
-                    // prevent an ever expanding union
-                    unionHgrm.setStartTimeStamp(unionStart);
-                    unionHgrm.setEndTimeStamp(unionEnd);
-                }
-                else
-                {
-                    rollover = true;
-                }
-            }
-            else
-            {
-                rollover = true;
-            }
-            if (rollover)
-            {
-                outputUnion(unionIndex, unionHgrm);
-                final int unionIndexNext = ++union.index;
-                unionHgrm.reset();
-                unionHgrm.setEndTimeStamp(0L);
-                unionHgrm.setStartTimeStamp(Long.MAX_VALUE);
-                unionHgrm.setTag(next.getTag());
-                
-                addNext(input.source(), unionIndexNext, next, unionHgrm);
-                // expand union length to allow more intervals to fall into the same union
-                if (unionHgrm.getEndTimeStamp() - unionHgrm.getStartTimeStamp() < targetUnionMs)
-                {
-                    unionHgrm.setEndTimeStamp(unionHgrm.getStartTimeStamp()  + targetUnionMs);
-                }
+                outputUnion(union.index, union.h);
+                union.rollover();
             }
+            addNext(input.source(), union.index, next, union);
             // trim and sort
             ins.removeIf(e -> !e.hasNext());
             Collections.sort(ins);
@@ -155,6 +166,7 @@ public class UnionHistograms implements Runnable
         {
             outputUnion(u.index, u.h);
         }
+        output.finish();
     }
 
     private void outputUnion(int i, Histogram union)
@@ -167,7 +179,7 @@ public class UnionHistograms implements Runnable
         output.accept(union);
     }
 
-    private void addNext(String source, int i, Histogram next, Histogram union)
+    private void addNext(String source, int i, Histogram next, UnionHistogram union)
     {
         union.add(next);
         if (verbose)